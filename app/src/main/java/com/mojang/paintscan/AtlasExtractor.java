@@ -0,0 +1,174 @@
+package com.mojang.paintscan;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Produces the texture atlas of an {@link AtlasTemplate} straight from a camera frame, in a single
+ * {@link Imgproc#remap} over the painting region, rather than rectifying the whole painting and
+ * cropping the regions out of it afterwards.
+ *
+ * <p>The template part of the mapping, from each atlas pixel to a position on the painting, only
+ * depends on the template and the atlas size and is cached. Per capture it is composed with the
+ * homography from the painting onto its corners in the frame, which costs a few operations per
+ * atlas pixel.
+ */
+final class AtlasExtractor {
+
+  // Atlas tables kept for reuse, each at most a few MB.
+  private static final int MAX_CACHED_TABLES = 4;
+  // Pixels around the painting read so bilinear samples at its border have neighbors.
+  private static final int ROI_MARGIN = 2;
+
+  /** Painting position of each atlas pixel, as fractions of the painting size; NaN if unused. */
+  private static final class Table {
+    final float[] u;
+    final float[] v;
+
+    Table(int size) {
+      u = new float[size];
+      v = new float[size];
+      Arrays.fill(u, Float.NaN);
+      Arrays.fill(v, Float.NaN);
+    }
+  }
+
+  private final Map<String, AtlasTemplate> templates;
+  private final int scale;
+  // Access ordered, so the least recently used table is evicted first.
+  private final LinkedHashMap<String, Table> tables =
+      new LinkedHashMap<String, Table>(MAX_CACHED_TABLES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Table> eldest) {
+          return size() > MAX_CACHED_TABLES;
+        }
+      };
+
+  /**
+   * @param templates atlas templates by augmented image name.
+   * @param scale output pixels per atlas pixel.
+   */
+  AtlasExtractor(Map<String, AtlasTemplate> templates, int scale) {
+    this.templates = Collections.unmodifiableMap(new HashMap<>(templates));
+    this.scale = scale;
+  }
+
+  /** The template of the target, or null if it has none. */
+  public AtlasTemplate getTemplate(String targetName) {
+    return targetName != null ? templates.get(targetName) : null;
+  }
+
+  /**
+   * Extracts the atlas of {@code template} into a newly allocated RGBA {@link Mat} of the atlas
+   * size times the scale. Unused atlas pixels are transparent black.
+   *
+   * @param corners painting corners in frame pixels, see {@link CaptureSnapshot}.
+   */
+  public Mat extract(YuvFrame frame, float[] corners, AtlasTemplate template) {
+    final int outputWidth = template.getAtlasWidth() * scale;
+    final int outputHeight = template.getAtlasHeight() * scale;
+    final Table table = getTable(template, outputWidth, outputHeight);
+
+    final int width = frame.getWidth();
+    final int height = frame.getHeight();
+    Rect roi = FrameRectifier.computeRoi(corners, width, height, ROI_MARGIN);
+    double[] h = new double[9];
+    if (!Homography.rectToQuad(FrameRectifier.toRoiCorners(corners, roi, 0), 1, 1, h)) {
+      throw new IllegalArgumentException("Degenerate corners " + Arrays.toString(corners));
+    }
+
+    // Compose the cached painting positions with the homography into ROI pixel positions.
+    final int count = outputWidth * outputHeight;
+    float[] xs = new float[count];
+    float[] ys = new float[count];
+    for (int i = 0; i < count; i++) {
+      final float u = table.u[i];
+      final float v = table.v[i];
+      if (Float.isNaN(u)) {
+        // Outside the source, so the constant border fills it.
+        xs[i] = -1f;
+        ys[i] = -1f;
+        continue;
+      }
+      final double w = h[6] * u + h[7] * v + h[8];
+      xs[i] = (float) ((h[0] * u + h[1] * v + h[2]) / w);
+      ys[i] = (float) ((h[3] * u + h[4] * v + h[5]) / w);
+    }
+    Mat mapX = new Mat(outputHeight, outputWidth, CvType.CV_32FC1);
+    Mat mapY = new Mat(outputHeight, outputWidth, CvType.CV_32FC1);
+    mapX.put(0, 0, xs);
+    mapY.put(0, 0, ys);
+
+    // Regions can be only a few pixels wide, so convert the source to RGBA first rather than
+    // sampling chroma at half the atlas resolution.
+    Mat yMat = new Mat(height, width, CvType.CV_8UC1, frame.getYPlane());
+    Mat vuMat = new Mat(height / 2, width / 2, CvType.CV_8UC2, frame.getVUPlane());
+    Mat yRoi = yMat.submat(roi.y, roi.y + roi.height, roi.x, roi.x + roi.width);
+    Mat vuRoi = vuMat.submat(roi.y / 2, (roi.y + roi.height) / 2, roi.x / 2, (roi.x + roi.width) / 2);
+    Mat rgbaRoi = new Mat();
+    Imgproc.cvtColorTwoPlane(yRoi, vuRoi, rgbaRoi, Imgproc.COLOR_YUV2RGBA_NV21);
+
+    Mat atlas = new Mat();
+    Imgproc.remap(
+        rgbaRoi, atlas, mapX, mapY, Imgproc.INTER_LINEAR, Core.BORDER_CONSTANT, Scalar.all(0));
+
+    rgbaRoi.release();
+    yRoi.release();
+    vuRoi.release();
+    yMat.release();
+    vuMat.release();
+    mapX.release();
+    mapY.release();
+    return atlas;
+  }
+
+  private synchronized Table getTable(AtlasTemplate template, int outputWidth, int outputHeight) {
+    final String key = template.getName() + "@" + outputWidth + "x" + outputHeight;
+    Table table = tables.get(key);
+    if (table == null) {
+      table = buildTable(template, outputWidth, outputHeight);
+      tables.put(key, table);
+    }
+    return table;
+  }
+
+  private static Table buildTable(AtlasTemplate template, int outputWidth, int outputHeight) {
+    final Table table = new Table(outputWidth * outputHeight);
+    final float scaleX = (float) outputWidth / template.getAtlasWidth();
+    final float scaleY = (float) outputHeight / template.getAtlasHeight();
+    for (AtlasTemplate.Region region : template.getRegions()) {
+      final float left = region.destinationX * scaleX;
+      final float top = region.destinationY * scaleY;
+      final float regionWidth = region.destinationWidth * scaleX;
+      final float regionHeight = region.destinationHeight * scaleY;
+      final int fromX = Math.max(0, Math.round(left));
+      final int toX = Math.min(outputWidth, Math.round(left + regionWidth));
+      final int fromY = Math.max(0, Math.round(top));
+      final int toY = Math.min(outputHeight, Math.round(top + regionHeight));
+
+      for (int y = fromY; y < toY; y++) {
+        // Pixel centers, so the region's source rectangle is sampled symmetrically.
+        final float fractionY = (y + 0.5f - top) / regionHeight;
+        final float v = (region.sourceY + fractionY * region.sourceHeight) / template.getHeight();
+        for (int x = fromX; x < toX; x++) {
+          final float fractionX = (x + 0.5f - left) / regionWidth;
+          final int index = y * outputWidth + x;
+          table.u[index] =
+              (region.sourceX + fractionX * region.sourceWidth) / template.getWidth();
+          table.v[index] = v;
+        }
+      }
+    }
+    return table;
+  }
+}
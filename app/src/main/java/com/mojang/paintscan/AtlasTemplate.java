@@ -0,0 +1,159 @@
+package com.mojang.paintscan;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Layout of a printed template whose areas map onto a texture atlas, e.g. the faces of a character
+ * skin. Each {@link Region} copies a rectangle of the template onto a rectangle of the atlas,
+ * scaled to fit. Atlas pixels outside every region stay transparent.
+ *
+ * <p>Descriptors are JSON:
+ *
+ * <pre>
+ * {
+ *   "name": "skin",
+ *   "width": 640, "height": 640,
+ *   "atlasWidth": 64, "atlasHeight": 64,
+ *   "regions": [
+ *     {"name": "head_front", "source": [80, 80, 80, 80], "destination": [8, 8, 8, 8]}
+ *   ]
+ * }
+ * </pre>
+ *
+ * <p>{@code width} and {@code height} span the whole painting in template units, {@code source}
+ * rectangles are {@code [x, y, width, height]} in those units and {@code destination} rectangles
+ * are in atlas pixels. Later regions overwrite earlier ones where destinations overlap.
+ */
+final class AtlasTemplate {
+
+  /** One template rectangle and the atlas rectangle it is copied to. */
+  static final class Region {
+    final String name;
+    final float sourceX;
+    final float sourceY;
+    final float sourceWidth;
+    final float sourceHeight;
+    final int destinationX;
+    final int destinationY;
+    final int destinationWidth;
+    final int destinationHeight;
+
+    Region(String name, float[] source, int[] destination) {
+      this.name = name;
+      sourceX = source[0];
+      sourceY = source[1];
+      sourceWidth = source[2];
+      sourceHeight = source[3];
+      destinationX = destination[0];
+      destinationY = destination[1];
+      destinationWidth = destination[2];
+      destinationHeight = destination[3];
+    }
+  }
+
+  private final String name;
+  private final float width;
+  private final float height;
+  private final int atlasWidth;
+  private final int atlasHeight;
+  private final List<Region> regions;
+
+  AtlasTemplate(
+      String name, float width, float height, int atlasWidth, int atlasHeight,
+      List<Region> regions) {
+    if (width <= 0 || height <= 0 || atlasWidth <= 0 || atlasHeight <= 0) {
+      throw new IllegalArgumentException("Template " + name + " has an empty size");
+    }
+    for (Region region : regions) {
+      if (region.sourceWidth <= 0 || region.sourceHeight <= 0 || region.destinationWidth <= 0
+          || region.destinationHeight <= 0) {
+        throw new IllegalArgumentException("Region " + region.name + " of " + name + " is empty");
+      }
+    }
+    this.name = name;
+    this.width = width;
+    this.height = height;
+    this.atlasWidth = atlasWidth;
+    this.atlasHeight = atlasHeight;
+    this.regions = Collections.unmodifiableList(new ArrayList<>(regions));
+  }
+
+  /** Reads a JSON descriptor, see the class comment. */
+  static AtlasTemplate read(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      bytes.write(buffer, 0, read);
+    }
+    try {
+      JSONObject json = new JSONObject(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+      JSONArray regionsJson = json.getJSONArray("regions");
+      List<Region> regions = new ArrayList<>(regionsJson.length());
+      for (int i = 0; i < regionsJson.length(); i++) {
+        JSONObject regionJson = regionsJson.getJSONObject(i);
+        JSONArray source = regionJson.getJSONArray("source");
+        JSONArray destination = regionJson.getJSONArray("destination");
+        regions.add(
+            new Region(
+                regionJson.optString("name", "region " + i),
+                new float[] {
+                  (float) source.getDouble(0),
+                  (float) source.getDouble(1),
+                  (float) source.getDouble(2),
+                  (float) source.getDouble(3)
+                },
+                new int[] {
+                  destination.getInt(0),
+                  destination.getInt(1),
+                  destination.getInt(2),
+                  destination.getInt(3)
+                }));
+      }
+      return new AtlasTemplate(
+          json.getString("name"),
+          (float) json.getDouble("width"),
+          (float) json.getDouble("height"),
+          json.getInt("atlasWidth"),
+          json.getInt("atlasHeight"),
+          regions);
+    } catch (JSONException | IllegalArgumentException e) {
+      throw new IOException("Invalid atlas template: " + e.getMessage(), e);
+    }
+  }
+
+  /** Identifies the template, e.g. to cache its tables. */
+  public String getName() {
+    return name;
+  }
+
+  public float getWidth() {
+    return width;
+  }
+
+  public float getHeight() {
+    return height;
+  }
+
+  public int getAtlasWidth() {
+    return atlasWidth;
+  }
+
+  public int getAtlasHeight() {
+    return atlasHeight;
+  }
+
+  public List<Region> getRegions() {
+    return regions;
+  }
+}
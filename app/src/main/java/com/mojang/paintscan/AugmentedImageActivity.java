@@ -2,14 +2,9 @@
 package com.mojang.paintscan;
 
 import android.Manifest;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.media.Image;
 import android.os.Bundle;
-import android.os.Environment;
+import android.os.SystemClock;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
@@ -23,13 +18,14 @@ import android.widget.Toast;
 import com.google.ar.core.Anchor;
 import com.google.ar.core.AugmentedImage;
 import com.google.ar.core.Camera;
+import com.google.ar.core.CameraIntrinsics;
 import com.google.ar.core.Frame;
 import com.google.ar.core.HitResult;
 import com.google.ar.core.Plane;
 import com.google.ar.core.Pose;
+import com.google.ar.core.TrackingState;
 import com.google.ar.core.exceptions.NotYetAvailableException;
 import com.google.ar.sceneform.AnchorNode;
-import com.google.ar.sceneform.ArSceneView;
 import com.google.ar.sceneform.FrameTime;
 import com.google.ar.sceneform.Node;
 import com.google.ar.sceneform.math.Matrix;
@@ -42,27 +38,15 @@ import com.mojang.common.helpers.SnackbarHelper;
 import com.google.ar.sceneform.ux.ArFragment;
 import com.google.ar.sceneform.ux.TransformableNode;
 
-import org.opencv.android.OpenCVLoader;
-import org.opencv.android.Utils;
-import org.opencv.core.CvType;
-import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.Point;
-import org.opencv.core.Scalar;
-import org.opencv.core.Size;
-import org.opencv.imgproc.Imgproc;
-import org.opencv.utils.Converters;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.text.SimpleDateFormat;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -80,12 +64,125 @@ import java.util.Map;
  */
 public class AugmentedImageActivity extends AppCompatActivity {
 
-  static {
-    System.loadLibrary("opencv_java3");
-  }
-
   static final String LOG_TAG = "AugmentedImageActivity";
 
+  // Artifacts written per capture until another profile is picked by long pressing the capture
+  // button.
+  private static final CaptureProfile DEFAULT_CAPTURE_PROFILE = CaptureProfile.STANDARD;
+
+  // Whether the STANDARD profile writes the unprocessed camera frame next to the rectified output.
+  // The JPEG encode for it runs after the rectified result has been delivered.
+  private static final boolean SAVE_ORIGINAL_IMAGE = true;
+
+  // Warp the YUV planes and convert only the rectified pixels, rather than the whole frame.
+  private static final FrameRectifier.Mode RECTIFICATION_MODE = FrameRectifier.Mode.YUV;
+
+  // Rectify from the bounding box of the painting, grown by this many pixels, not the full frame.
+  private static final boolean CROP_TO_PAINTING = true;
+  private static final int PAINTING_ROI_MARGIN = 16;
+  // Reuse the rectification maps of earlier captures whose corners moved less than this many
+  // pixels, keeping at most REMAP_CACHE_MAX_BYTES of maps. 0 bytes disables the cache. Off by
+  // default: it only pays off for repeated captures of a painting that does not move, e.g. 4 MB
+  // on a tripod.
+  private static final float REMAP_CACHE_TOLERANCE_PX = 2f;
+  private static final long REMAP_CACHE_MAX_BYTES = 0;
+  // Halve source regions at least twice the output size with an image pyramid before the warp.
+  private static final boolean PYRAMID_DOWNSAMPLING = true;
+  // Split warps of outputs at least TILED_WARP_MIN_SIZE tall into bands, one per core.
+  private static final boolean TILED_WARP = true;
+  private static final int TILED_WARP_MIN_SIZE = 512;
+  // Snap the projected corners to the painting corners found within CORNER_SEARCH_RADIUS pixels
+  // in the camera image, ignoring matches more than CORNER_MAX_SHIFT_PX away.
+  private static final boolean REFINE_CORNERS = false;
+  private static final int CORNER_SEARCH_RADIUS = 16;
+  private static final float CORNER_MAX_SHIFT_PX = 12f;
+
+  // Side of the square rectified image, overridable per augmented image name. With
+  // ADAPTIVE_OUTPUT_SIZE it is only an upper bound: captures use the largest power of two, not
+  // below MIN_OUTPUT_SIZE, that the painting's footprint in the camera image supports.
+  private static final int OUTPUT_SIZE = 256;
+  private static final Map<String, Integer> TARGET_OUTPUT_SIZES = Collections.emptyMap();
+  private static final boolean ADAPTIVE_OUTPUT_SIZE = false;
+  private static final int MIN_OUTPUT_SIZE = 128;
+
+  // Log a comparison of the rectification modes at startup.
+  private static final boolean RUN_RECTIFICATION_BENCHMARK = false;
+  // Log a comparison of the pure Java warp against OpenCV per output size at startup.
+  private static final boolean RUN_WARP_BENCHMARK = false;
+  // Log super-resolution quality against the number of frames used at startup.
+  private static final boolean RUN_SUPER_RESOLUTION_BENCHMARK = false;
+  // Log tiled against single call warps for large outputs at startup.
+  private static final boolean RUN_TILED_WARP_BENCHMARK = false;
+  // Log the copy and sharpness scoring of every buffered frame. Off by default, as it logs up to
+  // ZSL_SAMPLE_RATE_HZ times a second while a painting is tracked.
+  private static final boolean LOG_FRAME_STATS = false;
+
+  // Captures allowed to wait behind the one being processed, and what happens to extra taps.
+  private static final int CAPTURE_QUEUE_CAPACITY = 2;
+  private static final CaptureProcessor.OverflowPolicy CAPTURE_OVERFLOW_POLICY =
+          CaptureProcessor.OverflowPolicy.DROP_OLDEST;
+
+  // Captured images waiting for storage, whether each file is fsynced before it appears, and the
+  // JPEG quality they are encoded with. Queued images get IMAGE_FLUSH_TIMEOUT_MS to reach storage
+  // when the activity is destroyed.
+  private static final int IMAGE_WRITE_QUEUE_CAPACITY = 8;
+  private static final boolean IMAGE_WRITE_FSYNC = true;
+  private static final int IMAGE_JPEG_QUALITY = 100;
+  private static final long IMAGE_FLUSH_TIMEOUT_MS = 500;
+
+  // Zero shutter lag: recent tracked frames buffered for capture, the memory they may use and how
+  // often a new frame is buffered.
+  private static final int ZSL_FRAME_COUNT = 4;
+  private static final long ZSL_MAX_BYTES = 8L * 1024 * 1024;
+  private static final float ZSL_SAMPLE_RATE_HZ = 10f;
+
+  // After a capture tap, keep buffering frames this long and then capture the sharpest one.
+  // Captures whose best frame scores below MIN_CAPTURE_SHARPNESS are rejected, 0 accepts all.
+  private static final long CAPTURE_WINDOW_MS = 300;
+  private static final float MIN_CAPTURE_SHARPNESS = 0f;
+
+  // Glare removal: fuse up to FUSION_FRAME_COUNT buffered frames, taken from slightly different
+  // viewpoints, into each capture. Frames not rectified within FUSION_BUDGET_MS are left out.
+  private static final boolean FUSE_FRAMES = false;
+  private static final int FUSION_FRAME_COUNT = ZSL_FRAME_COUNT;
+  private static final FrameFusion.Method FUSION_METHOD = FrameFusion.Method.ROBUST_MEAN;
+  private static final long FUSION_BUDGET_MS = 400;
+
+  // Super-resolution: resolve captures at SUPER_RESOLUTION_SIZE from up to
+  // SUPER_RESOLUTION_FRAME_COUNT buffered frames instead. Takes precedence over FUSE_FRAMES.
+  private static final boolean SUPER_RESOLUTION = false;
+  private static final int SUPER_RESOLUTION_SIZE = 1024;
+  private static final int SUPER_RESOLUTION_FRAME_COUNT = ZSL_FRAME_COUNT;
+
+  // Game textures: also write each capture as a PNG quantized to TEXTURE_PALETTE, or to the palette
+  // asset TEXTURE_PALETTE_ASSET (one RRGGBB hex color per line) if set, with TEXTURE_DITHER.
+  private static final boolean QUANTIZE_TEXTURE = false;
+  private static final Palette TEXTURE_PALETTE = Palette.uniform(4);
+  private static final String TEXTURE_PALETTE_ASSET = null;
+  private static final PaletteQuantizer.Dither TEXTURE_DITHER =
+          PaletteQuantizer.Dither.FLOYD_STEINBERG;
+
+  // Texture atlases: targets with a template asset (see AtlasTemplate) also write the atlas the
+  // template describes, ATLAS_SCALE output pixels per atlas pixel, straight from the camera frame.
+  private static final Map<String, String> ATLAS_TEMPLATE_ASSETS = Collections.emptyMap();
+  private static final int ATLAS_SCALE = 4;
+
+  // Hands-free mode: capture once the tracked painting holds still on screen. Corners must stay
+  // within AUTO_CAPTURE_TOLERANCE_PX for AUTO_CAPTURE_STABLE_MS, seen at most
+  // AUTO_CAPTURE_MAX_ANGLE degrees off its normal, with AUTO_CAPTURE_MIN_INTERVAL_MS between
+  // captures. The same painting retriggers only after it is lost or its corners move more than
+  // AUTO_CAPTURE_REARM_PX.
+  private static final boolean AUTO_CAPTURE = false;
+  private static final float AUTO_CAPTURE_TOLERANCE_PX = 6f;
+  private static final long AUTO_CAPTURE_STABLE_MS = 800;
+  private static final long AUTO_CAPTURE_MIN_INTERVAL_MS = 3000;
+  private static final float AUTO_CAPTURE_MAX_ANGLE = 35f;
+  private static final float AUTO_CAPTURE_REARM_PX = 80f;
+
+  // Camera frame buffers kept for reuse per camera resolution: one per queued capture, one being
+  // processed and one being filled.
+  private static final int FRAME_POOL_SIZE = CAPTURE_QUEUE_CAPACITY + 2;
+
   private ArFragment mARFragment = null;
   private ImageView mFitToScanView = null;
   private Frame mFrame = null;
@@ -98,17 +195,77 @@ public class AugmentedImageActivity extends AppCompatActivity {
   // the database.
   private final Map<AugmentedImage, AugmentedImageNode> augmentedImageMap = new HashMap<>();
 
+  private final YuvFramePool mFramePool = new YuvFramePool(FRAME_POOL_SIZE);
+  private final FrameRingBuffer mFrameRing =
+          new FrameRingBuffer(ZSL_FRAME_COUNT, ZSL_MAX_BYTES, ZSL_SAMPLE_RATE_HZ);
+  private StartupOrchestrator mStartup = null;
+  // Built in the background once OpenCV is loaded; capturing is disabled until then.
+  private CaptureProcessor mCaptureProcessor = null;
+  private ImageWriter mImageWriter = null;
+  private RemapCache mRemapCache = null;
+  private StripWarper mStripWarper = null;
+  // One worker per core, shared by every row parallel capture stage.
+  private BandExecutor mBandExecutor = null;
+  private CaptureProfile mCaptureProfile = DEFAULT_CAPTURE_PROFILE;
+  private final AutoCaptureTrigger mAutoCaptureTrigger = new AutoCaptureTrigger(
+          AUTO_CAPTURE_TOLERANCE_PX,
+          AUTO_CAPTURE_STABLE_MS,
+          AUTO_CAPTURE_MIN_INTERVAL_MS,
+          AUTO_CAPTURE_MAX_ANGLE,
+          AUTO_CAPTURE_REARM_PX);
+  // Scratch state for projecting the painting corners, only used on the UI thread.
+  private final float[] mImagePose = new float[7];
+  private final float[] mCameraPose = new float[7];
+  private final float[] mIntrinsics = new float[4];
+  private final float[] mAutoCaptureCorners = new float[8];
+  // Frame timestamp at which a pending capture picks its frame, -1 if none is pending.
+  private long mCaptureDeadlineNs = -1;
+
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
 
-    if (!OpenCVLoader.initDebug()) {
-      Log.e(LOG_TAG, "OpenCVLoader initDebug failed.");
+    // Loads OpenCV, the corner models and the image database inputs in parallel.
+    mStartup = StartupOrchestrator.start(this);
+
+    if (RUN_RECTIFICATION_BENCHMARK) {
+      runAfterOpenCv(RectificationBenchmark::run, "RectificationBenchmark");
+    }
+    if (RUN_WARP_BENCHMARK) {
+      runAfterOpenCv(WarpBenchmark::run, "WarpBenchmark");
+    }
+    if (RUN_SUPER_RESOLUTION_BENCHMARK) {
+      runAfterOpenCv(SuperResolutionBenchmark::run, "SuperResolutionBenchmark");
+    }
+    if (RUN_TILED_WARP_BENCHMARK) {
+      runAfterOpenCv(TiledWarpBenchmark::run, "TiledWarpBenchmark");
     }
 
     setContentView(R.layout.activity_main);
 
-    createPhotoOutputFolder();
+    ImageFiles.createPhotoOutputFolder();
+    mImageWriter = new ImageWriter(
+            IMAGE_WRITE_QUEUE_CAPACITY, IMAGE_WRITE_FSYNC, IMAGE_JPEG_QUALITY);
+
+    if (REMAP_CACHE_MAX_BYTES > 0) {
+      mRemapCache = new RemapCache(REMAP_CACHE_TOLERANCE_PX, REMAP_CACHE_MAX_BYTES);
+    }
+    mBandExecutor = new BandExecutor(Runtime.getRuntime().availableProcessors());
+    if (TILED_WARP) {
+      mStripWarper = new StripWarper(mBandExecutor, TILED_WARP_MIN_SIZE);
+    }
+    mStartup.getOpenCvReady()
+            .thenApplyAsync(ignored -> createCaptureProcessor())
+            .whenComplete((processor, throwable) -> runOnUiThread(() -> {
+              if (throwable != null) {
+                Log.e(LOG_TAG, "Capture is not available", throwable);
+              } else if (isDestroyed()) {
+                processor.shutdown();
+              } else {
+                mCaptureProcessor = processor;
+                updateCaptureButton();
+              }
+            }));
 
     mARFragment = (ArFragment) getSupportFragmentManager().findFragmentById(R.id.ux_fragment);
     mFitToScanView = findViewById(R.id.image_view_fit_to_scan);
@@ -129,94 +286,322 @@ public class AugmentedImageActivity extends AppCompatActivity {
         captureFrameImage(mFrame);
       }
     });
+    fab.setOnLongClickListener(new View.OnLongClickListener() {
+      @Override
+      public boolean onLongClick(View view) {
+        mCaptureProfile = mCaptureProfile.next();
+        Toast.makeText(AugmentedImageActivity.this,
+                "Capture profile: " + mCaptureProfile, Toast.LENGTH_SHORT).show();
+        return true;
+      }
+    });
     fab.setEnabled(false);
   }
 
+  /**
+   * Builds the capture pipeline. Runs in the background once OpenCV is loaded, which also keeps
+   * reading the palette and atlas template assets off the UI thread.
+   */
+  private CaptureProcessor createCaptureProcessor() {
+    final long startUptime = SystemClock.uptimeMillis();
+    FrameRectifier rectifier = new FrameRectifier(
+            RECTIFICATION_MODE,
+            CROP_TO_PAINTING,
+            PAINTING_ROI_MARGIN,
+            mRemapCache,
+            PYRAMID_DOWNSAMPLING,
+            mStripWarper);
+    OutputSizePolicy outputSizePolicy = new OutputSizePolicy(
+            OUTPUT_SIZE, TARGET_OUTPUT_SIZES, ADAPTIVE_OUTPUT_SIZE, MIN_OUTPUT_SIZE);
+    CornerRefiner cornerRefiner = null;
+    if (REFINE_CORNERS) {
+      cornerRefiner = new CornerRefiner(CORNER_SEARCH_RADIUS, CORNER_MAX_SHIFT_PX);
+    }
+    FrameFusion frameFusion = null;
+    if (FUSE_FRAMES) {
+      frameFusion = new FrameFusion(rectifier, FUSION_METHOD,
+              Runtime.getRuntime().availableProcessors(), FUSION_BUDGET_MS, mBandExecutor);
+    }
+    SuperResolver superResolver = null;
+    if (SUPER_RESOLUTION) {
+      superResolver = new SuperResolver(mBandExecutor);
+    }
+    PaletteQuantizer paletteQuantizer = null;
+    if (QUANTIZE_TEXTURE) {
+      paletteQuantizer = new PaletteQuantizer(loadTexturePalette(), TEXTURE_DITHER, getCacheDir(),
+              mBandExecutor);
+    }
+    AtlasExtractor atlasExtractor = null;
+    Map<String, AtlasTemplate> atlasTemplates = loadAtlasTemplates();
+    if (!atlasTemplates.isEmpty()) {
+      atlasExtractor = new AtlasExtractor(atlasTemplates, ATLAS_SCALE);
+    }
+    CaptureProcessor captureProcessor = new CaptureProcessor(
+            CAPTURE_QUEUE_CAPACITY,
+            CAPTURE_OVERFLOW_POLICY,
+            SAVE_ORIGINAL_IMAGE,
+            rectifier,
+            outputSizePolicy,
+            cornerRefiner,
+            frameFusion,
+            superResolver,
+            SUPER_RESOLUTION_SIZE,
+            paletteQuantizer,
+            atlasExtractor,
+            mImageWriter,
+            new CaptureProcessor.Callback() {
+              @Override
+              public void onCaptureProcessed(CaptureResult result) {
+                AugmentedImageActivity.this.onCaptureProcessed(result);
+              }
+
+              @Override
+              public void onCaptureDropped(CaptureSnapshot snapshot) {
+                AugmentedImageActivity.this.onCaptureDropped(snapshot);
+              }
+
+              @Override
+              public void onCaptureFailed(CaptureSnapshot snapshot, Exception e) {
+                AugmentedImageActivity.this.onCaptureFailed(snapshot, e);
+              }
+            });
+    Log.i(LOG_TAG, "Capture pipeline built in " + (SystemClock.uptimeMillis() - startUptime)
+            + " ms");
+    return captureProcessor;
+  }
+
+  /** Runs a benchmark on its own thread once OpenCV is loaded. */
+  private void runAfterOpenCv(Runnable benchmark, String name) {
+    mStartup.getOpenCvReady().thenRun(() -> new Thread(benchmark, name).start());
+  }
+
+  /** Whether the capture pipeline is built; capturing also needs a tracked painting. */
+  private boolean isCaptureReady() {
+    return mCaptureProcessor != null;
+  }
+
+  /** Enables the capture button when a painting is tracked and capturing is ready. */
+  private void updateCaptureButton() {
+    FloatingActionButton fab = findViewById(R.id.floatingActionButton);
+    fab.setEnabled(isCaptureReady()
+            && mAugmentedImage != null
+            && mAugmentedImage.getTrackingState() == TrackingState.TRACKING);
+  }
+
   private void captureFrameImage(Frame mFrame) {
 
     if (mFrame == null) {
       Log.e(LOG_TAG, "CaptureFrameImage called with null mFrame");
       return;
     }
+    if (!isCaptureReady()) {
+      return;
+    }
+
+    if (CAPTURE_WINDOW_MS > 0 && ZSL_FRAME_COUNT > 0) {
+      // Let a few more frames reach the ring buffer, onUpdateFrame picks the sharpest afterwards.
+      if (mCaptureDeadlineNs < 0) {
+        mCaptureDeadlineNs = mFrame.getTimestamp() + CAPTURE_WINDOW_MS * 1000000L;
+      }
+      return;
+    }
+    captureSharpestFrame(mFrame);
+  }
+
+  /**
+   * Submits the sharpest buffered frame, or the current one if nothing is buffered. Frames below
+   * MIN_CAPTURE_SHARPNESS are rejected. With FUSE_FRAMES or SUPER_RESOLUTION the next best
+   * buffered frames go along to be combined into the capture.
+   */
+  private void captureSharpestFrame(Frame frame) {
+    YuvFrame cameraFrame;
+    float[] corners;
+    long timestampNs;
+    float sharpness;
+    List<YuvFrame> fusionFrames = new ArrayList<>();
+    List<float[]> fusionCorners = new ArrayList<>();
+
+    // Prefer a buffered frame, so the capture needs no new camera image.
+    FrameRingBuffer.Entry buffered = mFrameRing.takeBest();
+    if (buffered != null) {
+      final int frameCount = SUPER_RESOLUTION
+              ? SUPER_RESOLUTION_FRAME_COUNT : (FUSE_FRAMES ? FUSION_FRAME_COUNT : 1);
+      if (frameCount > 1) {
+        for (FrameRingBuffer.Entry entry : mFrameRing.takeBest(frameCount - 1)) {
+          fusionFrames.add(entry.frame);
+          fusionCorners.add(entry.corners);
+        }
+      }
+      cameraFrame = buffered.frame;
+      corners = buffered.corners;
+      timestampNs = buffered.timestampNs;
+      sharpness = buffered.sharpness;
+    } else {
+      cameraFrame = copyCameraFrame(frame);
+      if (cameraFrame == null) {
+        return;
+      }
+      corners = new float[8];
+      if (!projectCorners(frame, corners)) {
+        cameraFrame.release();
+        return;
+      }
+      timestampNs = frame.getTimestamp();
+      sharpness = SharpnessScorer.score(cameraFrame, corners);
+    }
+
+    if (sharpness < MIN_CAPTURE_SHARPNESS) {
+      Log.i(LOG_TAG, "Rejected capture of frame " + timestampNs + ", sharpness " + sharpness);
+      cameraFrame.release();
+      for (YuvFrame fusionFrame : fusionFrames) {
+        fusionFrame.release();
+      }
+      Toast.makeText(this, "Too blurry, hold still and try again", Toast.LENGTH_SHORT).show();
+      return;
+    }
+
+    mCaptureProcessor.submit(new CaptureSnapshot(
+            cameraFrame,
+            mCaptureProfile,
+            mAugmentedImage != null ? mAugmentedImage.getName() : null,
+            corners,
+            timestampNs,
+            System.currentTimeMillis(),
+            SystemClock.uptimeMillis(),
+            sharpness,
+            fusionFrames,
+            fusionCorners));
+  }
+
+  /** The palette asset if one is configured and readable, TEXTURE_PALETTE otherwise. */
+  private Palette loadTexturePalette() {
+    if (TEXTURE_PALETTE_ASSET == null) {
+      return TEXTURE_PALETTE;
+    }
+    try (InputStream is = getAssets().open(TEXTURE_PALETTE_ASSET)) {
+      return Palette.read(is);
+    } catch (IOException e) {
+      Log.e(LOG_TAG, "Failed to load palette " + TEXTURE_PALETTE_ASSET, e);
+      return TEXTURE_PALETTE;
+    }
+  }
+
+  /** Atlas templates by target name; templates that fail to load are left out. */
+  private Map<String, AtlasTemplate> loadAtlasTemplates() {
+    Map<String, AtlasTemplate> templates = new HashMap<>();
+    for (Map.Entry<String, String> entry : ATLAS_TEMPLATE_ASSETS.entrySet()) {
+      try (InputStream is = getAssets().open(entry.getValue())) {
+        templates.put(entry.getKey(), AtlasTemplate.read(is));
+      } catch (IOException e) {
+        Log.e(LOG_TAG, "Failed to load atlas template " + entry.getValue(), e);
+      }
+    }
+    return templates;
+  }
+
+  /** Copies the CPU image of {@code frame} into a pooled frame, or returns null if unavailable. */
+  private YuvFrame copyCameraFrame(Frame frame) {
+    Image cameraImage = getARCoreImage(frame);
+    if (cameraImage == null) {
+      return null;
+    }
+
+    // Copy the planes into a pooled frame so the camera image can be handed back right away.
+    YuvFrame cameraFrame;
+    try {
+      cameraFrame = CameraImageConverter.copyToFrame(cameraImage, mFramePool);
+    } finally {
+      cameraImage.close();
+    }
+    if (LOG_FRAME_STATS) {
+      Log.d(LOG_TAG, "Copied " + cameraFrame.getBytesCopied() + " bytes, frame pool hit rate "
+              + mFramePool.getHitRate());
+    }
+    return cameraFrame;
+  }
+
+  /**
+   * Projects the corners of the tracked painting into CPU camera image pixels, as x/y pairs for
+   * upper left, upper right, lower right and lower left. Also leaves the image and camera poses of
+   * {@code frame} in mImagePose and mCameraPose. Returns false if the painting is behind the
+   * camera.
+   */
+  private boolean projectCorners(Frame frame, float[] corners) {
+    Camera camera = frame.getCamera();
+    CameraIntrinsics intrinsics = camera.getImageIntrinsics();
+    intrinsics.getFocalLength(mIntrinsics, 0);
+    intrinsics.getPrincipalPoint(mIntrinsics, 2);
+    toArray(camera.getPose(), mCameraPose);
+    toArray(mAugmentedImage.getCenterPose(), mImagePose);
+
+    return CornerProjector.project(
+            mImagePose,
+            mAugmentedImage.getExtentX(),
+            mAugmentedImage.getExtentZ(),
+            mCameraPose,
+            mIntrinsics,
+            corners);
+  }
+
+  /** Buffers the current frame for zero shutter lag capture, at the ring's sample rate. */
+  private void sampleFrame(Frame frame) {
+    if (!isCaptureReady()
+            || mAugmentedImage == null
+            || mAugmentedImage.getTrackingState() != TrackingState.TRACKING
+            || !mFrameRing.shouldSample(frame.getTimestamp())) {
+      return;
+    }
+
+    float[] corners = new float[8];
+    if (!projectCorners(frame, corners)) {
+      return;
+    }
+    YuvFrame cameraFrame = copyCameraFrame(frame);
+    if (cameraFrame == null) {
+      return;
+    }
 
-    ArSceneView sceneView = mARFragment.getArSceneView();
-
-    Image cameraImage = getARCoreImage(mFrame);
-    byte[] cameraJpeg = extractImageDataFromARCore(cameraImage);
-    String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-    String cameraFileName = "aOriginal_" + timeStamp + ".jpeg";
-    saveImage(cameraJpeg, cameraFileName);
-
-    com.google.ar.sceneform.Camera camera = sceneView.getScene().getCamera();
-    Vector3 upperLeft = camera.worldToScreenPoint(mReferenceNodes[1].getWorldPosition());
-    Vector3 upperRight = camera.worldToScreenPoint(mReferenceNodes[2].getWorldPosition());
-    Vector3 lowerRight = camera.worldToScreenPoint(mReferenceNodes[3].getWorldPosition());
-    Vector3 lowerLeft = camera.worldToScreenPoint(mReferenceNodes[4].getWorldPosition());
-
-    final int sceneWidth = sceneView.getWidth();
-    final int sceneHeight = sceneView.getHeight();
-
-    final int cameraImageWidth = cameraImage.getWidth();
-    final int cameraImageHeight = cameraImage.getHeight();
-
-    List<Point> srcPts = new ArrayList<Point>();
-    srcPts.add(new Point((upperLeft.y / sceneHeight) * cameraImageWidth, (1.0 - (upperLeft.x / sceneWidth)) * cameraImageHeight));
-    srcPts.add(new Point((upperRight.y / sceneHeight) * cameraImageWidth, (1.0 - (upperRight.x / sceneWidth)) * cameraImageHeight));
-    srcPts.add(new Point((lowerRight.y / sceneHeight) * cameraImageWidth, (1.0 - (lowerRight.x / sceneWidth)) * cameraImageHeight));
-    srcPts.add(new Point((lowerLeft.y / sceneHeight) * cameraImageWidth, (1.0 - (lowerLeft.x / sceneWidth)) * cameraImageHeight));
-
-//    srcPts.add(new Point((upperLeft.x / sceneWidth) * cameraImageHeight, (upperLeft.y / sceneHeight) * cameraImageWidth));
-//    srcPts.add(new Point((upperRight.x / sceneWidth) * cameraImageHeight, (upperRight.y / sceneHeight) * cameraImageWidth));
-//    srcPts.add(new Point((lowerRight.x / sceneWidth) * cameraImageHeight, (lowerRight.y / sceneHeight) * cameraImageWidth));
-//    srcPts.add(new Point((lowerLeft.x / sceneWidth) * cameraImageHeight, (lowerLeft.y / sceneHeight) * cameraImageWidth));
-//    srcPts.add(new Point((upperLeft.y / sceneHeight) * cameraImageHeight, (upperLeft.x / sceneWidth) * cameraImageWidth));
-//    srcPts.add(new Point((upperRight.y / sceneHeight) * cameraImageHeight, (upperRight.x / sceneWidth) * cameraImageWidth));
-//    srcPts.add(new Point((lowerRight.y / sceneHeight) * cameraImageHeight, (lowerRight.x / sceneWidth) * cameraImageWidth));
-//    srcPts.add(new Point( (lowerLeft.y / sceneHeight) * cameraImageHeight, (lowerLeft.x / sceneWidth) * cameraImageWidth));
-
-    // top-left, top-right, bottom-right, bottom-left
-    List<Point> dstPoints = new ArrayList<Point>();
-    dstPoints.add(new Point(0, 0));
-    dstPoints.add(new Point(256, 0));
-    dstPoints.add(new Point(256, 256));
-    dstPoints.add(new Point(0, 256));
-
-    Mat srcMat = Converters.vector_Point2f_to_Mat(srcPts);
-    Mat dstMat = Converters.vector_Point2f_to_Mat(dstPoints);
-    Mat perspectiveTransform = Imgproc.getPerspectiveTransform(srcMat, dstMat);
-
-    //getting the input matrix from the given bitmap
-    Bitmap cameraBitmap = BitmapFactory.decodeByteArray(cameraJpeg, 0, cameraJpeg.length);
-    Mat inputMat = new Mat(cameraBitmap.getWidth(), cameraBitmap.getHeight(), CvType.CV_32S );
-    Utils.bitmapToMat(cameraBitmap, inputMat);
-
-    // MARK
-    // A
-    Imgproc.circle(inputMat, srcPts.get(0), 10, new Scalar(255, 0, 0), 5);
-    Imgproc.circle(inputMat, srcPts.get(1), 10, new Scalar(0, 255, 0), 5);
-    Imgproc.circle(inputMat, srcPts.get(2), 10, new Scalar(0, 0, 255), 5);
-    Imgproc.circle(inputMat, srcPts.get(3), 10, new Scalar(125, 125, 0), 5);
-    // B
-    Imgproc.circle(inputMat, new Point(0, 0), 20, new Scalar(255, 0, 0), 10);
-    Imgproc.circle(inputMat, new Point(cameraImageWidth, 0), 20, new Scalar(0, 255, 0), 10);
-    Imgproc.circle(inputMat, new Point(cameraImageWidth, cameraImageHeight), 20, new Scalar(0, 0, 255), 10);
-    Imgproc.circle(inputMat, new Point(0, cameraImageHeight), 20, new Scalar(125, 125, 0), 10);
-    Utils.matToBitmap(inputMat, cameraBitmap);
-    String markedFileName = "bMarked" + timeStamp + ".jpeg";
-    saveImage(cameraBitmap, markedFileName);
-
-    //getting the output matrix with the previously determined sizes
-    Mat outputMat = new Mat(256, 256, CvType.CV_32S);
-
-    //applying the transformation
-    Imgproc.warpPerspective(inputMat, outputMat, perspectiveTransform, new Size(256, 256));
-
-    //creating the output bitmap
-    Bitmap outputBitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
-    Utils.matToBitmap(outputMat, outputBitmap);
-
-    String finalFileName = "final_" + timeStamp + ".jpeg";
-    saveImage(outputBitmap, finalFileName);
+    final long scoreStartNs = SystemClock.elapsedRealtimeNanos();
+    float sharpness = SharpnessScorer.score(cameraFrame, corners);
+    if (LOG_FRAME_STATS) {
+      Log.d(LOG_TAG, "Frame " + frame.getTimestamp() + " sharpness " + sharpness + " scored in "
+              + (SystemClock.elapsedRealtimeNanos() - scoreStartNs) / 1000 + " us");
+    }
+
+    mFrameRing.add(new FrameRingBuffer.Entry(
+            cameraFrame,
+            corners,
+            Arrays.copyOf(mCameraPose, 7),
+            Arrays.copyOf(mImagePose, 7),
+            frame.getTimestamp(),
+            sharpness));
+  }
+
+  private void onCaptureProcessed(CaptureResult result) {
+    mStartup.onCaptured();
+    Log.i(LOG_TAG, "Saved " + result.getFileName() + " (queued " + result.getQueueMillis()
+            + " ms, processed in " + result.getProcessingMillis() + " ms, ROI "
+            + Math.round(result.getRoiAreaFraction() * 100) + "% of frame, "
+            + (Float.isNaN(result.getRoiSavedMillis())
+                    ? "" : "~" + result.getRoiSavedMillis() + " ms saved, ")
+            + "sharpness " + result.getSharpness() + ")");
+    Log.d(LOG_TAG, "Image writer queue " + mImageWriter.getQueueDepth() + ", last write "
+            + mImageWriter.getLastWriteMillis() + " ms, mean " + mImageWriter.getMeanWriteMillis()
+            + " ms");
+    if (mRemapCache != null) {
+      Log.d(LOG_TAG, "Remap cache " + mRemapCache.getHitCount() + " hits, "
+              + mRemapCache.getMissCount() + " misses, " + mRemapCache.getEvictionCount()
+              + " evictions, " + mRemapCache.getByteCount() / 1024 + " KB");
+    }
+    Toast.makeText(this, "Saved " + result.getFileName(), Toast.LENGTH_SHORT).show();
+  }
+
+  private void onCaptureDropped(CaptureSnapshot snapshot) {
+    Log.w(LOG_TAG, "Capture of frame " + snapshot.getFrameTimestampNs() + " dropped, queue is full");
+  }
+
+  private void onCaptureFailed(CaptureSnapshot snapshot, Exception e) {
+    Toast.makeText(this, "Capture failed: " + e.getMessage(), Toast.LENGTH_SHORT).show();
   }
 
   private Image getARCoreImage(Frame frame) {
@@ -261,6 +646,38 @@ public class AugmentedImageActivity extends AppCompatActivity {
 //    return BitmapFactory.decodeByteArray(byteForBitmap, 0, byteForBitmap.length);
 //  }
 
+  @Override
+  protected void onPause() {
+    super.onPause();
+    mCaptureDeadlineNs = -1;
+    mFrameRing.clear();
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    mFrameRing.clear();
+    if (mCaptureProcessor != null) {
+      mCaptureProcessor.shutdown();
+    }
+    if (mRemapCache != null) {
+      // Maps still in use by a running capture are freed when it finishes.
+      mRemapCache.clear();
+    }
+    // A capture still running finishes its bands on its own thread.
+    mBandExecutor.shutdown();
+    // Queued images are still written by the writer thread after this; give them a moment so a
+    // process kill right after is unlikely to lose them.
+    mImageWriter.shutdown();
+    try {
+      if (!mImageWriter.flush(IMAGE_FLUSH_TIMEOUT_MS)) {
+        Log.w(LOG_TAG, "Images still queued for storage: " + mImageWriter.getQueueDepth());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   @Override
   protected void onResume() {
     super.onResume();
@@ -269,6 +686,20 @@ public class AugmentedImageActivity extends AppCompatActivity {
     }
   }
 
+  /**
+   * Switches recognition to the paintings of a shard of the image catalog, e.g. when the user picks
+   * another event. Images of the previous shard stop tracking. Returns false if the catalog is not
+   * sharded.
+   */
+  public boolean switchImageShard(String shard) {
+    return ((AugmentedImageFragment) mARFragment).switchImageShard(shard);
+  }
+
+  /** Loads a shard of the image catalog in the background ahead of a switch to it. */
+  public void preloadImageShard(String shard) {
+    ((AugmentedImageFragment) mARFragment).preloadImageShard(shard);
+  }
+
   /**
    * Registered with the Sceneform Scene object, this method is called at the start of each frame.
    *
@@ -314,18 +745,59 @@ public class AugmentedImageActivity extends AppCompatActivity {
               }
             }
             mReferenceNodes = createReferenceNodes(mARFragment, mAugmentedImage);
+            mFrameRing.clear();
+            mAutoCaptureTrigger.reset();
+            if (mRemapCache != null) {
+              mRemapCache.clear();
+            }
           }
 
-          fab.setEnabled(true);
+          fab.setEnabled(isCaptureReady());
+          mStartup.onTracked();
 
           break;
 
         case STOPPED:
           augmentedImageMap.remove(augmentedImage);
           fab.setEnabled(false);
+          if (augmentedImage.equals(mAugmentedImage)) {
+            mCaptureDeadlineNs = -1;
+            mFrameRing.clear();
+          }
           break;
       }
     }
+
+    sampleFrame(frame);
+
+    if (AUTO_CAPTURE && isCaptureReady()) {
+      updateAutoCapture(frame);
+    }
+
+    if (mCaptureDeadlineNs >= 0 && frame.getTimestamp() >= mCaptureDeadlineNs) {
+      mCaptureDeadlineNs = -1;
+      captureSharpestFrame(frame);
+    }
+  }
+
+  /** Starts a capture when the auto capture trigger fires for the tracked painting. */
+  private void updateAutoCapture(Frame frame) {
+    if (mAugmentedImage == null
+            || mAugmentedImage.getTrackingState() != TrackingState.TRACKING
+            || !projectCorners(frame, mAutoCaptureCorners)) {
+      mAutoCaptureTrigger.reset();
+      return;
+    }
+
+    boolean fullTracking =
+            mAugmentedImage.getTrackingMethod() == AugmentedImage.TrackingMethod.FULL_TRACKING;
+    float viewAngle = AutoCaptureTrigger.viewAngleDegrees(mImagePose, mCameraPose);
+
+    if (mAutoCaptureTrigger.update(
+            frame.getTimestamp(), mAutoCaptureCorners, fullTracking, viewAngle)) {
+      Log.i(LOG_TAG, "Auto capture at view angle " + viewAngle);
+      captureFrameImage(frame);
+    }
   }
 
   private Node[] createReferenceNodes(ArFragment fragment, AugmentedImage augmentedImage) {
@@ -369,57 +841,10 @@ public class AugmentedImageActivity extends AppCompatActivity {
     return nodes;
   }
 
-  private static void createPhotoOutputFolder() {
-    try {
-      File file = generateSaveFile("foo");
-      File folder = file.getParentFile();
-      if (!folder.exists()) {
-        if (!folder.mkdirs()) {
-          throw new IOException();
-        }
-      }
-    } catch (IOException e) {
-      Log.e(LOG_TAG, "Failed to create saved_images directory: " + e.getMessage());
-      e.printStackTrace();
-    }
-  }
-
-  private static File generateSaveFile(String fileName) {
-    return new File(Environment.getExternalStorageDirectory(), "/saved_images/" + fileName);
-  }
-
-  private static void saveImage(byte[] data, String fileName) {
-    File file = generateSaveFile(fileName);
-    if (file.exists()) {
-      file.delete();
-    }
-
-    try {
-      FileOutputStream out = new FileOutputStream(file);
-      out.write(data);
-      out.flush();
-      out.close();
-    } catch (IOException e) {
-      Log.e(LOG_TAG, "Failed to save image: " + e.getMessage());
-      e.printStackTrace();
-    }
-  }
-
-  private static void saveImage(Bitmap bitmap, String fileName) {
-    File file = generateSaveFile(fileName);
-    if (file.exists()) {
-      file.delete();
-    }
-
-    try {
-      FileOutputStream out = new FileOutputStream(file);
-      bitmap.compress(Bitmap.CompressFormat.JPEG, 100, out);
-      out.flush();
-      out.close();
-    } catch (IOException e) {
-      Log.e(LOG_TAG, "Failed to save image: " + e.getMessage());
-      e.printStackTrace();
-    }
+  /** Writes a pose as translation x/y/z followed by rotation quaternion x/y/z/w. */
+  private static void toArray(Pose pose, float[] array) {
+    pose.getTranslation(array, 0);
+    pose.getRotationQuaternion(array, 3);
   }
 
   private static Vector3 fromArray(float[] array) {
@@ -429,38 +854,4 @@ public class AugmentedImageActivity extends AppCompatActivity {
     return new Vector3(x, y, z);
   }
 
-  private static byte[] convertYUV420888toNV21(Image image) {
-    byte[] nv21;
-    ByteBuffer yBuffer = image.getPlanes()[0].getBuffer();
-    ByteBuffer uBuffer = image.getPlanes()[1].getBuffer();
-    ByteBuffer vBuffer = image.getPlanes()[2].getBuffer();
-
-    int ySize = yBuffer.remaining();
-    int uSize = uBuffer.remaining();
-    int vSize = vBuffer.remaining();
-
-    nv21 = new byte[ySize + uSize + vSize];
-
-    //U and V are swapped
-    yBuffer.get(nv21, 0, ySize);
-    vBuffer.get(nv21, ySize, vSize);
-    uBuffer.get(nv21, ySize + vSize, uSize);
-
-    return nv21;
-  }
-
-  private static byte[] convertNV21toJPEG(byte[] nv21, int width, int height) {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    YuvImage yuv = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
-    yuv.compressToJpeg(new Rect(0, 0, width, height), 100, out);
-    return out.toByteArray();
-  }
-
-  private static byte[] extractImageDataFromARCore(Image image) {
-    byte[] nv21 = convertYUV420888toNV21(image);
-    byte[] data = convertNV21toJPEG(nv21, image.getWidth(), image.getHeight());
-    return data;
-
-  }
-
 }
@@ -7,6 +7,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -17,8 +18,15 @@ import com.google.ar.core.Config;
 import com.google.ar.core.Session;
 import com.mojang.common.helpers.SnackbarHelper;
 import com.google.ar.sceneform.ux.ArFragment;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Extend the ArFragment to customize the ARCore session configuration to include Augmented Images.
@@ -30,6 +38,7 @@ public class AugmentedImageFragment extends ArFragment {
   // directory.  Opening this image on your computer is a good quick way to test the augmented image
   // matching.
   private static final String DEFAULT_IMAGE_NAME = "default.jpg";
+  private static final float DEFAULT_IMAGE_WIDTH_METERS = 0.25f;
 
   // This is a pre-created database containing the sample image.
   private static final String SAMPLE_IMAGE_DATABASE = "sample_database.imgdb";
@@ -38,10 +47,42 @@ public class AugmentedImageFragment extends ArFragment {
   // Load a single image (true) or a pre-generated image database (false).
   private static final boolean USE_SINGLE_IMAGE = true;
 
+  // Databases built from images are serialized here, keyed by a hash of the images, and
+  // deserialized by later sessions instead of being built again.
+  private static final boolean CACHE_IMAGE_DATABASE = true;
+  private static final String IMAGE_DATABASE_CACHE_DIR = "image_databases";
+  private static final String SINGLE_IMAGE_DATABASE = "single_image";
+
+  // Build the database of a painting catalog in the background once the session runs, and swap it
+  // in for the default database when done. See ImageCatalog for the asset format.
+  private static final boolean USE_IMAGE_CATALOG = false;
+  private static final String IMAGE_CATALOG = "catalog.json";
+  // Catalog images are subsampled down to about this short side; ARCore needs no more detail.
+  private static final int CATALOG_MIN_IMAGE_SIDE = 480;
+
+  // Screen catalog images for trackability before adding them. Images with too few corners or
+  // corners on too little of the image are left out, low scoring ones are logged. Scores are
+  // cached by image content, so only new or changed images are screened again.
+  private static final boolean SCREEN_TEMPLATES = true;
+  private static final int MIN_TEMPLATE_FEATURES = 60;
+  private static final float MIN_TEMPLATE_COVERAGE = 0.25f;
+  private static final float FLAG_TEMPLATE_QUALITY = 0.5f;
+  private static final String TEMPLATE_SCORES_FILE = "template_scores";
+
+  // Give each shard of the catalog its own database, and recognize one shard at a time, see
+  // switchImageShard. Switching starts at the initial shard, or the first one if null. Serialized
+  // shards are kept in memory up to the given size, so switching back to them is quick.
+  private static final boolean SHARD_IMAGE_CATALOG = false;
+  private static final String INITIAL_IMAGE_SHARD = null;
+  private static final long MAX_CACHED_SHARD_BYTES = 16 * 1024 * 1024;
+
   // Do a runtime check for the OpenGL level available at runtime to avoid Sceneform crashing the
   // application.
   private static final double MIN_OPENGL_VERSION = 3.0;
 
+  private ImageDatabaseBuilder mImageDatabaseBuilder;
+  private ImageDatabaseShards mImageDatabaseShards;
+
   @Override
   public void onAttach(Context context) {
     super.onAttach(context);
@@ -77,16 +118,177 @@ public class AugmentedImageFragment extends ArFragment {
     return view;
   }
 
+  @Override
+  public void onDestroy() {
+    if (mImageDatabaseBuilder != null) {
+      mImageDatabaseBuilder.cancel();
+    }
+    if (mImageDatabaseShards != null) {
+      mImageDatabaseShards.shutdown();
+    }
+    super.onDestroy();
+  }
+
   @Override
   protected Config getSessionConfiguration(Session session) {
+    final long startUptime = SystemClock.uptimeMillis();
     Config config = super.getSessionConfiguration(session);
     if (!setupAugmentedImageDatabase(config, session)) {
       SnackbarHelper.getInstance()
           .showError(getActivity(), "Could not setup augmented image database");
     }
+    Log.i(TAG, "Session configuration took " + (SystemClock.uptimeMillis() - startUptime) + " ms");
+    if (USE_IMAGE_CATALOG) {
+      startImageCatalogBuild(session);
+    }
     return config;
   }
 
+  /**
+   * Builds the catalog database in the background and reconfigures the running session with it,
+   * which keeps the camera running.
+   */
+  private void startImageCatalogBuild(Session session) {
+    AssetManager assetManager = getContext().getAssets();
+    ImageCatalog catalog;
+    try (InputStream is = assetManager.open(IMAGE_CATALOG)) {
+      catalog = ImageCatalog.read(is);
+    } catch (IOException e) {
+      Log.e(TAG, "Could not read image catalog " + IMAGE_CATALOG, e);
+      return;
+    }
+    if (catalog.getEntries().isEmpty()) {
+      Log.w(TAG, "Image catalog " + IMAGE_CATALOG + " is empty");
+      return;
+    }
+
+    ImageDatabaseCache cache = CACHE_IMAGE_DATABASE ? getImageDatabaseCache(getContext()) : null;
+    TemplateScreener screener = SCREEN_TEMPLATES
+        ? new TemplateScreener(
+            new File(getContext().getCacheDir(), TEMPLATE_SCORES_FILE),
+            MIN_TEMPLATE_FEATURES,
+            MIN_TEMPLATE_COVERAGE,
+            FLAG_TEMPLATE_QUALITY)
+        : null;
+    if (mImageDatabaseBuilder != null) {
+      mImageDatabaseBuilder.cancel();
+    }
+    if (mImageDatabaseShards != null) {
+      mImageDatabaseShards.shutdown();
+      mImageDatabaseShards = null;
+    }
+    // Leave a core for rendering and tracking.
+    final int decodeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    if (SHARD_IMAGE_CATALOG) {
+      // The shards keep their own cache of serialized databases.
+      mImageDatabaseBuilder =
+          new ImageDatabaseBuilder(
+              assetManager, null, screener, decodeThreads, CATALOG_MIN_IMAGE_SIDE);
+      mImageDatabaseShards =
+          new ImageDatabaseShards(
+              session, catalog, mImageDatabaseBuilder, cache, MAX_CACHED_SHARD_BYTES);
+      switchImageShard(
+          INITIAL_IMAGE_SHARD != null
+              ? INITIAL_IMAGE_SHARD
+              : mImageDatabaseShards.getShardNames().get(0));
+      return;
+    }
+
+    mImageDatabaseBuilder =
+        new ImageDatabaseBuilder(
+            assetManager, cache, screener, decodeThreads, CATALOG_MIN_IMAGE_SIDE);
+    mImageDatabaseBuilder.start(
+        session,
+        catalog,
+        new ImageDatabaseBuilder.Listener() {
+          @Override
+          public void onProgress(int addedCount, int totalCount) {
+            if (getActivity() != null && addedCount < totalCount) {
+              SnackbarHelper.getInstance()
+                  .showMessage(
+                      getActivity(), "Loading paintings " + addedCount + "/" + totalCount);
+            }
+          }
+
+          @Override
+          public void onDatabaseReady(AugmentedImageDatabase database) {
+            try {
+              Config config = session.getConfig();
+              config.setAugmentedImageDatabase(database);
+              session.configure(config);
+              Log.i(TAG, "Switched to image catalog " + catalog.getName() + " with "
+                  + database.getNumImages() + " images");
+            } catch (RuntimeException e) {
+              // E.g. the session was closed meanwhile.
+              Log.e(TAG, "Could not switch to image catalog " + catalog.getName(), e);
+            }
+            if (getActivity() != null) {
+              SnackbarHelper.getInstance().hide(getActivity());
+            }
+          }
+
+          @Override
+          public void onBuildFailed(Exception e) {
+            if (getActivity() != null) {
+              // The default database keeps working, so report without finishing.
+              SnackbarHelper.getInstance()
+                  .showMessageWithDismiss(
+                      getActivity(), "Could not load paintings: " + e.getMessage());
+            }
+          }
+        });
+  }
+
+  /** The shards of the image catalog, empty unless the catalog is sharded and loaded. */
+  public List<String> getImageShardNames() {
+    return mImageDatabaseShards != null
+        ? mImageDatabaseShards.getShardNames()
+        : Collections.<String>emptyList();
+  }
+
+  /**
+   * Loads a shard of the image catalog in the background, so a later switch to it only needs to
+   * reconfigure the session. Does nothing unless the catalog is sharded.
+   */
+  public void preloadImageShard(String shard) {
+    if (mImageDatabaseShards != null) {
+      mImageDatabaseShards.preload(shard);
+    }
+  }
+
+  /**
+   * Switches recognition to the paintings of a shard of the image catalog. Returns false if the
+   * catalog is not sharded.
+   */
+  public boolean switchImageShard(String shard) {
+    if (mImageDatabaseShards == null) {
+      return false;
+    }
+    if (getActivity() != null) {
+      SnackbarHelper.getInstance().showMessage(getActivity(), "Loading paintings of " + shard);
+    }
+    mImageDatabaseShards.switchTo(
+        shard,
+        new ImageDatabaseShards.Listener() {
+          @Override
+          public void onShardActive(String shard, int imageCount) {
+            if (getActivity() != null) {
+              SnackbarHelper.getInstance().hide(getActivity());
+            }
+          }
+
+          @Override
+          public void onShardFailed(String shard, Exception e) {
+            if (getActivity() != null) {
+              SnackbarHelper.getInstance()
+                  .showMessageWithDismiss(getActivity(), "Could not load paintings of " + shard);
+            }
+          }
+        });
+    return true;
+  }
+
   private boolean setupAugmentedImageDatabase(Config config, Session session) {
     AugmentedImageDatabase augmentedImageDatabase;
 
@@ -103,17 +305,10 @@ public class AugmentedImageFragment extends ArFragment {
     // * shorter setup time
     // * doesn't require images to be packaged in apk.
     if (USE_SINGLE_IMAGE) {
-      Bitmap augmentedImageBitmap = loadAugmentedImageBitmap(assetManager);
-      if (augmentedImageBitmap == null) {
+      augmentedImageDatabase = loadSingleImageDatabase(session);
+      if (augmentedImageDatabase == null) {
         return false;
       }
-
-      augmentedImageDatabase = new AugmentedImageDatabase(session);
-      augmentedImageDatabase.addImage(DEFAULT_IMAGE_NAME, augmentedImageBitmap, 0.25f);
-      // If the physical size of the image is known, you can instead use:
-      //     augmentedImageDatabase.addImage("image_name", augmentedImageBitmap, widthInMeters);
-      // This will improve the initial detection speed. ARCore will still actively estimate the
-      // physical size of the image as it is viewed from multiple viewpoints.
     } else {
       // This is an alternative way to initialize an AugmentedImageDatabase instance,
       // load a pre-existing augmented image database.
@@ -129,9 +324,164 @@ public class AugmentedImageFragment extends ArFragment {
     return true;
   }
 
-  private Bitmap loadAugmentedImageBitmap(AssetManager assetManager) {
-    try (InputStream is = assetManager.open(DEFAULT_IMAGE_NAME)) {
-      return BitmapFactory.decodeStream(is);
+  /**
+   * What the default image database needs before there is a session: the stored database if
+   * there is one for the current image content, and the decoded image otherwise.
+   */
+  static final class ImageDatabaseInputs {
+    // Cache key of the image content, null if the cache is disabled.
+    final String key;
+    // Stored database, or null if it has to be built.
+    final byte[] serialized;
+    // Image to build the database from, or null if it is stored.
+    final Bitmap bitmap;
+
+    ImageDatabaseInputs(String key, byte[] serialized, Bitmap bitmap) {
+      this.key = key;
+      this.serialized = serialized;
+      this.bitmap = bitmap;
+    }
+  }
+
+  /**
+   * Reads the default image and its stored database, or decodes the image if none is stored. Runs
+   * on any thread, so startup can do it before the session exists. Returns null if the image
+   * cannot be loaded, or if the default image is not used.
+   */
+  static ImageDatabaseInputs prepareImageDatabase(Context context) {
+    if (!USE_SINGLE_IMAGE) {
+      return null;
+    }
+    final long startUptime = SystemClock.uptimeMillis();
+    byte[] imageBytes = readAsset(context.getAssets(), DEFAULT_IMAGE_NAME);
+    if (imageBytes == null) {
+      return null;
+    }
+
+    String key = null;
+    if (CACHE_IMAGE_DATABASE) {
+      key = new ImageDatabaseCache.Key()
+          .addImage(DEFAULT_IMAGE_NAME, imageBytes, DEFAULT_IMAGE_WIDTH_METERS)
+          .build();
+      byte[] serialized = getImageDatabaseCache(context).loadSerialized(SINGLE_IMAGE_DATABASE, key);
+      if (serialized != null) {
+        return new ImageDatabaseInputs(key, serialized, null);
+      }
+    }
+
+    Bitmap augmentedImageBitmap = BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length);
+    if (augmentedImageBitmap == null) {
+      Log.e(TAG, "Could not decode augmented image bitmap.");
+      return null;
+    }
+    Log.d(TAG, "Decoded augmented image in " + (SystemClock.uptimeMillis() - startUptime) + " ms");
+    return new ImageDatabaseInputs(key, null, augmentedImageBitmap);
+  }
+
+  /**
+   * Returns the database of the default image, deserialized if it was stored for the current image
+   * content and built and stored otherwise. Returns null if the image cannot be loaded.
+   */
+  private AugmentedImageDatabase loadSingleImageDatabase(Session session) {
+    final long startUptime = SystemClock.uptimeMillis();
+    ImageDatabaseInputs inputs = takePreparedInputs();
+    if (inputs == null) {
+      inputs = prepareImageDatabase(getContext());
+      if (inputs == null) {
+        return null;
+      }
+    }
+
+    if (inputs.serialized != null) {
+      try {
+        AugmentedImageDatabase cached = AugmentedImageDatabase.deserialize(
+            session, new ByteArrayInputStream(inputs.serialized));
+        Log.i(TAG, "Image database from cache in " + (SystemClock.uptimeMillis() - startUptime)
+            + " ms");
+        return cached;
+      } catch (IOException | RuntimeException e) {
+        // E.g. stored by an incompatible ARCore version; prepare again to build it.
+        Log.w(TAG, "Discarding unreadable stored image database: " + e.getMessage());
+        getImageDatabaseCache(getContext()).remove(SINGLE_IMAGE_DATABASE, inputs.key);
+        inputs = prepareImageDatabase(getContext());
+        if (inputs == null || inputs.bitmap == null) {
+          return null;
+        }
+      }
+    }
+
+    AugmentedImageDatabase augmentedImageDatabase = new AugmentedImageDatabase(session);
+    augmentedImageDatabase.addImage(
+        DEFAULT_IMAGE_NAME, inputs.bitmap, DEFAULT_IMAGE_WIDTH_METERS);
+    // If the physical size of the image is known, you can instead use:
+    //     augmentedImageDatabase.addImage("image_name", augmentedImageBitmap, widthInMeters);
+    // This will improve the initial detection speed. ARCore will still actively estimate the
+    // physical size of the image as it is viewed from multiple viewpoints.
+    Log.i(TAG, "Image database built in " + (SystemClock.uptimeMillis() - startUptime) + " ms");
+
+    if (inputs.key != null) {
+      storeInBackground(augmentedImageDatabase, inputs.key);
+    }
+    return augmentedImageDatabase;
+  }
+
+  /**
+   * Serializes the database of the default image into memory and writes it to the cache on a
+   * background thread, so the session configuration does not wait on storage.
+   */
+  private void storeInBackground(AugmentedImageDatabase database, String key) {
+    final long startUptime = SystemClock.uptimeMillis();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      database.serialize(out);
+    } catch (IOException e) {
+      Log.w(TAG, "Could not serialize image database: " + e.getMessage());
+      return;
+    }
+    final byte[] serialized = out.toByteArray();
+    Log.d(TAG, "Serialized image database in " + (SystemClock.uptimeMillis() - startUptime)
+        + " ms");
+    final ImageDatabaseCache cache = getImageDatabaseCache(getContext());
+    CompletableFuture.runAsync(
+        () -> cache.storeSerialized(serialized, SINGLE_IMAGE_DATABASE, key));
+  }
+
+  /**
+   * Returns the inputs startup prepared in the background, waiting for them if needed, or null if
+   * there are none.
+   */
+  private static ImageDatabaseInputs takePreparedInputs() {
+    StartupOrchestrator startup = StartupOrchestrator.getInstance();
+    CompletableFuture<ImageDatabaseInputs> prepared =
+        startup != null ? startup.takeImageDatabaseInputs() : null;
+    if (prepared == null) {
+      return null;
+    }
+    final long waitStartUptime = SystemClock.uptimeMillis();
+    try {
+      ImageDatabaseInputs inputs = prepared.join();
+      Log.d(TAG, "Waited " + (SystemClock.uptimeMillis() - waitStartUptime)
+          + " ms for prepared image database inputs");
+      return inputs;
+    } catch (CompletionException e) {
+      // Logged by startup; preparing again reports the error here.
+      return null;
+    }
+  }
+
+  private static ImageDatabaseCache getImageDatabaseCache(Context context) {
+    return new ImageDatabaseCache(new File(context.getCacheDir(), IMAGE_DATABASE_CACHE_DIR));
+  }
+
+  private static byte[] readAsset(AssetManager assetManager, String name) {
+    try (InputStream is = assetManager.open(name)) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[16 * 1024];
+      int read;
+      while ((read = is.read(buffer)) != -1) {
+        bytes.write(buffer, 0, read);
+      }
+      return bytes.toByteArray();
     } catch (IOException e) {
       Log.e(TAG, "IO exception loading augmented image bitmap.", e);
     }
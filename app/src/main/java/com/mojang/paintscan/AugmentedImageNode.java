@@ -39,8 +39,8 @@ public class AugmentedImageNode extends AnchorNode {
   private AugmentedImage image;
 
   // Models of the 4 corners.  We use completable futures here to simplify
-  // the error handling and asynchronous loading.  The loading is started with the
-  // first construction of an instance, and then used when the image is set.
+  // the error handling and asynchronous loading.  The loading is started by loadModels at startup,
+  // or else with the first construction of an instance, and then used when the image is set.
   private static CompletableFuture<ModelRenderable> ulCorner;
   private static CompletableFuture<ModelRenderable> urCorner;
   private static CompletableFuture<ModelRenderable> lrCorner;
@@ -48,6 +48,15 @@ public class AugmentedImageNode extends AnchorNode {
 
   public AugmentedImageNode(Context context) {
     // Upon construction, start loading the models for the corners of the frame.
+    loadModels(context);
+  }
+
+  /**
+   * Starts loading the corner models if they are not loading yet, so they are ready by the time
+   * the first image is tracked. Must be called on the UI thread. The future completes when all
+   * four are loaded.
+   */
+  static CompletableFuture<Void> loadModels(Context context) {
     if (ulCorner == null) {
       ulCorner =
           ModelRenderable.builder()
@@ -66,6 +75,7 @@ public class AugmentedImageNode extends AnchorNode {
               .setSource(context, Uri.parse("models/frame_lower_right.sfb"))
               .build();
     }
+    return CompletableFuture.allOf(ulCorner, urCorner, llCorner, lrCorner);
   }
 
   /**
@@ -87,6 +97,9 @@ public class AugmentedImageNode extends AnchorNode {
                 Log.e(TAG, "Exception loading", throwable);
                 return null;
               });
+      // The call once loaded creates the anchor and corners; creating them now as well would
+      // leave a second anchor and four corners without models behind.
+      return;
     }
 
     // Set the anchor based on the center of the image.
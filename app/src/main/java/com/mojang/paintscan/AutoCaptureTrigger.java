@@ -0,0 +1,129 @@
+package com.mojang.paintscan;
+
+/**
+ * Decides when to capture without a button press. A capture triggers once the painting has been
+ * fully tracked, seen at an acceptable angle and held still on screen for a while:
+ *
+ * <ul>
+ *   <li>every projected corner stayed within {@code pixelTolerance} of where it was when the
+ *       steady period began, for at least {@code stableMillis};
+ *   <li>at least {@code minIntervalMillis} passed since the previous trigger.
+ * </ul>
+ *
+ * <p>After a trigger the same painting is not captured again until it is lost from view, or until
+ * its corners have moved more than {@code rearmDistance} pixels away from where it was captured.
+ *
+ * <p>Allocation free per frame. Not thread safe: feed it from the frame update loop.
+ */
+final class AutoCaptureTrigger {
+
+  private final float pixelTolerance;
+  private final long stableNs;
+  private final long minIntervalNs;
+  private final float maxViewAngleDegrees;
+  private final float rearmDistance;
+
+  private final float[] steadyCorners = new float[8];
+  private final float[] capturedCorners = new float[8];
+  private long steadySinceNs = -1;
+  private long lastTriggerNs = -1;
+  private boolean armed = true;
+
+  AutoCaptureTrigger(
+      float pixelTolerance,
+      long stableMillis,
+      long minIntervalMillis,
+      float maxViewAngleDegrees,
+      float rearmDistance) {
+    this.pixelTolerance = pixelTolerance;
+    this.stableNs = stableMillis * 1000000L;
+    this.minIntervalNs = minIntervalMillis * 1000000L;
+    this.maxViewAngleDegrees = maxViewAngleDegrees;
+    this.rearmDistance = rearmDistance;
+  }
+
+  /**
+   * Feeds the state of one frame and returns true if a capture should be taken now.
+   *
+   * @param corners projected painting corners in frame pixels, see {@link CaptureSnapshot}.
+   * @param fullTracking whether the painting is currently seen by the camera, not just assumed at
+   *     its last known pose. A painting that is not fully tracked counts as lost.
+   * @param viewAngleDegrees angle between the painting normal and the direction to the camera.
+   */
+  public boolean update(
+      long timestampNs, float[] corners, boolean fullTracking, float viewAngleDegrees) {
+    if (!fullTracking) {
+      reset();
+      return false;
+    }
+    if (viewAngleDegrees > maxViewAngleDegrees) {
+      steadySinceNs = -1;
+      return false;
+    }
+
+    if (!armed && maxDistance(corners, capturedCorners) > rearmDistance) {
+      armed = true;
+    }
+
+    if (steadySinceNs < 0 || maxDistance(corners, steadyCorners) > pixelTolerance) {
+      System.arraycopy(corners, 0, steadyCorners, 0, 8);
+      steadySinceNs = timestampNs;
+      return false;
+    }
+
+    if (!armed
+        || timestampNs - steadySinceNs < stableNs
+        || (lastTriggerNs >= 0 && timestampNs - lastTriggerNs < minIntervalNs)) {
+      return false;
+    }
+
+    armed = false;
+    lastTriggerNs = timestampNs;
+    steadySinceNs = -1;
+    System.arraycopy(corners, 0, capturedCorners, 0, 8);
+    return true;
+  }
+
+  /** Forgets the painting, e.g. when it is lost or replaced, so it can trigger again. */
+  public void reset() {
+    armed = true;
+    steadySinceNs = -1;
+  }
+
+  /**
+   * Angle in degrees between the normal of a plane with pose {@code planePose} and the direction
+   * from the plane center to the camera. Poses are translation x/y/z followed by rotation
+   * quaternion x/y/z/w; augmented images lie in their local X-Z plane with +Y as normal.
+   */
+  static float viewAngleDegrees(float[] planePose, float[] cameraPose) {
+    float tx = cameraPose[0] - planePose[0];
+    float ty = cameraPose[1] - planePose[1];
+    float tz = cameraPose[2] - planePose[2];
+    float length = (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+    if (length == 0f) {
+      return 0f;
+    }
+
+    // Local +Y axis rotated by the plane quaternion.
+    float qx = planePose[3];
+    float qy = planePose[4];
+    float qz = planePose[5];
+    float qw = planePose[6];
+    float nx = 2f * (qx * qy - qw * qz);
+    float ny = 1f - 2f * (qx * qx + qz * qz);
+    float nz = 2f * (qy * qz + qw * qx);
+
+    float cos = (nx * tx + ny * ty + nz * tz) / length;
+    return (float) Math.toDegrees(Math.acos(Math.max(-1f, Math.min(1f, cos))));
+  }
+
+  private static float maxDistance(float[] a, float[] b) {
+    float max = 0f;
+    for (int i = 0; i < 8; i += 2) {
+      float dx = a[i] - b[i];
+      float dy = a[i + 1] - b[i + 1];
+      max = Math.max(max, dx * dx + dy * dy);
+    }
+    return (float) Math.sqrt(max);
+  }
+}
@@ -0,0 +1,151 @@
+package com.mojang.paintscan;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker pool shared by the row parallel stages of a capture, such as {@link StripWarper}, {@link
+ * PaletteQuantizer} and {@link SuperResolver}, so they do not each keep a thread per core.
+ *
+ * <p>{@link #forEachBand} splits a row range into bands. The calling thread and up to {@code
+ * threadCount - 1} workers take bands one at a time until none are left, so a call completes even
+ * while every worker is busy with another stage. It returns only after every band has finished,
+ * also when one failed or the caller was interrupted, so no band writes into its output
+ * afterwards. Thread safe.
+ */
+final class BandExecutor {
+  private static final String TAG = "BandExecutor";
+
+  /** Runs every band on the calling thread, for single threaded use. */
+  static final BandExecutor CALLING_THREAD = new BandExecutor(1);
+
+  /** Processes the rows {@code [fromRow, toRow)}. */
+  interface Band {
+    void run(int fromRow, int toRow);
+  }
+
+  /** The bands of one {@link #forEachBand} call, taken by the caller and the workers alike. */
+  private static final class Bands implements Runnable {
+    private final int rows;
+    private final int bandRows;
+    private final int count;
+    private final Band band;
+    private final AtomicInteger next = new AtomicInteger();
+    // Guarded by this.
+    private int finished;
+    private Throwable failure;
+
+    Bands(int rows, int bandRows, Band band) {
+      this.rows = rows;
+      this.bandRows = bandRows;
+      this.count = (rows + bandRows - 1) / bandRows;
+      this.band = band;
+    }
+
+    @Override
+    public void run() {
+      int index;
+      while ((index = next.getAndIncrement()) < count) {
+        Throwable error = null;
+        try {
+          final int fromRow = index * bandRows;
+          band.run(fromRow, Math.min(rows, fromRow + bandRows));
+        } catch (RuntimeException | Error e) {
+          error = e;
+        }
+        synchronized (this) {
+          if (failure == null) {
+            failure = error;
+          }
+          if (++finished == count) {
+            notifyAll();
+          }
+        }
+      }
+    }
+
+    /** Waits for every band, then throws if one failed. */
+    synchronized void awaitAll() {
+      boolean interrupted = false;
+      while (finished < count) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (failure != null) {
+        throw new IllegalStateException("Band failed", failure);
+      }
+    }
+  }
+
+  private final int threadCount;
+  // Null when single threaded, then bands run on the calling thread.
+  private final ExecutorService executor;
+
+  /** @param threadCount bands run in parallel, including the one on the calling thread. */
+  BandExecutor(int threadCount) {
+    this.threadCount = Math.max(1, threadCount);
+    if (this.threadCount > 1) {
+      executor =
+          Executors.newFixedThreadPool(
+              this.threadCount - 1,
+              runnable -> {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+              });
+    } else {
+      executor = null;
+    }
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  /** Stops the worker threads. Later calls run all bands on the calling thread. */
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Runs {@code band} over {@code rows} rows split into one band per thread. */
+  public void forEachBand(int rows, Band band) {
+    forEachBand(rows, (rows + threadCount - 1) / threadCount, band);
+  }
+
+  /**
+   * Runs {@code band} over {@code rows} rows split into bands of {@code bandRows} rows, the last
+   * possibly shorter. Throws {@link IllegalStateException} if a band failed.
+   */
+  public void forEachBand(int rows, int bandRows, Band band) {
+    if (rows <= 0) {
+      return;
+    }
+    bandRows = Math.max(1, bandRows);
+    if (executor == null || rows <= bandRows) {
+      band.run(0, rows);
+      return;
+    }
+
+    Bands bands = new Bands(rows, bandRows, band);
+    final int helpers = Math.min(threadCount, bands.count) - 1;
+    try {
+      for (int i = 0; i < helpers; i++) {
+        executor.execute(bands);
+      }
+    } catch (RejectedExecutionException e) {
+      // Shut down; the calling thread runs the remaining bands.
+    }
+    bands.run();
+    bands.awaitAll();
+  }
+}
@@ -0,0 +1,150 @@
+package com.mojang.paintscan;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts the YUV_420_888 CPU images returned by ARCore into OpenCV matrices.
+ *
+ * <p>The camera planes are copied into a pooled, tightly packed {@link YuvFrame} honoring their row
+ * and pixel strides. The Y and VU halves of that frame are then wrapped in {@link Mat}s and
+ * converted to RGBA with {@link Imgproc#cvtColorTwoPlane}, so no JPEG encode/decode or intermediate
+ * {@link android.graphics.Bitmap} is needed on the capture path.
+ */
+final class CameraImageConverter {
+
+  private CameraImageConverter() {}
+
+  /**
+   * Copies a YUV_420_888 image into a frame from {@code pool}. The image can be closed as soon as
+   * this returns.
+   */
+  static YuvFrame copyToFrame(Image image, YuvFramePool pool) {
+    YuvFrame frame = pool.acquire(image.getWidth(), image.getHeight());
+    frame.setBytesCopied(copyToNV21(image, frame));
+    return frame;
+  }
+
+  /** Converts a frame to a newly allocated RGBA {@link Mat}. */
+  static Mat toRgba(YuvFrame frame) {
+    final int width = frame.getWidth();
+    final int height = frame.getHeight();
+
+    Mat rgba = new Mat();
+    Mat yMat = new Mat(height, width, CvType.CV_8UC1, frame.getYPlane());
+    Mat vuMat = new Mat(height / 2, width / 2, CvType.CV_8UC2, frame.getVUPlane());
+    Imgproc.cvtColorTwoPlane(yMat, vuMat, rgba, Imgproc.COLOR_YUV2RGBA_NV21);
+    yMat.release();
+    vuMat.release();
+
+    return rgba;
+  }
+
+  /**
+   * Encodes the whole frame as a JPEG. {@link YuvImage} needs an array, so the frame is copied
+   * first, see {@link YuvFrame#toByteArray}; captures encode it after the result is delivered.
+   */
+  static byte[] toJpeg(YuvFrame frame) {
+    final int width = frame.getWidth();
+    final int height = frame.getHeight();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    YuvImage yuv = new YuvImage(frame.toByteArray(), ImageFormat.NV21, width, height, null);
+    yuv.compressToJpeg(new Rect(0, 0, width, height), 100, out);
+    return out.toByteArray();
+  }
+
+  /** Fills {@code frame} with the NV21 layout of {@code image} and returns the bytes copied. */
+  private static int copyToNV21(Image image, YuvFrame frame) {
+    final int width = image.getWidth();
+    final int height = image.getHeight();
+
+    Image.Plane[] planes = image.getPlanes();
+    Image.Plane yPlane = planes[0];
+    Image.Plane uPlane = planes[1];
+    Image.Plane vPlane = planes[2];
+
+    ByteBuffer dst = frame.getBuffer().duplicate();
+    dst.clear();
+
+    int copied = copyRows(yPlane.getBuffer(), yPlane.getRowStride(), width, height, dst);
+
+    final int chromaWidth = width / 2;
+    final int chromaHeight = height / 2;
+    if (uPlane.getRowStride() == vPlane.getRowStride() && isInterleavedNV21(uPlane, vPlane)) {
+      // Fast path: the V plane already starts an interleaved VUVU... block, so every chroma row can
+      // be copied in bulk. The V buffer ends one byte before the last U sample, which is taken from
+      // the U plane instead.
+      copied += copyRows(vPlane.getBuffer(), vPlane.getRowStride(), chromaWidth * 2, chromaHeight, dst);
+      if (dst.hasRemaining()) {
+        ByteBuffer uBuffer = uPlane.getBuffer();
+        dst.put(uBuffer.get((chromaHeight - 1) * uPlane.getRowStride() + (chromaWidth - 1) * 2));
+        copied++;
+      }
+    } else {
+      ByteBuffer uBuffer = uPlane.getBuffer();
+      ByteBuffer vBuffer = vPlane.getBuffer();
+      final int uRowStride = uPlane.getRowStride();
+      final int vRowStride = vPlane.getRowStride();
+      final int uPixelStride = uPlane.getPixelStride();
+      final int vPixelStride = vPlane.getPixelStride();
+      for (int row = 0; row < chromaHeight; row++) {
+        for (int col = 0; col < chromaWidth; col++) {
+          dst.put(vBuffer.get(row * vRowStride + col * vPixelStride));
+          dst.put(uBuffer.get(row * uRowStride + col * uPixelStride));
+        }
+      }
+      copied += 2 * chromaWidth * chromaHeight;
+    }
+
+    return copied;
+  }
+
+  /**
+   * Copies {@code rows} rows of {@code rowBytes} bytes from a plane with the given row stride. A
+   * plane without row padding is copied with one bulk put. The last row may be short when the plane
+   * buffer does not include trailing padding.
+   */
+  private static int copyRows(ByteBuffer src, int rowStride, int rowBytes, int rows, ByteBuffer dst) {
+    ByteBuffer view = src.duplicate();
+    final int end = view.limit();
+    if (rowStride == rowBytes) {
+      view.position(0).limit(Math.min(end, rowBytes * rows));
+      int count = view.remaining();
+      dst.put(view);
+      return count;
+    }
+    int count = 0;
+    for (int row = 0; row < rows; row++) {
+      int start = row * rowStride;
+      view.limit(Math.min(end, start + rowBytes)).position(start);
+      count += view.remaining();
+      dst.put(view);
+    }
+    return count;
+  }
+
+  /**
+   * Returns true if the U and V planes are two views of one interleaved VU buffer, with V first.
+   * That is the NV21 chroma layout, which lets the chroma rows be copied without de-interleaving.
+   */
+  private static boolean isInterleavedNV21(Image.Plane uPlane, Image.Plane vPlane) {
+    if (uPlane.getPixelStride() != 2 || vPlane.getPixelStride() != 2) {
+      return false;
+    }
+    Mat uProbe = new Mat(1, 1, CvType.CV_8UC1, uPlane.getBuffer());
+    Mat vProbe = new Mat(1, 1, CvType.CV_8UC1, vPlane.getBuffer());
+    boolean interleaved = uProbe.dataAddr() == vProbe.dataAddr() + 1;
+    uProbe.release();
+    vProbe.release();
+    return interleaved;
+  }
+}
@@ -0,0 +1,393 @@
+package com.mojang.paintscan;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs captures on a dedicated worker thread. Snapshots wait in a bounded queue; when it is full
+ * the {@link OverflowPolicy} decides which capture is dropped, so rapid taps never block the UI
+ * thread or build up unbounded work. Results are posted back to the UI thread through a
+ * {@link Callback}, until {@link #shutdown} is called.
+ */
+final class CaptureProcessor {
+  private static final String TAG = "CaptureProcessor";
+
+  /** What to do with a new capture when the queue is full. */
+  enum OverflowPolicy {
+    /** Drop the oldest queued capture to make room for the new one. */
+    DROP_OLDEST,
+    /** Drop the new capture and keep the queued ones. */
+    REJECT
+  }
+
+  /**
+   * Receives capture outcomes on the UI thread. Snapshots passed to the callback have already been
+   * released, so only their metadata may be read.
+   */
+  interface Callback {
+    void onCaptureProcessed(CaptureResult result);
+
+    void onCaptureDropped(CaptureSnapshot snapshot);
+
+    void onCaptureFailed(CaptureSnapshot snapshot, Exception e);
+  }
+
+  private final OverflowPolicy overflowPolicy;
+  private final Callback callback;
+  // Whether the STANDARD profile also writes the original camera frame.
+  private final boolean saveOriginalImage;
+  private final FrameRectifier rectifier;
+  private final OutputSizePolicy outputSizePolicy;
+  // Snaps projected corners onto the painting corners in the image, null to use them as is.
+  private final CornerRefiner cornerRefiner;
+  // Fuses snapshots that carry several frames, null to rectify only the main frame.
+  private final FrameFusion frameFusion;
+  // Resolves snapshots that carry several frames at superResolutionSize instead, if not null.
+  private final SuperResolver superResolver;
+  private final int superResolutionSize;
+  // Writes a palette quantized PNG texture of each capture, if not null.
+  private final PaletteQuantizer paletteQuantizer;
+  // Writes the texture atlas of targets that have an atlas template, if not null.
+  private final AtlasExtractor atlasExtractor;
+  private final ImageWriter imageWriter;
+  // Only touched by the worker thread.
+  private final FrameRectifier.Stats rectifierStats = new FrameRectifier.Stats();
+  private final CornerRefiner.Stats cornerRefinerStats = new CornerRefiner.Stats();
+  private final SuperResolver.Stats superResolverStats = new SuperResolver.Stats();
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final ThreadPoolExecutor executor;
+  // Set on the UI thread, where it is also read before each callback.
+  private volatile boolean shutDown;
+
+  CaptureProcessor(
+      int queueCapacity,
+      OverflowPolicy overflowPolicy,
+      boolean saveOriginalImage,
+      FrameRectifier rectifier,
+      OutputSizePolicy outputSizePolicy,
+      CornerRefiner cornerRefiner,
+      FrameFusion frameFusion,
+      SuperResolver superResolver,
+      int superResolutionSize,
+      PaletteQuantizer paletteQuantizer,
+      AtlasExtractor atlasExtractor,
+      ImageWriter imageWriter,
+      Callback callback) {
+    this.overflowPolicy = overflowPolicy;
+    this.saveOriginalImage = saveOriginalImage;
+    this.rectifier = rectifier;
+    this.outputSizePolicy = outputSizePolicy;
+    this.cornerRefiner = cornerRefiner;
+    this.frameFusion = frameFusion;
+    this.superResolver = superResolver;
+    this.superResolutionSize = superResolutionSize;
+    this.paletteQuantizer = paletteQuantizer;
+    this.atlasExtractor = atlasExtractor;
+    this.imageWriter = imageWriter;
+    this.callback = callback;
+    executor =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            runnable -> new Thread(runnable, TAG),
+            new OverflowHandler());
+  }
+
+  /** Queues a snapshot for processing. Must be called from the UI thread. */
+  public void submit(CaptureSnapshot snapshot) {
+    executor.execute(new CaptureTask(snapshot));
+  }
+
+  /** Number of captures waiting to be processed. */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Stops accepting captures. Queued captures are dropped and their frames released, and no
+   * callback runs afterwards, also for a capture still being processed. Must be called from the UI
+   * thread.
+   */
+  public void shutdown() {
+    shutDown = true;
+    mainHandler.removeCallbacksAndMessages(null);
+    for (Runnable task : executor.shutdownNow()) {
+      ((CaptureTask) task).snapshot.release();
+    }
+    if (frameFusion != null) {
+      frameFusion.shutdown();
+    }
+  }
+
+  private void process(CaptureSnapshot snapshot) {
+    final long startUptime = SystemClock.uptimeMillis();
+    final YuvFrame frame = snapshot.getFrame();
+    // Milliseconds keep captures taken within one second apart, as the image writer replaces a
+    // queued write to the same file name.
+    final String timeStamp =
+        new SimpleDateFormat("yyyyMMdd_HHmmss_SSS")
+            .format(new Date(snapshot.getCaptureTimeMillis()));
+
+    float[] corners = snapshot.getCorners();
+    if (cornerRefiner != null) {
+      cornerRefiner.refine(frame, corners, cornerRefinerStats);
+      Log.d(TAG, "Refined " + cornerRefinerStats.refinedCount + " corners by "
+          + cornerRefinerStats.meanShiftPx + " px in " + cornerRefinerStats.elapsedMillis + " ms");
+    }
+    Bitmap outputBitmap;
+    if (superResolver != null && !snapshot.getFusionFrames().isEmpty()) {
+      outputBitmap = resolve(snapshot, corners);
+    } else {
+      outputBitmap =
+          rectify(snapshot, corners, outputSizePolicy.getSize(snapshot.getTargetName(), corners));
+    }
+
+    String finalFileName = "final_" + timeStamp + ".jpeg";
+    imageWriter.write(finalFileName, outputBitmap);
+
+    final CaptureResult result =
+        new CaptureResult(
+            outputBitmap,
+            finalFileName,
+            snapshot.getFrameTimestampNs(),
+            startUptime - snapshot.getRequestUptimeMillis(),
+            SystemClock.uptimeMillis() - startUptime,
+            rectifierStats.roiAreaFraction,
+            rectifierStats.estimatedSavedMillis,
+            snapshot.getSharpness());
+    postToCallback(() -> callback.onCaptureProcessed(result));
+
+    // The extra artifacts of the profile are written after the result has been delivered.
+    CaptureProfile profile = snapshot.getProfile();
+    if (paletteQuantizer != null) {
+      imageWriter.write("texture_" + timeStamp + ".png", quantize(outputBitmap));
+    }
+    AtlasTemplate atlasTemplate =
+        atlasExtractor != null ? atlasExtractor.getTemplate(snapshot.getTargetName()) : null;
+    if (atlasTemplate != null) {
+      writeAtlas(frame, corners, atlasTemplate, timeStamp);
+    }
+    if (profile.savesMarkedImage()) {
+      writeMarkedImage(frame, corners, timeStamp);
+    }
+    if (profile.savesOriginalImage(saveOriginalImage)) {
+      String cameraFileName = "aOriginal_" + timeStamp + ".jpeg";
+      imageWriter.write(cameraFileName, CameraImageConverter.toJpeg(frame));
+    }
+  }
+
+  /** Rectifies the snapshot into a {@code size} square, fusing its frames if enabled. */
+  private Bitmap rectify(CaptureSnapshot snapshot, float[] corners, int size) {
+    final YuvFrame frame = snapshot.getFrame();
+    Mat outputMat;
+    if (frameFusion != null && !snapshot.getFusionFrames().isEmpty()) {
+      outputMat =
+          frameFusion.fuse(
+              frame,
+              corners,
+              snapshot.getFusionFrames(),
+              getFusionCorners(snapshot),
+              size,
+              size,
+              rectifierStats);
+    } else {
+      outputMat = rectifier.rectify(frame, corners, size, size, rectifierStats);
+    }
+
+    //creating the output bitmap
+    try {
+      Bitmap outputBitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+      Utils.matToBitmap(outputMat, outputBitmap);
+      return outputBitmap;
+    } finally {
+      outputMat.release();
+    }
+  }
+
+  /** Resolves the snapshot's frames into one super-resolution image. */
+  private Bitmap resolve(CaptureSnapshot snapshot, float[] corners) {
+    final long startNs = SystemClock.elapsedRealtimeNanos();
+    final YuvFrame frame = snapshot.getFrame();
+    List<YuvFrame> frames = new ArrayList<>();
+    List<float[]> frameCorners = new ArrayList<>();
+    frames.add(frame);
+    frameCorners.add(corners);
+    frames.addAll(snapshot.getFusionFrames());
+    frameCorners.addAll(getFusionCorners(snapshot));
+
+    final int size = superResolutionSize;
+    int[] pixels = superResolver.resolve(frames, frameCorners, size, size, superResolverStats);
+    Bitmap outputBitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+    outputBitmap.setPixels(pixels, 0, size, 0, 0, size, size);
+
+    Rect roi = FrameRectifier.computeRoi(corners, frame.getWidth(), frame.getHeight(), 0);
+    rectifierStats.roiAreaFraction =
+        (float) roi.area() / ((float) frame.getWidth() * frame.getHeight());
+    rectifierStats.elapsedMillis = (SystemClock.elapsedRealtimeNanos() - startNs) / 1e6f;
+    rectifierStats.estimatedSavedMillis = Float.NaN;
+    Log.d(TAG, "Resolved " + size + "x" + size + " from " + superResolverStats.framesUsed + " of "
+        + frames.size() + " frames, registration " + superResolverStats.registrationMillis
+        + " ms, accumulation " + superResolverStats.accumulationMillis + " ms");
+    return outputBitmap;
+  }
+
+  /** Corners of the snapshot's further frames, refined if enabled. */
+  private List<float[]> getFusionCorners(CaptureSnapshot snapshot) {
+    if (cornerRefiner == null) {
+      return snapshot.getFusionCorners();
+    }
+    List<YuvFrame> frames = snapshot.getFusionFrames();
+    List<float[]> refined = new ArrayList<>(frames.size());
+    for (int i = 0; i < frames.size(); i++) {
+      float[] corners = snapshot.getFusionCorners().get(i).clone();
+      cornerRefiner.refine(frames.get(i), corners, null);
+      refined.add(corners);
+    }
+    return refined;
+  }
+
+  /** Returns a copy of {@code bitmap} quantized to the texture palette. */
+  private Bitmap quantize(Bitmap bitmap) {
+    final long startNs = SystemClock.elapsedRealtimeNanos();
+    final int width = bitmap.getWidth();
+    final int height = bitmap.getHeight();
+    int[] pixels = new int[width * height];
+    bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+    paletteQuantizer.quantize(pixels, width, height);
+    Bitmap textureBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    textureBitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+    Log.d(TAG, "Quantized " + width + "x" + height + " to " + paletteQuantizer.getPalette().size()
+        + " colors in " + (SystemClock.elapsedRealtimeNanos() - startNs) / 1e6f + " ms");
+    return textureBitmap;
+  }
+
+  /** Writes the texture atlas of the template as a PNG, quantized if a palette is set. */
+  private void writeAtlas(
+      YuvFrame frame, float[] corners, AtlasTemplate template, String timeStamp) {
+    final long startNs = SystemClock.elapsedRealtimeNanos();
+    Mat atlasMat = atlasExtractor.extract(frame, corners, template);
+    Bitmap atlasBitmap;
+    try {
+      atlasBitmap =
+          Bitmap.createBitmap(atlasMat.cols(), atlasMat.rows(), Bitmap.Config.ARGB_8888);
+      Utils.matToBitmap(atlasMat, atlasBitmap);
+    } finally {
+      atlasMat.release();
+    }
+    Log.d(TAG, "Extracted atlas " + template.getName() + " in "
+        + (SystemClock.elapsedRealtimeNanos() - startNs) / 1e6f + " ms");
+    if (paletteQuantizer != null) {
+      atlasBitmap = quantize(atlasBitmap);
+    }
+    imageWriter.write("atlas_" + timeStamp + ".png", atlasBitmap);
+  }
+
+  /** Writes the full camera frame with the projected corners and the frame corners circled. */
+  private void writeMarkedImage(YuvFrame frame, float[] corners, String timeStamp) {
+    final int cameraImageWidth = frame.getWidth();
+    final int cameraImageHeight = frame.getHeight();
+
+    Mat inputMat = CameraImageConverter.toRgba(frame);
+    Bitmap markedBitmap;
+    try {
+      List<Point> srcPts = new ArrayList<Point>();
+      for (int i = 0; i < 4; i++) {
+        srcPts.add(new Point(corners[2 * i], corners[2 * i + 1]));
+      }
+
+      // MARK
+      // A
+      Imgproc.circle(inputMat, srcPts.get(0), 10, new Scalar(255, 0, 0), 5);
+      Imgproc.circle(inputMat, srcPts.get(1), 10, new Scalar(0, 255, 0), 5);
+      Imgproc.circle(inputMat, srcPts.get(2), 10, new Scalar(0, 0, 255), 5);
+      Imgproc.circle(inputMat, srcPts.get(3), 10, new Scalar(125, 125, 0), 5);
+      // B
+      Imgproc.circle(inputMat, new Point(0, 0), 20, new Scalar(255, 0, 0), 10);
+      Imgproc.circle(inputMat, new Point(cameraImageWidth, 0), 20, new Scalar(0, 255, 0), 10);
+      Imgproc.circle(
+          inputMat, new Point(cameraImageWidth, cameraImageHeight), 20, new Scalar(0, 0, 255), 10);
+      Imgproc.circle(inputMat, new Point(0, cameraImageHeight), 20, new Scalar(125, 125, 0), 10);
+      markedBitmap =
+          Bitmap.createBitmap(cameraImageWidth, cameraImageHeight, Bitmap.Config.ARGB_8888);
+      Utils.matToBitmap(inputMat, markedBitmap);
+    } finally {
+      inputMat.release();
+    }
+    String markedFileName = "bMarked" + timeStamp + ".jpeg";
+    imageWriter.write(markedFileName, markedBitmap);
+  }
+
+  /** Runs {@code call} on the UI thread, unless the processor has been shut down by then. */
+  private void postToCallback(Runnable call) {
+    mainHandler.post(
+        () -> {
+          if (!shutDown) {
+            call.run();
+          }
+        });
+  }
+
+  private final class CaptureTask implements Runnable {
+    final CaptureSnapshot snapshot;
+
+    CaptureTask(CaptureSnapshot snapshot) {
+      this.snapshot = snapshot;
+    }
+
+    @Override
+    public void run() {
+      try {
+        process(snapshot);
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Capture failed", e);
+        postToCallback(() -> callback.onCaptureFailed(snapshot, e));
+      } finally {
+        snapshot.release();
+      }
+    }
+  }
+
+  private final class OverflowHandler implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+      CaptureTask task = (CaptureTask) runnable;
+      if (executor.isShutdown() || overflowPolicy == OverflowPolicy.REJECT) {
+        drop(task);
+        return;
+      }
+      Runnable oldest = executor.getQueue().poll();
+      if (oldest != null) {
+        drop((CaptureTask) oldest);
+      }
+      executor.execute(task);
+    }
+
+    private void drop(CaptureTask task) {
+      Log.w(TAG, "Capture queue full, dropping capture of frame " + task.snapshot.getFrameTimestampNs());
+      task.snapshot.release();
+      postToCallback(() -> callback.onCaptureDropped(task.snapshot));
+    }
+  }
+}
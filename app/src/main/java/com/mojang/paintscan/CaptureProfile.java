@@ -0,0 +1,40 @@
+package com.mojang.paintscan;
+
+/**
+ * Which artifacts a capture produces. Every profile writes the rectified {@code final_} image; the
+ * others cost extra full-frame conversions and JPEG encodes and are only paid for when kept.
+ */
+enum CaptureProfile {
+  /** Rectified image, the original camera frame and the frame marked with the projected corners. */
+  DEBUG,
+  /** Rectified image, plus the original camera frame if saving it is enabled. */
+  STANDARD,
+  /** Rectified image only. No full-frame conversion or encode happens at all. */
+  FAST;
+
+  /** Whether the {@code bMarked} image with the corner overlay is written. */
+  boolean savesMarkedImage() {
+    return this == DEBUG;
+  }
+
+  /**
+   * Whether the {@code aOriginal_} camera frame is written.
+   *
+   * @param originalImageEnabled the user setting consulted by {@link #STANDARD}.
+   */
+  boolean savesOriginalImage(boolean originalImageEnabled) {
+    switch (this) {
+      case DEBUG:
+        return true;
+      case STANDARD:
+        return originalImageEnabled;
+      default:
+        return false;
+    }
+  }
+
+  CaptureProfile next() {
+    CaptureProfile[] profiles = values();
+    return profiles[(ordinal() + 1) % profiles.length];
+  }
+}
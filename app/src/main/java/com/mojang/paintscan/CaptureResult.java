@@ -0,0 +1,77 @@
+package com.mojang.paintscan;
+
+import android.graphics.Bitmap;
+
+/**
+ * Outcome of a processed capture, delivered to {@link CaptureProcessor.Callback} on the UI thread.
+ */
+final class CaptureResult {
+
+  private final Bitmap rectifiedBitmap;
+  private final String fileName;
+  private final long frameTimestampNs;
+  private final long queueMillis;
+  private final long processingMillis;
+  private final float roiAreaFraction;
+  private final float roiSavedMillis;
+  private final float sharpness;
+
+  CaptureResult(
+      Bitmap rectifiedBitmap,
+      String fileName,
+      long frameTimestampNs,
+      long queueMillis,
+      long processingMillis,
+      float roiAreaFraction,
+      float roiSavedMillis,
+      float sharpness) {
+    this.rectifiedBitmap = rectifiedBitmap;
+    this.fileName = fileName;
+    this.frameTimestampNs = frameTimestampNs;
+    this.queueMillis = queueMillis;
+    this.processingMillis = processingMillis;
+    this.roiAreaFraction = roiAreaFraction;
+    this.roiSavedMillis = roiSavedMillis;
+    this.sharpness = sharpness;
+  }
+
+  public Bitmap getRectifiedBitmap() {
+    return rectifiedBitmap;
+  }
+
+  public String getFileName() {
+    return fileName;
+  }
+
+  public long getFrameTimestampNs() {
+    return frameTimestampNs;
+  }
+
+  /** Time the snapshot waited in the queue before processing started. */
+  public long getQueueMillis() {
+    return queueMillis;
+  }
+
+  /** Time spent converting, rectifying and saving the rectified image. */
+  public long getProcessingMillis() {
+    return processingMillis;
+  }
+
+  /** Part of the camera frame read by the rectification, as a fraction of its area. */
+  public float getRoiAreaFraction() {
+    return roiAreaFraction;
+  }
+
+  /**
+   * Estimated time saved by reading only the painting region instead of the full frame, NaN when
+   * there is no estimate, see {@link FrameRectifier.Stats#estimatedSavedMillis}.
+   */
+  public float getRoiSavedMillis() {
+    return roiSavedMillis;
+  }
+
+  /** {@link SharpnessScorer} score of the captured frame. */
+  public float getSharpness() {
+    return sharpness;
+  }
+}
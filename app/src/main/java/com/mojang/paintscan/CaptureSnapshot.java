@@ -0,0 +1,142 @@
+package com.mojang.paintscan;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything a capture needs, taken on the UI thread at the moment of the capture request so the
+ * rest of the work can run on a background thread without touching ARCore or Sceneform.
+ *
+ * <p>The snapshot owns its camera frames: whoever consumes the snapshot last calls
+ * {@link #release()}.
+ */
+final class CaptureSnapshot {
+
+  private final YuvFrame frame;
+  private final CaptureProfile profile;
+  private final String targetName;
+  private final float[] corners;
+  private final long frameTimestampNs;
+  private final long captureTimeMillis;
+  private final long requestUptimeMillis;
+  private final float sharpness;
+  private final List<YuvFrame> fusionFrames;
+  private final List<float[]> fusionCorners;
+
+  /**
+   * @param frame camera image copy, ownership passes to the snapshot.
+   * @param profile artifacts to produce for this capture.
+   * @param targetName name of the augmented image being captured, selects the output size.
+   * @param corners projected painting corners in camera image pixels, as x/y pairs in the order
+   *     upper left, upper right, lower right, lower left.
+   * @param frameTimestampNs ARCore frame timestamp.
+   * @param captureTimeMillis wall clock time of the request, used for file names.
+   * @param requestUptimeMillis {@link android.os.SystemClock#uptimeMillis()} of the request, used
+   *     to measure latency.
+   * @param sharpness {@link SharpnessScorer} score of the frame.
+   */
+  CaptureSnapshot(
+      YuvFrame frame,
+      CaptureProfile profile,
+      String targetName,
+      float[] corners,
+      long frameTimestampNs,
+      long captureTimeMillis,
+      long requestUptimeMillis,
+      float sharpness) {
+    this(frame, profile, targetName, corners, frameTimestampNs, captureTimeMillis,
+        requestUptimeMillis, sharpness, Collections.<YuvFrame>emptyList(), Collections.<float[]>emptyList());
+  }
+
+  /**
+   * A snapshot whose rectified image is fused from {@code frame} and further frames of the same
+   * painting.
+   *
+   * @param fusionFrames further camera image copies, ownership passes to the snapshot.
+   * @param fusionCorners projected painting corners in each of {@code fusionFrames}.
+   */
+  CaptureSnapshot(
+      YuvFrame frame,
+      CaptureProfile profile,
+      String targetName,
+      float[] corners,
+      long frameTimestampNs,
+      long captureTimeMillis,
+      long requestUptimeMillis,
+      float sharpness,
+      List<YuvFrame> fusionFrames,
+      List<float[]> fusionCorners) {
+    if (corners.length != 8) {
+      throw new IllegalArgumentException("Expected 4 corners, got " + corners.length / 2f);
+    }
+    this.frame = frame;
+    this.profile = profile;
+    this.targetName = targetName;
+    this.corners = Arrays.copyOf(corners, corners.length);
+    this.frameTimestampNs = frameTimestampNs;
+    this.captureTimeMillis = captureTimeMillis;
+    this.requestUptimeMillis = requestUptimeMillis;
+    this.sharpness = sharpness;
+    this.fusionFrames = Collections.unmodifiableList(fusionFrames);
+    this.fusionCorners = Collections.unmodifiableList(fusionCorners);
+  }
+
+  public YuvFrame getFrame() {
+    return frame;
+  }
+
+  public CaptureProfile getProfile() {
+    return profile;
+  }
+
+  public String getTargetName() {
+    return targetName;
+  }
+
+  public float getCornerX(int index) {
+    return corners[2 * index];
+  }
+
+  public float getCornerY(int index) {
+    return corners[2 * index + 1];
+  }
+
+  /** Returns a copy of the corners as x/y pairs. */
+  public float[] getCorners() {
+    return Arrays.copyOf(corners, corners.length);
+  }
+
+  public long getFrameTimestampNs() {
+    return frameTimestampNs;
+  }
+
+  public long getCaptureTimeMillis() {
+    return captureTimeMillis;
+  }
+
+  public long getRequestUptimeMillis() {
+    return requestUptimeMillis;
+  }
+
+  public float getSharpness() {
+    return sharpness;
+  }
+
+  /** Further frames to fuse with {@link #getFrame()}, empty for single frame captures. */
+  public List<YuvFrame> getFusionFrames() {
+    return fusionFrames;
+  }
+
+  public List<float[]> getFusionCorners() {
+    return fusionCorners;
+  }
+
+  /** Returns the camera frames to their pool. */
+  public void release() {
+    frame.release();
+    for (YuvFrame fusionFrame : fusionFrames) {
+      fusionFrame.release();
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package com.mojang.paintscan;
+
+/**
+ * Projects the corners of an augmented image straight into CPU camera image pixels from the image
+ * center pose, its extents, the camera pose and the camera image intrinsics.
+ *
+ * <p>Works on primitive arrays only and allocates nothing, so it can run every frame or on a
+ * background thread from values copied out of an ARCore frame. Poses are translation x/y/z
+ * followed by rotation quaternion x/y/z/w. The camera pose must be the physical camera pose
+ * ({@code Camera.getPose()}), whose axes follow the CPU image readout rather than the display.
+ */
+final class CornerProjector {
+
+  // Corner signs in the image's local X-Z plane: upper left, upper right, lower right, lower left.
+  private static final float[] CORNER_SIGNS = {-1f, -1f, 1f, -1f, 1f, 1f, -1f, 1f};
+
+  private CornerProjector() {}
+
+  /**
+   * Writes the four corners as x/y pixel pairs into {@code out}, in the order used by
+   * {@link CaptureSnapshot}. Returns false, leaving {@code out} partly written, if a corner lies
+   * behind the camera.
+   *
+   * @param intrinsics focal length x/y followed by principal point x/y, in CPU image pixels.
+   */
+  static boolean project(
+      float[] imagePose,
+      float extentX,
+      float extentZ,
+      float[] cameraPose,
+      float[] intrinsics,
+      float[] out) {
+    final float fx = intrinsics[0];
+    final float fy = intrinsics[1];
+    final float cx = intrinsics[2];
+    final float cy = intrinsics[3];
+
+    final float iqx = imagePose[3];
+    final float iqy = imagePose[4];
+    final float iqz = imagePose[5];
+    final float iqw = imagePose[6];
+    // Conjugate of the camera rotation, to go from world to camera space.
+    final float cqx = -cameraPose[3];
+    final float cqy = -cameraPose[4];
+    final float cqz = -cameraPose[5];
+    final float cqw = cameraPose[6];
+
+    for (int i = 0; i < 4; i++) {
+      // Image local -> world. Rotation of v by q: v + w * t + q x t with t = 2 * (q x v).
+      float lx = CORNER_SIGNS[2 * i] * 0.5f * extentX;
+      float lz = CORNER_SIGNS[2 * i + 1] * 0.5f * extentZ;
+      float tx = 2f * (iqy * lz);
+      float ty = 2f * (iqz * lx - iqx * lz);
+      float tz = 2f * (-iqy * lx);
+      float wx = lx + iqw * tx + (iqy * tz - iqz * ty) + imagePose[0];
+      float wy = iqw * ty + (iqz * tx - iqx * tz) + imagePose[1];
+      float wz = lz + iqw * tz + (iqx * ty - iqy * tx) + imagePose[2];
+
+      // World -> camera, by the inverse camera pose.
+      float dx = wx - cameraPose[0];
+      float dy = wy - cameraPose[1];
+      float dz = wz - cameraPose[2];
+      tx = 2f * (cqy * dz - cqz * dy);
+      ty = 2f * (cqz * dx - cqx * dz);
+      tz = 2f * (cqx * dy - cqy * dx);
+      float x = dx + cqw * tx + (cqy * tz - cqz * ty);
+      float y = dy + cqw * ty + (cqz * tx - cqx * tz);
+      float z = dz + cqw * tz + (cqx * ty - cqy * tx);
+
+      // The camera looks down -Z with +Y up; image rows grow downwards.
+      if (z >= 0f) {
+        return false;
+      }
+      out[2 * i] = cx + fx * x / -z;
+      out[2 * i + 1] = cy - fy * y / -z;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,234 @@
+package com.mojang.paintscan;
+
+import android.os.SystemClock;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+/**
+ * Snaps projected painting corners onto the corners visible in the camera image. Pose based
+ * projection is often several pixels off, which skews the border of the rectified painting.
+ *
+ * <p>Only a small window of the Y plane around each projected corner is read. In it the strongest
+ * corner features are detected and, closest to the projection first, localized to a fraction of a
+ * pixel with {@link Imgproc#cornerSubPix}. The first candidate shaped like the quad corner is
+ * taken: along both quad edges leaving it, the image gradient must be strong and point across the
+ * edge. That rejects texture inside the painting and clutter next to it, which are corners too but
+ * not of the painting's outline. A corner keeps its projected position when no candidate within
+ * {@code maxShift} pixels qualifies, and all corners do when the refined quad is no longer convex.
+ */
+final class CornerRefiner {
+
+  /** Outcome of the last {@link #refine} call. */
+  static final class Stats {
+    /** Corners moved to a detected image corner. */
+    int refinedCount;
+    /** Mean distance the refined corners moved, in pixels. */
+    float meanShiftPx;
+    float elapsedMillis;
+  }
+
+  // Candidate features per window, and their minimum quality relative to the strongest one.
+  private static final int MAX_CANDIDATES = 4;
+  private static final double MIN_QUALITY = 0.1;
+  private static final double MIN_CANDIDATE_DISTANCE = 3;
+  // Half size of the cornerSubPix window, and when its iteration stops.
+  private static final int SUB_PIXEL_HALF_WINDOW = 5;
+  private static final TermCriteria SUB_PIXEL_CRITERIA =
+      new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 20, 0.03);
+  // Stretch of each quad edge checked for a candidate, in pixels from it.
+  private static final int EDGE_SAMPLE_START = 2;
+  private static final int EDGE_SAMPLE_END = 8;
+  // Mean gradient across each edge a candidate needs, in gray levels per pixel, and how many times
+  // stronger than the gradient along the edge it must be.
+  private static final float MIN_EDGE_GRADIENT = 6f;
+  private static final float MIN_EDGE_DOMINANCE = 2f;
+
+  private final int searchRadius;
+  private final float maxShift;
+
+  /**
+   * @param searchRadius half size of the window searched around each projected corner.
+   * @param maxShift refined corners further than this from the projection are discarded.
+   */
+  CornerRefiner(int searchRadius, float maxShift) {
+    this.searchRadius = searchRadius;
+    this.maxShift = maxShift;
+  }
+
+  /**
+   * Refines {@code corners} of the painting in {@code frame} in place.
+   *
+   * @param corners projected painting corners in frame pixels, see {@link CaptureSnapshot}.
+   * @param stats receives the outcome, may be null.
+   */
+  public void refine(YuvFrame frame, float[] corners, Stats stats) {
+    final long startNs = SystemClock.elapsedRealtimeNanos();
+    final int width = frame.getWidth();
+    final int height = frame.getHeight();
+    Mat yMat = new Mat(height, width, CvType.CV_8UC1, frame.getYPlane());
+
+    float[] refined = corners.clone();
+    int refinedCount = 0;
+    float shiftSum = 0;
+    for (int i = 0; i < 4; i++) {
+      if (refineCorner(yMat, refined, i)) {
+        refinedCount++;
+        shiftSum +=
+            (float)
+                Math.hypot(refined[2 * i] - corners[2 * i], refined[2 * i + 1] - corners[2 * i + 1]);
+      }
+    }
+    yMat.release();
+
+    if (refinedCount > 0 && isConvex(refined)) {
+      System.arraycopy(refined, 0, corners, 0, corners.length);
+    } else {
+      refinedCount = 0;
+      shiftSum = 0;
+    }
+    if (stats != null) {
+      stats.refinedCount = refinedCount;
+      stats.meanShiftPx = refinedCount > 0 ? shiftSum / refinedCount : 0f;
+      stats.elapsedMillis = (SystemClock.elapsedRealtimeNanos() - startNs) / 1e6f;
+    }
+  }
+
+  /** Refines corner {@code index} of {@code corners}; returns false if it was left as is. */
+  private boolean refineCorner(Mat yMat, float[] corners, int index) {
+    final float x = corners[2 * index];
+    final float y = corners[2 * index + 1];
+    final int left = Math.max(0, Math.round(x) - searchRadius);
+    final int top = Math.max(0, Math.round(y) - searchRadius);
+    final int right = Math.min(yMat.cols(), Math.round(x) + searchRadius + 1);
+    final int bottom = Math.min(yMat.rows(), Math.round(y) + searchRadius + 1);
+    // Too little of the window is inside the frame to find a corner reliably.
+    if (right - left <= searchRadius || bottom - top <= searchRadius) {
+      return false;
+    }
+
+    Mat window = yMat.submat(top, bottom, left, right);
+    MatOfPoint candidates = new MatOfPoint();
+    Imgproc.goodFeaturesToTrack(
+        window, candidates, MAX_CANDIDATES, MIN_QUALITY, MIN_CANDIDATE_DISTANCE);
+
+    Point[] points = candidates.toArray();
+    candidates.release();
+    // Closest to the projection first.
+    Arrays.sort(
+        points,
+        (a, b) ->
+            Double.compare(
+                Math.hypot(a.x + left - x, a.y + top - y),
+                Math.hypot(b.x + left - x, b.y + top - y)));
+
+    final int windowWidth = right - left;
+    final int windowHeight = bottom - top;
+    byte[] pixels = null;
+    final float[] edges = edgeDirections(corners, index);
+    boolean refined = false;
+    for (Point candidate : points) {
+      MatOfPoint2f point = new MatOfPoint2f(candidate);
+      Imgproc.cornerSubPix(
+          window,
+          point,
+          new Size(SUB_PIXEL_HALF_WINDOW, SUB_PIXEL_HALF_WINDOW),
+          new Size(-1, -1),
+          SUB_PIXEL_CRITERIA);
+      Point subPixel = point.toArray()[0];
+      point.release();
+
+      final float refinedX = (float) subPixel.x + left;
+      final float refinedY = (float) subPixel.y + top;
+      if (Math.hypot(refinedX - x, refinedY - y) > maxShift) {
+        continue;
+      }
+      if (pixels == null) {
+        pixels = new byte[windowWidth * windowHeight];
+        window.get(0, 0, pixels);
+      }
+      if (supportsEdge(pixels, windowWidth, windowHeight, subPixel, edges[0], edges[1])
+          && supportsEdge(pixels, windowWidth, windowHeight, subPixel, edges[2], edges[3])) {
+        corners[2 * index] = refinedX;
+        corners[2 * index + 1] = refinedY;
+        refined = true;
+        break;
+      }
+    }
+    window.release();
+    return refined;
+  }
+
+  /**
+   * Unit directions from corner {@code index} towards the previous and the next corner, as
+   * x/y pairs.
+   */
+  private static float[] edgeDirections(float[] corners, int index) {
+    float[] directions = new float[4];
+    for (int k = 0; k < 2; k++) {
+      final int other = (index + (k == 0 ? 3 : 1)) % 4;
+      final float dx = corners[2 * other] - corners[2 * index];
+      final float dy = corners[2 * other + 1] - corners[2 * index + 1];
+      final float length = Math.max(1e-3f, (float) Math.hypot(dx, dy));
+      directions[2 * k] = dx / length;
+      directions[2 * k + 1] = dy / length;
+    }
+    return directions;
+  }
+
+  /**
+   * Whether an image edge leaves {@code corner} in direction ({@code dx}, {@code dy}): along that
+   * line the central difference gradient is strong and mostly perpendicular to it.
+   */
+  private static boolean supportsEdge(
+      byte[] pixels, int width, int height, Point corner, float dx, float dy) {
+    float across = 0;
+    float along = 0;
+    int samples = 0;
+    for (int t = EDGE_SAMPLE_START; t <= EDGE_SAMPLE_END; t++) {
+      final int px = (int) Math.round(corner.x + t * dx);
+      final int py = (int) Math.round(corner.y + t * dy);
+      if (px < 1 || py < 1 || px >= width - 1 || py >= height - 1) {
+        continue;
+      }
+      final int row = py * width;
+      final float gx = ((pixels[row + px + 1] & 0xff) - (pixels[row + px - 1] & 0xff)) / 2f;
+      final float gy = ((pixels[row + width + px] & 0xff) - (pixels[row - width + px] & 0xff)) / 2f;
+      across += Math.abs(gx * -dy + gy * dx);
+      along += Math.abs(gx * dx + gy * dy);
+      samples++;
+    }
+    // Most of the edge must be inside the window to judge it.
+    if (2 * samples <= EDGE_SAMPLE_END - EDGE_SAMPLE_START + 1) {
+      return false;
+    }
+    return across >= MIN_EDGE_GRADIENT * samples && across >= MIN_EDGE_DOMINANCE * along;
+  }
+
+  /** Whether the quad turns the same way at every corner. */
+  private static boolean isConvex(float[] corners) {
+    int sign = 0;
+    for (int i = 0; i < 4; i++) {
+      final int next = (i + 1) % 4;
+      final int after = (i + 2) % 4;
+      final float cross =
+          (corners[2 * next] - corners[2 * i]) * (corners[2 * after + 1] - corners[2 * next + 1])
+              - (corners[2 * next + 1] - corners[2 * i + 1])
+                  * (corners[2 * after] - corners[2 * next]);
+      final int turn = cross > 0 ? 1 : (cross < 0 ? -1 : 0);
+      if (turn == 0 || (sign != 0 && turn != sign)) {
+        return false;
+      }
+      sign = turn;
+    }
+    return true;
+  }
+}
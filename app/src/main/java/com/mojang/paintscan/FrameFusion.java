@@ -0,0 +1,347 @@
+package com.mojang.paintscan;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Fuses several frames of the same painting into one rectified image to suppress specular glare
+ * and sensor noise. Every frame is rectified into the same output space, then each output pixel is
+ * combined across frames:
+ *
+ * <ul>
+ *   <li>samples that are (nearly) saturated are weighted down, so a hotspot that moves between
+ *       viewpoints is filled in from the frames where it is absent;
+ *   <li>{@link Method#MEDIAN} takes the weighted median per channel, {@link Method#ROBUST_MEAN}
+ *       the weighted mean of the samples close to that median.
+ * </ul>
+ *
+ * <p>The reference frame is rectified on the calling thread while the others are rectified in
+ * parallel. Frames not rectified within the latency budget are left out. The merge is split into
+ * row tiles on a {@link BandExecutor}.
+ */
+final class FrameFusion {
+  private static final String TAG = "FrameFusion";
+
+  /** How the samples of one output pixel are combined. */
+  enum Method {
+    MEDIAN,
+    ROBUST_MEAN
+  }
+
+  // Samples whose brightest channel reaches SATURATION_START are weighted down linearly, down to
+  // MIN_WEIGHT at 255, so clipped highlights only count where no frame has a better sample.
+  private static final int SATURATION_START = 230;
+  private static final int WEIGHT_ONE = 256;
+  private static final int MIN_WEIGHT = 1;
+  // Samples further than this from the median are ignored by ROBUST_MEAN.
+  private static final int ROBUST_MEAN_RADIUS = 24;
+  private static final int TILE_ROWS = 16;
+
+  private final FrameRectifier rectifier;
+  private final Method method;
+  private final long budgetMillis;
+  // Rectifies the further frames. Frames that miss the budget may still be running here when the
+  // merge starts, so the merge runs on the shared bands instead.
+  private final ExecutorService executor;
+  private final BandExecutor bands;
+
+  /**
+   * @param threadCount threads for rectification, besides the calling thread.
+   * @param budgetMillis time after which frames still being rectified are left out.
+   * @param bands runs the row tiles of the merge.
+   */
+  FrameFusion(
+      FrameRectifier rectifier,
+      Method method,
+      int threadCount,
+      long budgetMillis,
+      BandExecutor bands) {
+    this.rectifier = rectifier;
+    this.method = method;
+    this.budgetMillis = budgetMillis;
+    this.bands = bands;
+    executor =
+        Executors.newFixedThreadPool(
+            Math.max(1, threadCount),
+            runnable -> {
+              Thread thread = new Thread(runnable, TAG);
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Rectifies and fuses the frames into a newly allocated RGBA {@link Mat}.
+   *
+   * @param reference the frame that is always used, e.g. the sharpest one.
+   * @param referenceCorners corners of the painting in {@code reference}, see
+   *     {@link CaptureSnapshot}.
+   * @param others further frames of the same painting with their corners.
+   * @param stats receives the timings of the reference rectification, may be null.
+   */
+  public Mat fuse(
+      YuvFrame reference,
+      float[] referenceCorners,
+      List<YuvFrame> others,
+      List<float[]> otherCorners,
+      int outputWidth,
+      int outputHeight,
+      FrameRectifier.Stats stats) {
+    final long startUptime = SystemClock.uptimeMillis();
+    List<Rectification> pending = new ArrayList<>(others.size());
+    for (int i = 0; i < others.size(); i++) {
+      Rectification task =
+          new Rectification(others.get(i), otherCorners.get(i), outputWidth, outputHeight);
+      pending.add(task);
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        // Shut down; the frame is left out.
+        task.abandon();
+      }
+    }
+
+    List<Mat> rectified = new ArrayList<>(others.size() + 1);
+    final long rectifiedUptime;
+    final Mat fused;
+    try {
+      rectified.add(
+          rectifier.rectify(reference, referenceCorners, outputWidth, outputHeight, stats));
+      final long deadline = startUptime + budgetMillis;
+      for (Rectification task : pending) {
+        Mat mat = task.take(deadline);
+        if (mat != null) {
+          rectified.add(mat);
+        }
+      }
+
+      rectifiedUptime = SystemClock.uptimeMillis();
+      fused = merge(rectified, outputWidth, outputHeight);
+    } finally {
+      // Also on failure: tasks not taken yet free their frame and output themselves.
+      for (Rectification task : pending) {
+        task.abandon();
+      }
+      for (Mat mat : rectified) {
+        mat.release();
+      }
+    }
+    Log.d(TAG, "Fused " + rectified.size() + " of " + (others.size() + 1) + " frames, rectified in "
+        + (rectifiedUptime - startUptime) + " ms, merged in "
+        + (SystemClock.uptimeMillis() - rectifiedUptime) + " ms");
+    return fused;
+  }
+
+  /** Stops the worker threads. Frames still waiting to be rectified are released. */
+  public void shutdown() {
+    for (Runnable task : executor.shutdownNow()) {
+      ((Rectification) task).abandon();
+    }
+  }
+
+  private Mat merge(List<Mat> rectified, final int width, final int height) {
+    final int frameCount = rectified.size();
+    final byte[][] pixels = new byte[frameCount][];
+    for (int i = 0; i < frameCount; i++) {
+      pixels[i] = new byte[width * height * 4];
+      rectified.get(i).get(0, 0, pixels[i]);
+    }
+    final byte[] output = new byte[width * height * 4];
+
+    if (frameCount == 1) {
+      System.arraycopy(pixels[0], 0, output, 0, output.length);
+    } else {
+      bands.forEachBand(
+          height, TILE_ROWS, (fromRow, toRow) -> mergeRows(pixels, output, width, fromRow, toRow));
+    }
+
+    Mat fused = new Mat(height, width, CvType.CV_8UC4);
+    fused.put(0, 0, output);
+    return fused;
+  }
+
+  private void mergeRows(byte[][] pixels, byte[] output, int width, int fromRow, int toRow) {
+    final int frameCount = pixels.length;
+    final int[] weights = new int[frameCount];
+    final int[] values = new int[frameCount];
+    final int[] sortedWeights = new int[frameCount];
+
+    for (int index = fromRow * width * 4; index < toRow * width * 4; index += 4) {
+      for (int k = 0; k < frameCount; k++) {
+        final byte[] frame = pixels[k];
+        final int brightest =
+            Math.max(frame[index] & 0xff, Math.max(frame[index + 1] & 0xff, frame[index + 2] & 0xff));
+        weights[k] = saturationWeight(brightest);
+      }
+
+      for (int channel = 0; channel < 3; channel++) {
+        for (int k = 0; k < frameCount; k++) {
+          values[k] = pixels[k][index + channel] & 0xff;
+          sortedWeights[k] = weights[k];
+        }
+        sortByValue(values, sortedWeights, frameCount);
+        final int median = weightedMedian(values, sortedWeights, frameCount);
+        output[index + channel] =
+            (byte)
+                (method == Method.MEDIAN
+                    ? median
+                    : robustMean(values, sortedWeights, frameCount, median));
+      }
+      output[index + 3] = (byte) 0xff;
+    }
+  }
+
+  private static int saturationWeight(int brightest) {
+    if (brightest < SATURATION_START) {
+      return WEIGHT_ONE;
+    }
+    return Math.max(MIN_WEIGHT, WEIGHT_ONE * (255 - brightest) / (255 - SATURATION_START));
+  }
+
+  /** Insertion sort of the few samples of one pixel, keeping the weights alongside. */
+  private static void sortByValue(int[] values, int[] weights, int count) {
+    for (int i = 1; i < count; i++) {
+      final int value = values[i];
+      final int weight = weights[i];
+      int j = i - 1;
+      while (j >= 0 && values[j] > value) {
+        values[j + 1] = values[j];
+        weights[j + 1] = weights[j];
+        j--;
+      }
+      values[j + 1] = value;
+      weights[j + 1] = weight;
+    }
+  }
+
+  private static int weightedMedian(int[] sortedValues, int[] weights, int count) {
+    int total = 0;
+    for (int i = 0; i < count; i++) {
+      total += weights[i];
+    }
+    int accumulated = 0;
+    for (int i = 0; i < count; i++) {
+      accumulated += weights[i];
+      if (2 * accumulated >= total) {
+        return sortedValues[i];
+      }
+    }
+    return sortedValues[count - 1];
+  }
+
+  private static int robustMean(int[] values, int[] weights, int count, int median) {
+    long sum = 0;
+    long total = 0;
+    for (int i = 0; i < count; i++) {
+      if (Math.abs(values[i] - median) <= ROBUST_MEAN_RADIUS) {
+        sum += (long) values[i] * weights[i];
+        total += weights[i];
+      }
+    }
+    // The median itself is always within the radius, so total is never 0.
+    return (int) ((sum + total / 2) / total);
+  }
+
+  /**
+   * Rectifies one further frame on the worker threads. The task holds its own reference to the
+   * frame, so a task that misses the budget never reads a frame its snapshot has already released,
+   * and it frees its own output if nobody takes it anymore.
+   */
+  private final class Rectification implements Runnable {
+    private final YuvFrame frame;
+    private final float[] corners;
+    private final int width;
+    private final int height;
+    // Guarded by this.
+    private boolean started;
+    private boolean done;
+    private boolean abandoned;
+    private boolean taken;
+    private Mat output;
+
+    Rectification(YuvFrame frame, float[] corners, int width, int height) {
+      this.frame = frame.retain();
+      this.corners = corners;
+      this.width = width;
+      this.height = height;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (abandoned) {
+          return;
+        }
+        started = true;
+      }
+      Mat mat = null;
+      try {
+        mat = rectifier.rectify(frame, corners, width, height, null);
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Rectification for fusion failed", e);
+      } finally {
+        frame.release();
+      }
+      synchronized (this) {
+        if (abandoned) {
+          if (mat != null) {
+            mat.release();
+          }
+          return;
+        }
+        output = mat;
+        done = true;
+        notifyAll();
+      }
+    }
+
+    /**
+     * Waits until {@code deadlineUptime} for the output, which the caller then owns. Returns null
+     * if rectification failed or missed the deadline, in which case the task is abandoned.
+     */
+    synchronized Mat take(long deadlineUptime) {
+      try {
+        long remaining;
+        while (!done && (remaining = deadlineUptime - SystemClock.uptimeMillis()) > 0) {
+          wait(remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (done) {
+        taken = true;
+        return output;
+      }
+      abandon();
+      return null;
+    }
+
+    /**
+     * Leaves the frame out unless its output was taken: a queued task releases the frame right
+     * away, a running one when it is done, and a finished one releases its output.
+     */
+    synchronized void abandon() {
+      if (abandoned || taken) {
+        return;
+      }
+      abandoned = true;
+      if (done) {
+        if (output != null) {
+          output.release();
+          output = null;
+        }
+      } else if (!started) {
+        frame.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,387 @@
+package com.mojang.paintscan;
+
+import android.os.SystemClock;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Warps the painting quad of a camera frame into an axis-aligned RGBA image.
+ *
+ * <p>When cropping is enabled only the bounding box of the quad plus a margin is read: the planes
+ * are narrowed with {@link Mat#submat} views and the homography is offset to the box origin.
+ *
+ * <p>With a {@link RemapCache} the geometry is looked up by corner position instead, and on a hit
+ * the warp becomes an {@link Imgproc#remap} with the cached maps.
+ *
+ * <p>With pyramid downsampling, a source region at least twice the output size in both directions
+ * is first halved with {@link Imgproc#pyrDown} as often as it stays at least the output size. The
+ * warp then samples roughly one source pixel per output pixel, which avoids the aliasing of
+ * skipping pixels and reads less memory.
+ *
+ * <p>With a {@link StripWarper} large warps and remaps are split into bands on a worker pool.
+ */
+final class FrameRectifier {
+
+  /** Where the color conversion happens relative to the warp. */
+  enum Mode {
+    /** Convert the source region to RGBA, then warp the RGBA image. */
+    FULL_FRAME_RGBA,
+    /**
+     * Warp the Y plane at full resolution and the VU plane at half resolution, then convert only
+     * the rectified pixels to RGBA. The output size must be even.
+     */
+    YUV
+  }
+
+  /** Timings of the last {@link #rectify} call. */
+  static final class Stats {
+    /** Area of the source region read, as a fraction of the frame area. */
+    float roiAreaFraction;
+    /** Total rectification time. */
+    float elapsedMillis;
+    /**
+     * Estimated time saved by cropping, extrapolating the stages that read the whole source region
+     * to the full frame: the RGBA conversion of {@link Mode#FULL_FRAME_RGBA} and the pyramid
+     * downsampling. The warp itself costs the same per output pixel either way, so without such a
+     * stage, e.g. in {@link Mode#YUV} without downsampling, there is no estimate and this is NaN.
+     */
+    float estimatedSavedMillis;
+  }
+
+  // Deeper levels would only matter for tiny outputs of a painting filling the frame.
+  private static final int MAX_PYRAMID_LEVELS = 3;
+  // Output pixels mapping outside the frame are black. In YUV that is zero luma with neutral
+  // chroma; zero chroma would turn them green.
+  private static final Scalar LUMA_BORDER = new Scalar(0);
+  private static final Scalar CHROMA_BORDER = new Scalar(128, 128);
+  private static final Scalar RGBA_BORDER = new Scalar(0, 0, 0, 255);
+
+  private final Mode mode;
+  private final boolean cropToRoi;
+  private final int roiMargin;
+  private final RemapCache remapCache;
+  private final boolean pyramid;
+  private final StripWarper stripWarper;
+
+  FrameRectifier(Mode mode, boolean cropToRoi, int roiMargin) {
+    this(mode, cropToRoi, roiMargin, null, false, null);
+  }
+
+  /**
+   * @param cropToRoi read only the bounding box of the quad instead of the full frame.
+   * @param roiMargin pixels added around the bounding box, so corner errors do not clip the quad.
+   * @param remapCache cache of rectification maps shared between captures, may be null.
+   * @param pyramid downsample source regions much larger than the output before the warp.
+   * @param stripWarper splits large warps across threads, may be null.
+   */
+  FrameRectifier(
+      Mode mode,
+      boolean cropToRoi,
+      int roiMargin,
+      RemapCache remapCache,
+      boolean pyramid,
+      StripWarper stripWarper) {
+    this.mode = mode;
+    this.cropToRoi = cropToRoi;
+    this.roiMargin = roiMargin;
+    this.remapCache = remapCache;
+    this.pyramid = pyramid;
+    this.stripWarper = stripWarper;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * Rectifies the quad given by {@code corners} (x/y pairs for upper left, upper right, lower
+   * right, lower left in frame pixels) into a newly allocated RGBA {@link Mat}.
+   *
+   * @param stats receives timings and the ROI size, may be null.
+   */
+  public Mat rectify(
+      YuvFrame frame, float[] corners, int outputWidth, int outputHeight, Stats stats) {
+    final long startNs = SystemClock.elapsedRealtimeNanos();
+    final int levels = pyramid ? pyramidLevels(corners, outputWidth, outputHeight) : 0;
+    if (remapCache != null) {
+      RemapCache.Entry entry =
+          remapCache.acquire(
+              corners, frame.getWidth(), frame.getHeight(), outputWidth, outputHeight, cropToRoi,
+              roiMargin, levels, mode == Mode.YUV);
+      if (entry != null) {
+        return rectifyCached(frame, entry, levels, stats, startNs);
+      }
+    }
+    final int width = frame.getWidth();
+    final int height = frame.getHeight();
+
+    Rect roi =
+        cropToRoi ? computeRoi(corners, width, height, roiMargin) : new Rect(0, 0, width, height);
+    float[] roiCorners = toRoiCorners(corners, roi, levels);
+    Mat transform = getPerspectiveTransform(roiCorners, outputWidth, outputHeight);
+
+    Mat yMat = new Mat(height, width, CvType.CV_8UC1, frame.getYPlane());
+    Mat vuMat = new Mat(height / 2, width / 2, CvType.CV_8UC2, frame.getVUPlane());
+    Mat yRoi = yMat.submat(roi.y, roi.y + roi.height, roi.x, roi.x + roi.width);
+    Mat vuRoi = vuMat.submat(roi.y / 2, (roi.y + roi.height) / 2, roi.x / 2, (roi.x + roi.width) / 2);
+
+    Mat rgba = new Mat();
+    final boolean areaScaled = mode == Mode.FULL_FRAME_RGBA || levels > 0;
+    final long areaStartNs = SystemClock.elapsedRealtimeNanos();
+    long areaNs;
+    if (mode == Mode.YUV) {
+      Mat ySource = pyrDown(yRoi, levels);
+      Mat vuSource = pyrDown(vuRoi, levels);
+      areaNs = SystemClock.elapsedRealtimeNanos() - areaStartNs;
+      warpYuv(ySource, vuSource, transform, outputWidth, outputHeight, rgba);
+      releaseDownsampled(ySource, yRoi);
+      releaseDownsampled(vuSource, vuRoi);
+    } else {
+      Mat inputMat = new Mat();
+      Imgproc.cvtColorTwoPlane(yRoi, vuRoi, inputMat, Imgproc.COLOR_YUV2RGBA_NV21);
+      Mat source = pyrDown(inputMat, levels);
+      areaNs = SystemClock.elapsedRealtimeNanos() - areaStartNs;
+      warpPerspective(source, rgba, transform, new Size(outputWidth, outputHeight), RGBA_BORDER);
+      releaseDownsampled(source, inputMat);
+      inputMat.release();
+    }
+
+    yRoi.release();
+    vuRoi.release();
+    yMat.release();
+    vuMat.release();
+    transform.release();
+
+    fillStats(stats, roi, width, height, areaScaled ? areaNs : -1, startNs);
+    return rgba;
+  }
+
+  /** Rectifies with the maps of an acquired cache entry, which is released before returning. */
+  private Mat rectifyCached(
+      YuvFrame frame, RemapCache.Entry entry, int levels, Stats stats, long startNs) {
+    final int width = frame.getWidth();
+    final int height = frame.getHeight();
+    Rect roi = entry.roi;
+
+    Mat yMat = new Mat(height, width, CvType.CV_8UC1, frame.getYPlane());
+    Mat vuMat = new Mat(height / 2, width / 2, CvType.CV_8UC2, frame.getVUPlane());
+    Mat yRoi = yMat.submat(roi.y, roi.y + roi.height, roi.x, roi.x + roi.width);
+    Mat vuRoi = vuMat.submat(roi.y / 2, (roi.y + roi.height) / 2, roi.x / 2, (roi.x + roi.width) / 2);
+
+    Mat rgba = new Mat();
+    final boolean areaScaled = mode == Mode.FULL_FRAME_RGBA || levels > 0;
+    final long areaStartNs = SystemClock.elapsedRealtimeNanos();
+    long areaNs;
+    try {
+      if (mode == Mode.YUV) {
+        Mat ySource = pyrDown(yRoi, levels);
+        Mat vuSource = pyrDown(vuRoi, levels);
+        areaNs = SystemClock.elapsedRealtimeNanos() - areaStartNs;
+        Mat yOut = new Mat();
+        Mat vuOut = new Mat();
+        remap(ySource, yOut, entry.lumaMap1, entry.lumaMap2, LUMA_BORDER);
+        remap(vuSource, vuOut, entry.chromaMap1, entry.chromaMap2, CHROMA_BORDER);
+        Imgproc.cvtColorTwoPlane(yOut, vuOut, rgba, Imgproc.COLOR_YUV2RGBA_NV21);
+        yOut.release();
+        vuOut.release();
+        releaseDownsampled(ySource, yRoi);
+        releaseDownsampled(vuSource, vuRoi);
+      } else {
+        Mat inputMat = new Mat();
+        Imgproc.cvtColorTwoPlane(yRoi, vuRoi, inputMat, Imgproc.COLOR_YUV2RGBA_NV21);
+        Mat source = pyrDown(inputMat, levels);
+        areaNs = SystemClock.elapsedRealtimeNanos() - areaStartNs;
+        remap(source, rgba, entry.lumaMap1, entry.lumaMap2, RGBA_BORDER);
+        releaseDownsampled(source, inputMat);
+        inputMat.release();
+      }
+    } finally {
+      remapCache.release(entry);
+    }
+
+    yRoi.release();
+    vuRoi.release();
+    yMat.release();
+    vuMat.release();
+
+    fillStats(stats, roi, width, height, areaScaled ? areaNs : -1, startNs);
+    return rgba;
+  }
+
+  /**
+   * @param areaNs time of the stages that scale with the source area, negative if there are none.
+   */
+  private static void fillStats(
+      Stats stats, Rect roi, int width, int height, long areaNs, long startNs) {
+    if (stats != null) {
+      float fraction = (float) roi.area() / ((float) width * height);
+      stats.roiAreaFraction = fraction;
+      stats.elapsedMillis = (SystemClock.elapsedRealtimeNanos() - startNs) / 1e6f;
+      stats.estimatedSavedMillis =
+          areaNs >= 0 ? areaNs / 1e6f * (1f / fraction - 1f) : Float.NaN;
+    }
+  }
+
+  /**
+   * Number of times the source region can be halved while the painting still spans at least the
+   * output size in both directions, measured along its longer opposite edges.
+   */
+  static int pyramidLevels(float[] corners, int outputWidth, int outputHeight) {
+    float[] edges = new float[4];
+    quadEdgeLengths(corners, edges);
+    final float spanX = Math.max(edges[0], edges[2]);
+    final float spanY = Math.max(edges[1], edges[3]);
+    int levels = 0;
+    while (levels < MAX_PYRAMID_LEVELS
+        && spanX / (2 << levels) >= outputWidth
+        && spanY / (2 << levels) >= outputHeight) {
+      levels++;
+    }
+    return levels;
+  }
+
+  /** Lengths of the top, right, bottom and left edges of the corner quad. */
+  static void quadEdgeLengths(float[] corners, float[] lengths) {
+    for (int i = 0; i < 4; i++) {
+      final int next = (i + 1) % 4;
+      lengths[i] =
+          (float)
+              Math.hypot(
+                  corners[2 * next] - corners[2 * i], corners[2 * next + 1] - corners[2 * i + 1]);
+    }
+  }
+
+  /**
+   * Corners relative to the ROI origin, scaled to {@code levels} pyramid levels below full
+   * resolution. A {@link Imgproc#pyrDown} output pixel {@code i} is centered on input pixel
+   * {@code 2 * i}, so scaling by a power of two keeps the planes aligned.
+   */
+  static float[] toRoiCorners(float[] corners, Rect roi, int levels) {
+    final float scale = 1f / (1 << levels);
+    float[] roiCorners = new float[8];
+    for (int i = 0; i < 4; i++) {
+      roiCorners[2 * i] = (corners[2 * i] - roi.x) * scale;
+      roiCorners[2 * i + 1] = (corners[2 * i + 1] - roi.y) * scale;
+    }
+    return roiCorners;
+  }
+
+  /** Halves {@code src} {@code levels} times; returns {@code src} itself for no levels. */
+  private static Mat pyrDown(Mat src, int levels) {
+    Mat result = src;
+    for (int i = 0; i < levels; i++) {
+      Mat half = new Mat();
+      Imgproc.pyrDown(result, half);
+      if (result != src) {
+        result.release();
+      }
+      result = half;
+    }
+    return result;
+  }
+
+  private static void releaseDownsampled(Mat downsampled, Mat src) {
+    if (downsampled != src) {
+      downsampled.release();
+    }
+  }
+
+  /**
+   * Bounding box of the corners grown by {@code margin} and clamped to the frame. The box is
+   * aligned to even coordinates so it maps exactly onto the half resolution chroma plane. Falls
+   * back to the full frame if the quad lies entirely outside it.
+   */
+  static Rect computeRoi(float[] corners, int width, int height, int margin) {
+    float minX = Float.MAX_VALUE;
+    float minY = Float.MAX_VALUE;
+    float maxX = -Float.MAX_VALUE;
+    float maxY = -Float.MAX_VALUE;
+    for (int i = 0; i < 4; i++) {
+      minX = Math.min(minX, corners[2 * i]);
+      maxX = Math.max(maxX, corners[2 * i]);
+      minY = Math.min(minY, corners[2 * i + 1]);
+      maxY = Math.max(maxY, corners[2 * i + 1]);
+    }
+
+    final int evenWidth = width & ~1;
+    final int evenHeight = height & ~1;
+    int left = Math.max(0, ((int) Math.floor(minX) - margin) & ~1);
+    int top = Math.max(0, ((int) Math.floor(minY) - margin) & ~1);
+    int right = Math.min(evenWidth, ((int) Math.ceil(maxX) + margin + 1) & ~1);
+    int bottom = Math.min(evenHeight, ((int) Math.ceil(maxY) + margin + 1) & ~1);
+    if (right <= left || bottom <= top) {
+      return new Rect(0, 0, evenWidth, evenHeight);
+    }
+    return new Rect(left, top, right - left, bottom - top);
+  }
+
+  /**
+   * Homography mapping the corner quad onto an {@code outputWidth} x {@code outputHeight} image,
+   * as a 3x3 {@link CvType#CV_64F} matrix. Computed in Java by {@link Homography#quadToRect}, so no
+   * call crosses into the native library. Throws {@link IllegalArgumentException} if the quad is
+   * degenerate.
+   */
+  static Mat getPerspectiveTransform(float[] corners, int outputWidth, int outputHeight) {
+    double[] values = new double[9];
+    if (!Homography.quadToRect(corners, outputWidth, outputHeight, values)) {
+      throw new IllegalArgumentException("Degenerate corners, no homography");
+    }
+    Mat transform = new Mat(3, 3, CvType.CV_64F);
+    transform.put(0, 0, values);
+    return transform;
+  }
+
+  private void warpYuv(
+      Mat yMat, Mat vuMat, Mat transform, int outputWidth, int outputHeight, Mat rgba) {
+    Mat yOut = new Mat();
+    Mat vuOut = new Mat();
+    Mat chromaTransform = toChromaTransform(transform);
+
+    warpPerspective(yMat, yOut, transform, new Size(outputWidth, outputHeight), LUMA_BORDER);
+    warpPerspective(
+        vuMat, vuOut, chromaTransform, new Size(outputWidth / 2, outputHeight / 2),
+        CHROMA_BORDER);
+    Imgproc.cvtColorTwoPlane(yOut, vuOut, rgba, Imgproc.COLOR_YUV2RGBA_NV21);
+
+    yOut.release();
+    vuOut.release();
+    chromaTransform.release();
+  }
+
+  private void warpPerspective(Mat src, Mat dst, Mat transform, Size size, Scalar borderValue) {
+    if (stripWarper != null) {
+      stripWarper.warpPerspective(src, dst, transform, size, borderValue);
+    } else {
+      StripWarper.warpOnce(src, dst, transform, size, borderValue);
+    }
+  }
+
+  private void remap(Mat src, Mat dst, Mat map1, Mat map2, Scalar borderValue) {
+    if (stripWarper != null) {
+      stripWarper.remap(src, dst, map1, map2, Imgproc.INTER_LINEAR, borderValue);
+    } else {
+      StripWarper.remapOnce(src, dst, map1, map2, Imgproc.INTER_LINEAR, borderValue);
+    }
+  }
+
+  /**
+   * Adjusts a full resolution homography for the half resolution chroma plane on both sides:
+   * {@code D * H * D^-1} with {@code D = diag(0.5, 0.5, 1)}.
+   */
+  private static Mat toChromaTransform(Mat transform) {
+    double[] h = new double[9];
+    transform.get(0, 0, h);
+    h[2] *= 0.5;
+    h[5] *= 0.5;
+    h[6] *= 2.0;
+    h[7] *= 2.0;
+    Mat chromaTransform = new Mat(3, 3, CvType.CV_64F);
+    chromaTransform.put(0, 0, h);
+    return chromaTransform;
+  }
+}
@@ -0,0 +1,161 @@
+package com.mojang.paintscan;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Zero shutter lag buffer of the most recent camera frames in which the painting was tracked.
+ * Frames are sampled from the frame update loop at a bounded rate, so a capture can pick the best
+ * recent frame instead of whatever the current frame happens to be.
+ *
+ * <p>The buffer owns its frames until they are taken; evicted frames go straight back to their
+ * pool. It holds at most {@code capacity} frames and never more than {@code maxBytes} of frame
+ * data. Not thread safe: fill and take from the UI thread.
+ */
+final class FrameRingBuffer {
+
+  /** A buffered frame with the state needed to turn it into a capture. */
+  static final class Entry {
+    final YuvFrame frame;
+    final float[] corners;
+    final float[] cameraPose;
+    final float[] imagePose;
+    final long timestampNs;
+    final float sharpness;
+    // Camera speed relative to the previous buffered frame, in meters plus radians per second.
+    // Lower is steadier; the first frame after a gap has no reference and gets MAX_VALUE.
+    float motion = Float.MAX_VALUE;
+
+    /**
+     * @param corners projected painting corners in frame pixels, see {@link CaptureSnapshot}.
+     * @param cameraPose camera pose as translation x/y/z followed by rotation quaternion x/y/z/w.
+     * @param imagePose center pose of the augmented image, same layout as {@code cameraPose}.
+     * @param sharpness {@link SharpnessScorer} score of the painting region.
+     */
+    Entry(
+        YuvFrame frame,
+        float[] corners,
+        float[] cameraPose,
+        float[] imagePose,
+        long timestampNs,
+        float sharpness) {
+      this.frame = frame;
+      this.corners = corners;
+      this.cameraPose = cameraPose;
+      this.imagePose = imagePose;
+      this.timestampNs = timestampNs;
+      this.sharpness = sharpness;
+    }
+  }
+
+  private final int capacity;
+  private final long maxBytes;
+  private final long minSampleIntervalNs;
+  private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+  private long lastSampleNs = -1;
+
+  /**
+   * @param capacity maximum number of buffered frames.
+   * @param maxBytes maximum frame data held, which can lower the frame count for large frames.
+   * @param sampleRateHz how many frames per second are buffered at most.
+   */
+  FrameRingBuffer(int capacity, long maxBytes, float sampleRateHz) {
+    this.capacity = capacity;
+    this.maxBytes = maxBytes;
+    this.minSampleIntervalNs = (long) (1e9 / sampleRateHz);
+  }
+
+  /** Whether a frame with this timestamp should be buffered, given the sample rate. */
+  public boolean shouldSample(long timestampNs) {
+    return capacity > 0 && (lastSampleNs < 0 || timestampNs - lastSampleNs >= minSampleIntervalNs);
+  }
+
+  /** Adds a frame, evicting the oldest ones beyond the count or memory limit. */
+  public void add(Entry entry) {
+    lastSampleNs = entry.timestampNs;
+    Entry previous = entries.peekLast();
+    if (previous != null) {
+      entry.motion = motionBetween(previous, entry);
+    }
+    entries.addLast(entry);
+
+    final int frameBytes = entry.frame.getBuffer().capacity();
+    final int maxFrames = (int) Math.max(1, Math.min(capacity, maxBytes / frameBytes));
+    while (entries.size() > maxFrames) {
+      entries.pollFirst().frame.release();
+    }
+  }
+
+  public boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Removes and returns the sharpest buffered frame, or null if the buffer is empty. Equally sharp
+   * frames are ranked by the steadier camera. The caller owns the returned frame.
+   */
+  public Entry takeBest() {
+    Entry best = null;
+    for (Entry entry : entries) {
+      if (best == null
+          || entry.sharpness > best.sharpness
+          || (entry.sharpness == best.sharpness && entry.motion < best.motion)) {
+        best = entry;
+      }
+    }
+    if (best != null) {
+      entries.remove(best);
+    }
+    return best;
+  }
+
+  /**
+   * Removes and returns up to {@code count} frames, best first in the order of {@link #takeBest()}.
+   * The caller owns the returned frames.
+   */
+  public List<Entry> takeBest(int count) {
+    List<Entry> best = new ArrayList<>(Math.min(count, entries.size()));
+    Entry entry;
+    while (best.size() < count && (entry = takeBest()) != null) {
+      best.add(entry);
+    }
+    return best;
+  }
+
+  /** Releases all buffered frames, e.g. when tracking is lost. */
+  public void clear() {
+    Iterator<Entry> it = entries.iterator();
+    while (it.hasNext()) {
+      it.next().frame.release();
+      it.remove();
+    }
+    lastSampleNs = -1;
+  }
+
+  private static float motionBetween(Entry from, Entry to) {
+    final float seconds = (to.timestampNs - from.timestampNs) / 1e9f;
+    if (seconds <= 0f) {
+      return Float.MAX_VALUE;
+    }
+    float dx = to.cameraPose[0] - from.cameraPose[0];
+    float dy = to.cameraPose[1] - from.cameraPose[1];
+    float dz = to.cameraPose[2] - from.cameraPose[2];
+    float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+    // Angle between the two rotations from the dot product of their quaternions.
+    float dot = 0f;
+    for (int i = 3; i < 7; i++) {
+      dot += to.cameraPose[i] * from.cameraPose[i];
+    }
+    float angle = 2f * (float) Math.acos(Math.min(1f, Math.abs(dot)));
+
+    return (distance + angle) / seconds;
+  }
+}
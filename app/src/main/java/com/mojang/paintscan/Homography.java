@@ -0,0 +1,116 @@
+package com.mojang.paintscan;
+
+/**
+ * Pure Java 4-point homographies between an output rectangle and a corner quad, as row-major 3x3
+ * matrices in {@code double[9]} with the last element normalized to 1.
+ *
+ * <p>The rectangle to quad mapping has a closed form (Heckbert, "Fundamentals of Texture Mapping
+ * and Image Warping", 1989), so no linear system is solved and nothing is allocated. Unlike
+ * {@code Imgproc.getPerspectiveTransform} it needs neither JNI nor the native library, so it also
+ * runs on a plain JVM.
+ */
+final class Homography {
+
+  private Homography() {}
+
+  /**
+   * Writes the homography mapping pixels of a {@code width} x {@code height} rectangle onto the quad
+   * given by {@code corners} (x/y pairs for upper left, upper right, lower right, lower left). This
+   * is the inverse map a warp needs to look up the source of each output pixel.
+   *
+   * @return false if the quad is degenerate, leaving {@code out} undefined.
+   */
+  static boolean rectToQuad(float[] corners, int width, int height, double[] out) {
+    final double x0 = corners[0];
+    final double y0 = corners[1];
+    final double x1 = corners[2];
+    final double y1 = corners[3];
+    final double x2 = corners[4];
+    final double y2 = corners[5];
+    final double x3 = corners[6];
+    final double y3 = corners[7];
+
+    // Unit square to quad.
+    final double sx = x0 - x1 + x2 - x3;
+    final double sy = y0 - y1 + y2 - y3;
+    double g;
+    double h;
+    if (sx == 0 && sy == 0) {
+      g = 0;
+      h = 0;
+    } else {
+      final double dx1 = x1 - x2;
+      final double dx2 = x3 - x2;
+      final double dy1 = y1 - y2;
+      final double dy2 = y3 - y2;
+      final double den = dx1 * dy2 - dx2 * dy1;
+      if (den == 0) {
+        return false;
+      }
+      g = (sx * dy2 - dx2 * sy) / den;
+      h = (dx1 * sy - sx * dy1) / den;
+    }
+
+    // Scale the unit square up to the rectangle: columns 0 and 1 divided by width and height.
+    out[0] = (x1 - x0 + g * x1) / width;
+    out[1] = (x3 - x0 + h * x3) / height;
+    out[2] = x0;
+    out[3] = (y1 - y0 + g * y1) / width;
+    out[4] = (y3 - y0 + h * y3) / height;
+    out[5] = y0;
+    out[6] = g / width;
+    out[7] = h / height;
+    out[8] = 1;
+    return true;
+  }
+
+  /**
+   * Writes the homography mapping the quad onto a {@code width} x {@code height} rectangle, the
+   * same matrix {@code Imgproc.getPerspectiveTransform} returns for the quad and the rectangle
+   * corners.
+   *
+   * @return false if the quad is degenerate, leaving {@code out} undefined.
+   */
+  static boolean quadToRect(float[] corners, int width, int height, double[] out) {
+    return rectToQuad(corners, width, height, out) && invert(out, out);
+  }
+
+  /**
+   * Inverts {@code m} into {@code out}, which may be the same array, and normalizes the result so
+   * its last element is 1.
+   *
+   * @return false if {@code m} is singular, leaving {@code out} unchanged.
+   */
+  static boolean invert(double[] m, double[] out) {
+    final double c0 = m[4] * m[8] - m[5] * m[7];
+    final double c1 = m[5] * m[6] - m[3] * m[8];
+    final double c2 = m[3] * m[7] - m[4] * m[6];
+    final double det = m[0] * c0 + m[1] * c1 + m[2] * c2;
+    if (Math.abs(det) < 1e-12) {
+      return false;
+    }
+
+    final double i0 = c0;
+    final double i1 = m[2] * m[7] - m[1] * m[8];
+    final double i2 = m[1] * m[5] - m[2] * m[4];
+    final double i3 = c1;
+    final double i4 = m[0] * m[8] - m[2] * m[6];
+    final double i5 = m[2] * m[3] - m[0] * m[5];
+    final double i6 = c2;
+    final double i7 = m[1] * m[6] - m[0] * m[7];
+    final double i8 = m[0] * m[4] - m[1] * m[3];
+
+    // The adjugate is the inverse up to scale, and homographies are only defined up to scale.
+    final double scale = i8 != 0 ? 1 / i8 : 1 / det;
+    out[0] = i0 * scale;
+    out[1] = i1 * scale;
+    out[2] = i2 * scale;
+    out[3] = i3 * scale;
+    out[4] = i4 * scale;
+    out[5] = i5 * scale;
+    out[6] = i6 * scale;
+    out[7] = i7 * scale;
+    out[8] = i8 * scale;
+    return true;
+  }
+}
@@ -0,0 +1,116 @@
+package com.mojang.paintscan;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The paintings to recognize, read from a JSON asset:
+ *
+ * <pre>
+ * {
+ *   "name": "paintings",
+ *   "images": [
+ *     {"name": "sunflowers", "asset": "catalog/sunflowers.jpg", "widthMeters": 0.5},
+ *     {"name": "kebab", "asset": "catalog/kebab.jpg", "shard": "museum"}
+ *   ]
+ * }
+ * </pre>
+ *
+ * <p>{@code name} becomes the augmented image name. {@code widthMeters} is the printed width if
+ * known, which speeds up initial detection. {@code shard} groups images that are recognized
+ * together, e.g. a template family or an event, see {@link #getShard}; images without one are in
+ * {@link #DEFAULT_SHARD}.
+ */
+final class ImageCatalog {
+  static final String DEFAULT_SHARD = "default";
+
+  /** One painting of the catalog. */
+  static final class Entry {
+    final String name;
+    final String asset;
+    /** Physical width, or 0 if unknown. */
+    final float widthMeters;
+    final String shard;
+
+    Entry(String name, String asset, float widthMeters, String shard) {
+      this.name = name;
+      this.asset = asset;
+      this.widthMeters = widthMeters;
+      this.shard = shard;
+    }
+  }
+
+  private final String name;
+  private final List<Entry> entries;
+
+  ImageCatalog(String name, List<Entry> entries) {
+    this.name = name;
+    this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+  }
+
+  static ImageCatalog read(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      bytes.write(buffer, 0, read);
+    }
+    try {
+      JSONObject json = new JSONObject(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+      JSONArray images = json.getJSONArray("images");
+      List<Entry> entries = new ArrayList<>(images.length());
+      for (int i = 0; i < images.length(); i++) {
+        JSONObject image = images.getJSONObject(i);
+        entries.add(
+            new Entry(
+                image.getString("name"),
+                image.getString("asset"),
+                (float) image.optDouble("widthMeters", 0),
+                image.optString("shard", DEFAULT_SHARD)));
+      }
+      return new ImageCatalog(json.getString("name"), entries);
+    } catch (JSONException e) {
+      throw new IOException("Invalid image catalog: " + e.getMessage(), e);
+    }
+  }
+
+  /** Identifies the catalog, e.g. to name its cached database. */
+  public String getName() {
+    return name;
+  }
+
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /** The shards of the catalog, in the order they first appear. */
+  public List<String> getShardNames() {
+    Set<String> shards = new LinkedHashSet<>();
+    for (Entry entry : entries) {
+      shards.add(entry.shard);
+    }
+    return new ArrayList<>(shards);
+  }
+
+  /** The images of one shard, as a catalog named after this one and the shard. */
+  public ImageCatalog getShard(String shard) {
+    List<Entry> shardEntries = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (entry.shard.equals(shard)) {
+        shardEntries.add(entry);
+      }
+    }
+    return new ImageCatalog(name + "_" + shard, shardEntries);
+  }
+}
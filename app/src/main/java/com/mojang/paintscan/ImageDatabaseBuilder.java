@@ -0,0 +1,349 @@
+package com.mojang.paintscan;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.ar.core.AugmentedImageDatabase;
+import com.google.ar.core.Session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds the {@link AugmentedImageDatabase} of an {@link ImageCatalog} in the background, for
+ * catalogs too large to build while the session is configured.
+ *
+ * <ul>
+ *   <li>Images are decoded in parallel, subsampled with {@link BitmapFactory.Options#inSampleSize}
+ *       to the smallest power of two reduction that keeps {@code minImageSide} pixels on the short
+ *       side. Only a few images are decoded ahead of the one being added, bounding memory.
+ *   <li>With a {@link TemplateScreener}, each image is screened while it is decoded, and images
+ *       unlikely to track are left out before reaching ARCore.
+ *   <li>Images are added one at a time on the builder thread, reporting progress after each.
+ *   <li>With an {@link ImageDatabaseCache}, a catalog whose images are unchanged is deserialized
+ *       instead, and a newly built database is stored.
+ * </ul>
+ *
+ * <p>{@link Listener} callbacks run on the UI thread.
+ */
+final class ImageDatabaseBuilder {
+  private static final String TAG = "ImageDatabaseBuilder";
+
+  // Images decoded ahead of the one being added, per decoding thread.
+  private static final int DECODE_AHEAD_PER_THREAD = 2;
+
+  /** Receives the outcome of a build on the UI thread. */
+  interface Listener {
+    void onProgress(int addedCount, int totalCount);
+
+    /**
+     * The database is complete; images that could not be decoded or added, or that were rejected
+     * by screening, are left out.
+     */
+    void onDatabaseReady(AugmentedImageDatabase database);
+
+    void onBuildFailed(Exception e);
+  }
+
+  /** A decoded image and what it cost. */
+  private static final class Decoded {
+    final Bitmap bitmap;
+    final int sampleSize;
+    final long decodeMillis;
+
+    Decoded(Bitmap bitmap, int sampleSize, long decodeMillis) {
+      this.bitmap = bitmap;
+      this.sampleSize = sampleSize;
+      this.decodeMillis = decodeMillis;
+    }
+  }
+
+  private final AssetManager assetManager;
+  private final ImageDatabaseCache cache;
+  private final TemplateScreener screener;
+  private final int decodeThreads;
+  private final int minImageSide;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  private Thread builderThread;
+  private volatile boolean cancelled;
+
+  /**
+   * @param cache stores built databases, may be null to always build.
+   * @param screener screens images before they are added, may be null to add all images.
+   * @param decodeThreads images decoded in parallel.
+   * @param minImageSide shortest side images are subsampled to at least, in pixels.
+   */
+  ImageDatabaseBuilder(
+      AssetManager assetManager,
+      ImageDatabaseCache cache,
+      TemplateScreener screener,
+      int decodeThreads,
+      int minImageSide) {
+    this.assetManager = assetManager;
+    this.cache = cache;
+    this.screener = screener;
+    this.decodeThreads = Math.max(1, decodeThreads);
+    this.minImageSide = minImageSide;
+  }
+
+  /** Starts building the catalog's database for {@code session}. Builds run one at a time. */
+  public synchronized void start(Session session, ImageCatalog catalog, Listener listener) {
+    if (builderThread != null && builderThread.isAlive()) {
+      throw new IllegalStateException("A build is already running");
+    }
+    cancelled = false;
+    builderThread = new Thread(() -> run(session, catalog, listener), TAG);
+    builderThread.setPriority(Thread.MIN_PRIORITY);
+    builderThread.start();
+  }
+
+  /**
+   * Stops running builds, including ones run by {@link #build}; listeners are not called anymore.
+   */
+  public synchronized void cancel() {
+    cancelled = true;
+    if (builderThread != null) {
+      builderThread.interrupt();
+    }
+  }
+
+  private void run(Session session, ImageCatalog catalog, Listener listener) {
+    try {
+      AugmentedImageDatabase database = build(session, catalog, listener);
+      if (database != null) {
+        post(() -> listener.onDatabaseReady(database));
+      }
+    } catch (IOException | ExecutionException | RuntimeException e) {
+      Log.e(TAG, "Failed to build " + catalog.getName(), e);
+      post(() -> listener.onBuildFailed(e));
+    } catch (InterruptedException e) {
+      // Cancelled.
+    }
+  }
+
+  /**
+   * Builds the catalog's database on the calling thread, which should not be the UI thread.
+   * Progress is posted to {@code listener} if it is not null. Returns null if the build was
+   * cancelled.
+   */
+  AugmentedImageDatabase build(Session session, ImageCatalog catalog, Listener listener)
+      throws IOException, ExecutionException, InterruptedException {
+    final long startUptime = SystemClock.uptimeMillis();
+    final List<ImageCatalog.Entry> entries = catalog.getEntries();
+    final int total = entries.size();
+    ExecutorService decoder = null;
+    @SuppressWarnings("unchecked")
+    Future<Decoded>[] pending = new Future[total];
+    try {
+      String key = null;
+      if (cache != null) {
+        key = computeKey(entries);
+        AugmentedImageDatabase cached = cache.load(session, catalog.getName(), key);
+        if (cached != null) {
+          postProgress(listener, total, total);
+          return cached;
+        }
+      }
+
+      decoder = Executors.newFixedThreadPool(decodeThreads, runnable -> {
+        Thread thread = new Thread(runnable, TAG + "Decoder");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      });
+      final int decodeAhead = decodeThreads * DECODE_AHEAD_PER_THREAD;
+      int submitted = 0;
+      int addedCount = 0;
+      AugmentedImageDatabase database = new AugmentedImageDatabase(session);
+
+      for (int i = 0; i < total && !cancelled; i++) {
+        for (; submitted < Math.min(total, i + decodeAhead); submitted++) {
+          final ImageCatalog.Entry entry = entries.get(submitted);
+          pending[submitted] = decoder.submit(() -> decode(entry));
+        }
+        final ImageCatalog.Entry entry = entries.get(i);
+        Decoded decoded = pending[i].get();
+        pending[i] = null;
+        if (decoded == null) {
+          // Skipped, but still counts towards the progress.
+          postProgress(listener, i + 1, total);
+          continue;
+        }
+
+        final long addStartUptime = SystemClock.uptimeMillis();
+        try {
+          if (entry.widthMeters > 0) {
+            database.addImage(entry.name, decoded.bitmap, entry.widthMeters);
+          } else {
+            database.addImage(entry.name, decoded.bitmap);
+          }
+          addedCount++;
+          Log.d(TAG, "Added " + entry.name + " (" + decoded.bitmap.getWidth() + "x"
+              + decoded.bitmap.getHeight() + ", 1/" + decoded.sampleSize + "): decoded in "
+              + decoded.decodeMillis + " ms, added in "
+              + (SystemClock.uptimeMillis() - addStartUptime) + " ms");
+        } catch (RuntimeException e) {
+          // E.g. too few features to track.
+          Log.w(TAG, "Skipping " + entry.name + ": " + e.getMessage());
+        }
+        decoded.bitmap.recycle();
+
+        postProgress(listener, i + 1, total);
+      }
+      if (cancelled) {
+        return null;
+      }
+
+      if (screener != null) {
+        screener.saveCache();
+      }
+      Log.i(TAG, "Built " + catalog.getName() + " with " + addedCount + " of " + total
+          + " images in " + (SystemClock.uptimeMillis() - startUptime) + " ms");
+      if (cache != null) {
+        cache.store(database, catalog.getName(), key);
+      }
+      return database;
+    } finally {
+      if (decoder != null) {
+        decoder.shutdownNow();
+        recycleDecoded(pending);
+      }
+    }
+  }
+
+  /**
+   * Recycles the bitmaps of decodes that finished but were not added, e.g. after a cancel, and
+   * cancels the others.
+   */
+  private static void recycleDecoded(Future<Decoded>[] pending) {
+    for (Future<Decoded> future : pending) {
+      if (future == null) {
+        continue;
+      }
+      if (!future.isDone()) {
+        future.cancel(true);
+        continue;
+      }
+      try {
+        Decoded decoded = future.get();
+        if (decoded != null) {
+          decoded.bitmap.recycle();
+        }
+      } catch (ExecutionException | InterruptedException | CancellationException e) {
+        // Nothing was decoded.
+      }
+    }
+  }
+
+  /** Hashes the build settings and the images for an {@link ImageDatabaseCache} key. */
+  String computeKey(List<ImageCatalog.Entry> entries) throws IOException {
+    final long startUptime = SystemClock.uptimeMillis();
+    ImageDatabaseCache.Key key = new ImageDatabaseCache.Key();
+    key.addParameters("minImageSide " + minImageSide + ", screener "
+        + (screener != null ? screener.describeParameters() : "none"));
+    for (ImageCatalog.Entry entry : entries) {
+      try (InputStream in = assetManager.open(entry.asset)) {
+        key.addImage(entry.name, in, entry.widthMeters);
+      }
+    }
+    Log.d(TAG, "Hashed " + entries.size() + " images in "
+        + (SystemClock.uptimeMillis() - startUptime) + " ms");
+    return key.build();
+  }
+
+  /** Decodes the entry's image, or returns null if it cannot be read or is rejected. */
+  private Decoded decode(ImageCatalog.Entry entry) {
+    final long startUptime = SystemClock.uptimeMillis();
+    try {
+      byte[] encoded = readAsset(entry.asset);
+      if (screener != null && !passesScreening(entry, encoded)) {
+        return null;
+      }
+
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+      int sampleSize = 1;
+      final int shortSide = Math.min(options.outWidth, options.outHeight);
+      while (shortSide / (sampleSize * 2) >= minImageSide) {
+        sampleSize *= 2;
+      }
+
+      options = new BitmapFactory.Options();
+      options.inSampleSize = sampleSize;
+      // ARCore only uses the luminance; 16 bit pixels halve the memory of 32 bit ones.
+      options.inPreferredConfig = Bitmap.Config.RGB_565;
+      Bitmap bitmap = BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+      if (bitmap == null) {
+        Log.w(TAG, "Could not decode " + entry.asset);
+        return null;
+      }
+      return new Decoded(bitmap, sampleSize, SystemClock.uptimeMillis() - startUptime);
+    } catch (IOException e) {
+      Log.w(TAG, "Could not read " + entry.asset + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  private boolean passesScreening(ImageCatalog.Entry entry, byte[] encoded) {
+    final long startUptime = SystemClock.uptimeMillis();
+    TemplateScreener.Score score = screener.screen(encoded);
+    if (score == null) {
+      Log.w(TAG, "Could not decode " + entry.asset);
+      return false;
+    }
+    TemplateScreener.Verdict verdict = screener.getVerdict(score);
+    final String message = "Screened " + entry.name + " in "
+        + (SystemClock.uptimeMillis() - startUptime) + " ms: " + score + ", " + verdict;
+    switch (verdict) {
+      case REJECT:
+        Log.w(TAG, message + ", skipping");
+        return false;
+      case FLAG:
+        Log.w(TAG, message);
+        return true;
+      default:
+        Log.d(TAG, message);
+        return true;
+    }
+  }
+
+  private byte[] readAsset(String name) throws IOException {
+    try (InputStream in = assetManager.open(name)) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[16 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, read);
+      }
+      return bytes.toByteArray();
+    }
+  }
+
+  private void postProgress(Listener listener, int addedCount, int totalCount) {
+    if (listener != null) {
+      post(() -> listener.onProgress(addedCount, totalCount));
+    }
+  }
+
+  /** Runs a listener call on the UI thread unless the build was cancelled meanwhile. */
+  private void post(Runnable call) {
+    mainHandler.post(() -> {
+      if (!cancelled) {
+        call.run();
+      }
+    });
+  }
+}
@@ -0,0 +1,232 @@
+package com.mojang.paintscan;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.ar.core.AugmentedImageDatabase;
+import com.google.ar.core.Session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Persists built {@link AugmentedImageDatabase}s, so later sessions deserialize them instead of
+ * decoding every image and running {@link AugmentedImageDatabase#addImage} again.
+ *
+ * <p>Each database is stored under its name and a {@link Key} hashed from the content of its
+ * source images and the settings they were added with. When either changes the key changes, the
+ * stale file is no longer found, and it is deleted once the rebuilt database is stored.
+ */
+final class ImageDatabaseCache {
+  private static final String TAG = "ImageDatabaseCache";
+  private static final String SUFFIX = ".imgdb";
+  private static final String TEMP_SUFFIX = ".tmp";
+  // Part of every key, so changing how databases are built invalidates the stored ones.
+  private static final int FORMAT_VERSION = 1;
+
+  /** Content hash of the images of a database. */
+  static final class Key {
+    private final MessageDigest digest;
+
+    Key() {
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-256 is not available", e);
+      }
+      digest.update(ByteBuffer.allocate(4).putInt(FORMAT_VERSION).array());
+    }
+
+    /**
+     * Adds the build settings that decide which images go into the database and how they are
+     * decoded, so changing them rebuilds it. Add them before the images.
+     */
+    Key addParameters(String parameters) {
+      digest.update(parameters.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      return this;
+    }
+
+    /** Adds an image as added to the database: its name, encoded bytes and physical width. */
+    Key addImage(String name, byte[] encoded, float widthInMeters) {
+      addHeader(name, widthInMeters);
+      digest.update(encoded);
+      addLength(encoded.length);
+      return this;
+    }
+
+    /** Like {@link #addImage(String, byte[], float)}, streaming the encoded bytes. */
+    Key addImage(String name, InputStream encoded, float widthInMeters) throws IOException {
+      addHeader(name, widthInMeters);
+      byte[] buffer = new byte[16 * 1024];
+      long length = 0;
+      int read;
+      while ((read = encoded.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+        length += read;
+      }
+      addLength(length);
+      return this;
+    }
+
+    private void addHeader(String name, float widthInMeters) {
+      digest.update(name.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      digest.update(ByteBuffer.allocate(4).putFloat(widthInMeters).array());
+    }
+
+    // After the content, so images are unambiguous without knowing the length up front.
+    private void addLength(long length) {
+      digest.update(ByteBuffer.allocate(8).putLong(length).array());
+    }
+
+    /** Finishes the key; no images may be added afterwards. */
+    String build() {
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest()) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    }
+  }
+
+  /** Writes the content of a stored file. */
+  private interface Content {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  private final File dir;
+
+  /** @param dir directory holding the stored databases, created when first needed. */
+  ImageDatabaseCache(File dir) {
+    this.dir = dir;
+  }
+
+  /** Returns the stored database {@code name} with this key, or null if there is none. */
+  public AugmentedImageDatabase load(Session session, String name, String key) {
+    File file = getFile(name, key);
+    if (!file.exists()) {
+      return null;
+    }
+    final long startUptime = SystemClock.uptimeMillis();
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      AugmentedImageDatabase database = AugmentedImageDatabase.deserialize(session, in);
+      Log.i(TAG, "Loaded " + name + " with " + database.getNumImages() + " images in "
+          + (SystemClock.uptimeMillis() - startUptime) + " ms");
+      return database;
+    } catch (IOException | RuntimeException e) {
+      // E.g. written by an incompatible ARCore version; rebuilding replaces it.
+      Log.w(TAG, "Discarding unreadable " + file + ": " + e.getMessage());
+      file.delete();
+      return null;
+    }
+  }
+
+  /**
+   * Returns the serialized database {@code name} with this key, or null if there is none. The
+   * bytes are not checked; a caller failing to deserialize them should {@link #remove} them.
+   */
+  public byte[] loadSerialized(String name, String key) {
+    File file = getFile(name, key);
+    if (!file.exists()) {
+      return null;
+    }
+    final long startUptime = SystemClock.uptimeMillis();
+    byte[] serialized = new byte[(int) file.length()];
+    try (InputStream in = new FileInputStream(file)) {
+      int offset = 0;
+      int read;
+      while (offset < serialized.length
+          && (read = in.read(serialized, offset, serialized.length - offset)) != -1) {
+        offset += read;
+      }
+      if (offset < serialized.length) {
+        throw new IOException("Truncated");
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Discarding unreadable " + file + ": " + e.getMessage());
+      file.delete();
+      return null;
+    }
+    Log.i(TAG, "Read " + name + " (" + serialized.length / 1024 + " KB) in "
+        + (SystemClock.uptimeMillis() - startUptime) + " ms");
+    return serialized;
+  }
+
+  /** Deletes the stored database {@code name} with this key, e.g. because it is unreadable. */
+  public void remove(String name, String key) {
+    getFile(name, key).delete();
+  }
+
+  /**
+   * Stores the database under {@code name} and this key, replacing any stored versions of it with
+   * other keys. Returns false if it could not be written.
+   */
+  public boolean store(AugmentedImageDatabase database, String name, String key) {
+    return store(name, key, database::serialize);
+  }
+
+  /** Like {@link #store(AugmentedImageDatabase, String, String)}, for a serialized database. */
+  public boolean storeSerialized(byte[] serialized, String name, String key) {
+    return store(name, key, out -> out.write(serialized));
+  }
+
+  private boolean store(String name, String key, Content content) {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      Log.w(TAG, "Could not create " + dir);
+      return false;
+    }
+    final long startUptime = SystemClock.uptimeMillis();
+    File file = getFile(name, key);
+    File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+      content.writeTo(out);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to store " + name + ": " + e.getMessage());
+      tempFile.delete();
+      return false;
+    }
+    if (!tempFile.renameTo(file)) {
+      Log.w(TAG, "Could not rename " + tempFile + " to " + file);
+      tempFile.delete();
+      return false;
+    }
+    deleteStale(name, file);
+    Log.i(TAG, "Stored " + name + " (" + file.length() / 1024 + " KB) in "
+        + (SystemClock.uptimeMillis() - startUptime) + " ms");
+    return true;
+  }
+
+  private File getFile(String name, String key) {
+    return new File(dir, name + "_" + key + SUFFIX);
+  }
+
+  /** Deletes the other stored versions of database {@code name}. */
+  private void deleteStale(String name, File current) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    final String prefix = name + "_";
+    final int length = current.getName().length();
+    for (File file : files) {
+      String fileName = file.getName();
+      // Same length, so a database whose name starts with this one's name is not matched.
+      if (fileName.startsWith(prefix) && fileName.endsWith(SUFFIX) && fileName.length() == length
+          && !file.equals(current)) {
+        Log.d(TAG, "Deleting stale " + fileName);
+        file.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,287 @@
+package com.mojang.paintscan;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.ar.core.AugmentedImageDatabase;
+import com.google.ar.core.Config;
+import com.google.ar.core.Session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Splits an {@link ImageCatalog} into one {@link AugmentedImageDatabase} per shard, so ARCore only
+ * matches against the paintings relevant at the moment and each database stays small to load.
+ *
+ * <p>Shards are kept serialized in memory, in a least recently used cache bounded by
+ * {@code maxCachedBytes}. A shard missing from it is read from the {@link ImageDatabaseCache}, or
+ * built and stored there. {@link #preload} fills the memory cache ahead of a switch, so {@link
+ * #switchTo} only deserializes the shard in the background and then reconfigures the session on
+ * the UI thread. The time of each step is logged, and reconfiguring is checked against {@code
+ * FRAME_BUDGET_MS}.
+ *
+ * <p>Shards are loaded one at a time on a background thread, in the order requested. {@link
+ * Listener} callbacks run on the UI thread.
+ */
+final class ImageDatabaseShards {
+  private static final String TAG = "ImageDatabaseShards";
+
+  // Time a switch may block the UI thread without dropping a frame at 60 fps.
+  private static final long FRAME_BUDGET_MS = 16;
+
+  /** Receives the outcome of switches on the UI thread. */
+  interface Listener {
+    void onShardActive(String shard, int imageCount);
+
+    void onShardFailed(String shard, Exception e);
+  }
+
+  /** Where a shard's serialized database came from, for logging. */
+  private enum Source {
+    MEMORY,
+    DISK,
+    BUILT
+  }
+
+  private final Session session;
+  private final ImageCatalog catalog;
+  private final ImageDatabaseBuilder builder;
+  private final ImageDatabaseCache cache;
+  private final long maxCachedBytes;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final ExecutorService loader = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, TAG);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    return thread;
+  });
+
+  // Access ordered, so the least recently used shard is evicted first.
+  private final LinkedHashMap<String, byte[]> serializedShards =
+      new LinkedHashMap<>(8, 0.75f, true);
+  private long cachedBytes;
+  // Incremented by every switch, so a slower earlier switch does not override a later one.
+  private int switchSequence;
+  private String activeShard;
+  private volatile boolean shutDown;
+
+  /**
+   * @param builder builds shards missing from the cache; should have no cache of its own.
+   * @param cache stores serialized shards across sessions, may be null.
+   * @param maxCachedBytes total size of the serialized shards kept in memory.
+   */
+  ImageDatabaseShards(
+      Session session,
+      ImageCatalog catalog,
+      ImageDatabaseBuilder builder,
+      ImageDatabaseCache cache,
+      long maxCachedBytes) {
+    this.session = session;
+    this.catalog = catalog;
+    this.builder = builder;
+    this.cache = cache;
+    this.maxCachedBytes = maxCachedBytes;
+  }
+
+  public List<String> getShardNames() {
+    return catalog.getShardNames();
+  }
+
+  /** The shard last switched to successfully, or null before the first switch. */
+  public synchronized String getActiveShard() {
+    return activeShard;
+  }
+
+  /** Loads a shard into the memory cache in the background, so switching to it is quick. */
+  public void preload(String shard) {
+    loader.execute(() -> {
+      try {
+        getSerialized(shard);
+      } catch (IOException | ExecutionException | RuntimeException e) {
+        Log.w(TAG, "Could not preload " + shard + ": " + e.getMessage());
+      } catch (InterruptedException e) {
+        // Shut down.
+      }
+    });
+  }
+
+  /**
+   * Makes the session recognize the paintings of {@code shard}, replacing the current database.
+   * Does nothing if a later switch is requested before this one completes.
+   */
+  public void switchTo(String shard, Listener listener) {
+    final int sequence;
+    synchronized (this) {
+      sequence = ++switchSequence;
+    }
+    final long startUptime = SystemClock.uptimeMillis();
+    loader.execute(() -> {
+      if (isSuperseded(sequence)) {
+        return;
+      }
+      try {
+        final long loadStartUptime = SystemClock.uptimeMillis();
+        Source[] source = new Source[1];
+        byte[] serialized = getSerialized(shard, source);
+        final long loadMillis = SystemClock.uptimeMillis() - loadStartUptime;
+
+        final long deserializeStartUptime = SystemClock.uptimeMillis();
+        AugmentedImageDatabase database;
+        try {
+          database =
+              AugmentedImageDatabase.deserialize(session, new ByteArrayInputStream(serialized));
+        } catch (IOException | RuntimeException e) {
+          // E.g. stored by an incompatible ARCore version; the next switch rebuilds it.
+          discard(shard);
+          throw e;
+        }
+        final long deserializeMillis = SystemClock.uptimeMillis() - deserializeStartUptime;
+
+        mainHandler.post(() -> {
+          if (shutDown || isSuperseded(sequence)) {
+            return;
+          }
+          final long configureStartUptime = SystemClock.uptimeMillis();
+          try {
+            Config config = session.getConfig();
+            config.setAugmentedImageDatabase(database);
+            session.configure(config);
+          } catch (RuntimeException e) {
+            // E.g. the session was closed meanwhile.
+            Log.e(TAG, "Could not switch to " + shard, e);
+            listener.onShardFailed(shard, e);
+            return;
+          }
+          final long configureMillis = SystemClock.uptimeMillis() - configureStartUptime;
+          synchronized (this) {
+            activeShard = shard;
+          }
+
+          final String timing = "Switched to " + shard + " (" + database.getNumImages()
+              + " images) in " + (SystemClock.uptimeMillis() - startUptime) + " ms: load ("
+              + source[0] + ") " + loadMillis + " ms, deserialize " + deserializeMillis
+              + " ms, configure " + configureMillis + " ms";
+          if (configureMillis > FRAME_BUDGET_MS) {
+            Log.w(TAG, timing + ", over the " + FRAME_BUDGET_MS + " ms frame budget");
+          } else {
+            Log.i(TAG, timing);
+          }
+          listener.onShardActive(shard, database.getNumImages());
+        });
+      } catch (IOException | ExecutionException | RuntimeException e) {
+        Log.e(TAG, "Could not load " + shard, e);
+        mainHandler.post(() -> {
+          if (!shutDown) {
+            listener.onShardFailed(shard, e);
+          }
+        });
+      } catch (InterruptedException e) {
+        // Shut down.
+      }
+    });
+  }
+
+  /** Stops loading shards; listeners are not called anymore. */
+  public void shutdown() {
+    shutDown = true;
+    builder.cancel();
+    loader.shutdownNow();
+    synchronized (this) {
+      serializedShards.clear();
+      cachedBytes = 0;
+    }
+  }
+
+  private synchronized boolean isSuperseded(int sequence) {
+    return sequence != switchSequence;
+  }
+
+  private byte[] getSerialized(String shard)
+      throws IOException, ExecutionException, InterruptedException {
+    return getSerialized(shard, new Source[1]);
+  }
+
+  /** Returns the serialized shard, loading it into the memory cache if needed. */
+  private byte[] getSerialized(String shard, Source[] source)
+      throws IOException, ExecutionException, InterruptedException {
+    synchronized (this) {
+      byte[] serialized = serializedShards.get(shard);
+      if (serialized != null) {
+        source[0] = Source.MEMORY;
+        return serialized;
+      }
+    }
+
+    ImageCatalog shardCatalog = catalog.getShard(shard);
+    if (shardCatalog.getEntries().isEmpty()) {
+      throw new IllegalArgumentException("No images in shard " + shard);
+    }
+    String key = null;
+    byte[] serialized = null;
+    if (cache != null) {
+      key = builder.computeKey(shardCatalog.getEntries());
+      serialized = cache.loadSerialized(shardCatalog.getName(), key);
+      source[0] = Source.DISK;
+    }
+    if (serialized == null) {
+      AugmentedImageDatabase database = builder.build(session, shardCatalog, null);
+      if (database == null) {
+        throw new InterruptedException("Cancelled");
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      database.serialize(out);
+      serialized = out.toByteArray();
+      source[0] = Source.BUILT;
+      if (cache != null) {
+        cache.storeSerialized(serialized, shardCatalog.getName(), key);
+      }
+    }
+
+    synchronized (this) {
+      if (!shutDown) {
+        serializedShards.put(shard, serialized);
+        cachedBytes += serialized.length;
+        evict(shard);
+      }
+    }
+    return serialized;
+  }
+
+  /** Drops a shard from the memory cache and the image database cache. */
+  private void discard(String shard) throws IOException {
+    synchronized (this) {
+      byte[] serialized = serializedShards.remove(shard);
+      if (serialized != null) {
+        cachedBytes -= serialized.length;
+      }
+    }
+    if (cache != null) {
+      ImageCatalog shardCatalog = catalog.getShard(shard);
+      cache.remove(shardCatalog.getName(), builder.computeKey(shardCatalog.getEntries()));
+    }
+  }
+
+  /** Evicts least recently used shards other than {@code keep} until the cache fits its bound. */
+  private void evict(String keep) {
+    Iterator<Map.Entry<String, byte[]>> shards = serializedShards.entrySet().iterator();
+    while (cachedBytes > maxCachedBytes && shards.hasNext()) {
+      Map.Entry<String, byte[]> eldest = shards.next();
+      if (!eldest.getKey().equals(keep)) {
+        Log.d(TAG, "Evicting " + eldest.getKey() + " (" + eldest.getValue().length / 1024
+            + " KB)");
+        cachedBytes -= eldest.getValue().length;
+        shards.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package com.mojang.paintscan;
+
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Location of the images produced by a capture. Writing them is done by {@link ImageWriter}.
+ */
+final class ImageFiles {
+  private static final String TAG = "ImageFiles";
+
+  private ImageFiles() {}
+
+  static void createPhotoOutputFolder() {
+    try {
+      File file = generateSaveFile("foo");
+      File folder = file.getParentFile();
+      if (!folder.exists()) {
+        if (!folder.mkdirs()) {
+          throw new IOException();
+        }
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to create saved_images directory: " + e.getMessage());
+      e.printStackTrace();
+    }
+  }
+
+  static File generateSaveFile(String fileName) {
+    return new File(Environment.getExternalStorageDirectory(), "/saved_images/" + fileName);
+  }
+}
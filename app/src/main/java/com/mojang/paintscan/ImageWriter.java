@@ -0,0 +1,229 @@
+package com.mojang.paintscan;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Write-behind persistence for capture images. Writes are queued in memory and performed by a
+ * single writer thread, so capture processing never waits on storage.
+ *
+ * <ul>
+ *   <li>The queue is bounded; {@link #write} blocks the producer while it is full. Producers are
+ *       capture workers, never the UI thread.
+ *   <li>A write to a file name that is still queued replaces the queued data instead of adding a
+ *       second write, so callers must give distinct images distinct names.
+ *   <li>Each file is written to a temporary file with a {@link FileChannel} and renamed into place,
+ *       so readers never see a partial image. With fsync enabled the data is forced to storage
+ *       before the rename, so a crash cannot leave an empty file under the final name.
+ *   <li>A failed write is logged and dropped; the writer thread keeps serving the queue.
+ * </ul>
+ */
+final class ImageWriter {
+  private static final String TAG = "ImageWriter";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final int queueCapacity;
+  private final boolean fsync;
+  private final int jpegQuality;
+  private final Thread writerThread;
+
+  // Guarded by "this".
+  private final LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<>();
+  private boolean writing;
+  private boolean shutdown;
+  private long writeCount;
+  private long coalescedCount;
+  private long totalWriteNs;
+  private long lastWriteNs;
+
+  /**
+   * @param queueCapacity writes held in memory before {@link #write} blocks.
+   * @param fsync force each file to storage before it is renamed into place.
+   * @param jpegQuality quality used when encoding bitmaps.
+   */
+  ImageWriter(int queueCapacity, boolean fsync, int jpegQuality) {
+    this.queueCapacity = queueCapacity;
+    this.fsync = fsync;
+    this.jpegQuality = jpegQuality;
+    writerThread = new Thread(this::runWriter, TAG);
+    writerThread.start();
+  }
+
+  /** Queues already encoded image data for {@code fileName}. */
+  public void write(String fileName, byte[] data) {
+    enqueue(new PendingWrite(fileName, data, null));
+  }
+
+  /**
+   * Queues {@code bitmap} to be encoded and written on the writer thread: as PNG if the file name
+   * ends with {@code .png}, as JPEG otherwise. The bitmap must not be modified or recycled
+   * afterwards.
+   */
+  public void write(String fileName, Bitmap bitmap) {
+    enqueue(new PendingWrite(fileName, null, bitmap));
+  }
+
+  /**
+   * Blocks until every write queued so far is on storage, or until the timeout expires. Returns
+   * false on timeout.
+   */
+  public synchronized boolean flush(long timeoutMillis) throws InterruptedException {
+    final long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+    while (!pending.isEmpty() || writing) {
+      long remaining = deadline - SystemClock.uptimeMillis();
+      if (remaining <= 0) {
+        return false;
+      }
+      wait(remaining);
+    }
+    return true;
+  }
+
+  /**
+   * Stops accepting writes. Queued writes are still drained by the writer thread, which exits
+   * afterwards; call {@link #flush} first to wait for them.
+   */
+  public synchronized void shutdown() {
+    shutdown = true;
+    notifyAll();
+  }
+
+  /** Writes waiting for the writer thread. */
+  public synchronized int getQueueDepth() {
+    return pending.size();
+  }
+
+  /** Writes that replaced a still queued write to the same file. */
+  public synchronized long getCoalescedCount() {
+    return coalescedCount;
+  }
+
+  /** Duration of the most recent write, including encoding. */
+  public synchronized float getLastWriteMillis() {
+    return lastWriteNs / 1e6f;
+  }
+
+  public synchronized float getMeanWriteMillis() {
+    return writeCount == 0 ? 0f : totalWriteNs / 1e6f / writeCount;
+  }
+
+  private synchronized void enqueue(PendingWrite write) {
+    if (shutdown) {
+      Log.w(TAG, "Writer shut down, dropping " + write.fileName);
+      return;
+    }
+    if (pending.containsKey(write.fileName)) {
+      pending.put(write.fileName, write);
+      coalescedCount++;
+      return;
+    }
+    while (pending.size() >= queueCapacity && !shutdown) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        Log.w(TAG, "Interrupted while queueing " + write.fileName);
+        return;
+      }
+    }
+    pending.put(write.fileName, write);
+    notifyAll();
+  }
+
+  private void runWriter() {
+    while (true) {
+      PendingWrite write;
+      synchronized (this) {
+        while (pending.isEmpty() && !shutdown) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (pending.isEmpty()) {
+          return;
+        }
+        Iterator<Map.Entry<String, PendingWrite>> first = pending.entrySet().iterator();
+        write = first.next().getValue();
+        first.remove();
+        writing = true;
+        notifyAll();
+      }
+
+      final long startNs = SystemClock.elapsedRealtimeNanos();
+      try {
+        writeAtomically(write);
+      } catch (RuntimeException e) {
+        // E.g. a recycled bitmap; losing one image must not stop the writer, or write() would
+        // block forever once the queue is full.
+        Log.e(TAG, "Failed to save " + write.fileName, e);
+      }
+      final long elapsedNs = SystemClock.elapsedRealtimeNanos() - startNs;
+
+      synchronized (this) {
+        writing = false;
+        writeCount++;
+        totalWriteNs += elapsedNs;
+        lastWriteNs = elapsedNs;
+        notifyAll();
+      }
+    }
+  }
+
+  private void writeAtomically(PendingWrite write) {
+    File file = ImageFiles.generateSaveFile(write.fileName);
+    File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+    try {
+      byte[] data = write.data;
+      if (data == null) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (write.fileName.endsWith(".png")) {
+          write.bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } else {
+          write.bitmap.compress(Bitmap.CompressFormat.JPEG, jpegQuality, out);
+        }
+        data = out.toByteArray();
+      }
+      try (FileOutputStream out = new FileOutputStream(tempFile);
+          FileChannel channel = out.getChannel()) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        if (fsync) {
+          channel.force(true);
+        }
+      }
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Could not rename " + tempFile + " to " + file);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to save image: " + e.getMessage());
+      tempFile.delete();
+    }
+  }
+
+  private static final class PendingWrite {
+    final String fileName;
+    final byte[] data;
+    final Bitmap bitmap;
+
+    PendingWrite(String fileName, byte[] data, Bitmap bitmap) {
+      this.fileName = fileName;
+      this.data = data;
+      this.bitmap = bitmap;
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package com.mojang.paintscan;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chooses the size of the square rectified image of a capture. Each target (augmented image name)
+ * can have its own size, falling back to a default.
+ *
+ * <p>In adaptive mode the configured size is an upper bound: the output is the largest power of two
+ * that the painting's footprint in the camera frame supports, so a painting seen from afar is not
+ * upsampled into a blurry large image and no work is spent on pixels that carry no detail.
+ */
+final class OutputSizePolicy {
+
+  private final int defaultSize;
+  private final Map<String, Integer> targetSizes;
+  private final boolean adaptive;
+  private final int minSize;
+
+  /**
+   * @param defaultSize size for targets without an entry in {@code targetSizes}.
+   * @param targetSizes sizes by augmented image name.
+   * @param adaptive shrink the size to the largest power of two the painting footprint supports.
+   * @param minSize lower bound of adaptive sizes.
+   */
+  OutputSizePolicy(
+      int defaultSize, Map<String, Integer> targetSizes, boolean adaptive, int minSize) {
+    checkSize(defaultSize);
+    for (int size : targetSizes.values()) {
+      checkSize(size);
+    }
+    checkSize(minSize);
+    this.defaultSize = defaultSize;
+    this.targetSizes = Collections.unmodifiableMap(new HashMap<>(targetSizes));
+    this.adaptive = adaptive;
+    this.minSize = minSize;
+  }
+
+  /** Configured size of the target, before any adaptive reduction. */
+  public int getConfiguredSize(String targetName) {
+    Integer size = targetName != null ? targetSizes.get(targetName) : null;
+    return size != null ? size : defaultSize;
+  }
+
+  /**
+   * Output size for a capture of the target whose painting has {@code corners} in the frame, see
+   * {@link CaptureSnapshot}.
+   */
+  public int getSize(String targetName, float[] corners) {
+    final int configured = getConfiguredSize(targetName);
+    if (!adaptive) {
+      return configured;
+    }
+    // Sample spacing at the middle of the painting: the mean of opposite edges in each direction.
+    float[] edges = new float[4];
+    FrameRectifier.quadEdgeLengths(corners, edges);
+    final float supported = Math.min(edges[0] + edges[2], edges[1] + edges[3]) / 2f;
+    int size = Math.max(2, Integer.highestOneBit(Math.max(1, (int) supported)));
+    return Math.max(Math.min(size, configured), Math.min(minSize, configured));
+  }
+
+  /** Sizes must be even for {@link FrameRectifier.Mode#YUV}. */
+  private static void checkSize(int size) {
+    if (size < 2 || size % 2 != 0) {
+      throw new IllegalArgumentException("Output size must be even and positive, got " + size);
+    }
+  }
+}
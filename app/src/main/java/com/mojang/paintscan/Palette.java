@@ -0,0 +1,114 @@
+package com.mojang.paintscan;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/** An ordered set of at most 256 opaque RGB colors that textures are quantized to. */
+final class Palette {
+
+  static final int MAX_COLORS = 256;
+
+  /** The sixteen dye colors, white through black. */
+  static final Palette DYES =
+      new Palette(
+          new int[] {
+            0xF9FFFE, 0xF9801D, 0xC74EBD, 0x3AB3DA, 0xFED83D, 0x80C71F, 0xF38BAA, 0x474F52,
+            0x9D9D97, 0x169C9C, 0x8932B8, 0x3C44AA, 0x835432, 0x5E7C16, 0xB02E26, 0x1D1D21
+          });
+
+  private final int[] colors;
+  private final String id;
+
+  /** @param colors 0xRRGGBB values; alpha bits are ignored. */
+  Palette(int[] colors) {
+    if (colors.length == 0 || colors.length > MAX_COLORS) {
+      throw new IllegalArgumentException("Palettes need 1 to 256 colors, got " + colors.length);
+    }
+    this.colors = new int[colors.length];
+    CRC32 crc = new CRC32();
+    for (int i = 0; i < colors.length; i++) {
+      this.colors[i] = colors[i] & 0xffffff;
+      crc.update(this.colors[i] >> 16);
+      crc.update(this.colors[i] >> 8);
+      crc.update(this.colors[i]);
+    }
+    id = colors.length + "_" + Long.toHexString(crc.getValue());
+  }
+
+  /**
+   * A palette of {@code levels} evenly spaced values per channel, e.g. 4 levels for 64 colors.
+   */
+  static Palette uniform(int levels) {
+    if (levels < 2 || levels * levels * levels > MAX_COLORS) {
+      throw new IllegalArgumentException("Unsupported level count " + levels);
+    }
+    int[] colors = new int[levels * levels * levels];
+    int index = 0;
+    for (int r = 0; r < levels; r++) {
+      for (int g = 0; g < levels; g++) {
+        for (int b = 0; b < levels; b++) {
+          colors[index++] = (level(r, levels) << 16) | (level(g, levels) << 8) | level(b, levels);
+        }
+      }
+    }
+    return new Palette(colors);
+  }
+
+  /**
+   * Reads a palette file with one {@code RRGGBB} or {@code #RRGGBB} hex color per line. Blank lines
+   * and lines starting with {@code ;} are skipped.
+   */
+  static Palette read(InputStream in) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    int[] colors = new int[MAX_COLORS];
+    int count = 0;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith(";")) {
+        continue;
+      }
+      if (line.startsWith("#")) {
+        line = line.substring(1);
+      }
+      if (count == MAX_COLORS) {
+        throw new IOException("Palette has more than " + MAX_COLORS + " colors");
+      }
+      if (line.length() != 6) {
+        throw new IOException("Invalid palette color: " + line);
+      }
+      try {
+        colors[count++] = Integer.parseInt(line, 16);
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid palette color: " + line, e);
+      }
+    }
+    if (count == 0) {
+      throw new IOException("Palette has no colors");
+    }
+    return new Palette(Arrays.copyOf(colors, count));
+  }
+
+  public int size() {
+    return colors.length;
+  }
+
+  /** Color {@code index} as 0xRRGGBB. */
+  public int getColor(int index) {
+    return colors[index];
+  }
+
+  /** Identifies the colors and their order, e.g. to name cached lookup tables. */
+  public String getId() {
+    return id;
+  }
+
+  private static int level(int index, int levels) {
+    return index * 255 / (levels - 1);
+  }
+}
@@ -0,0 +1,261 @@
+package com.mojang.paintscan;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Maps ARGB pixels to the nearest colors of a {@link Palette}, for rectified paintings that become
+ * game textures.
+ *
+ * <p>The nearest color is looked up in an RGB cube with {@code 2^LUT_BITS} cells per channel, each
+ * holding the palette index nearest to the cell center, so the per-pixel cost is one table lookup.
+ * Building the cube is the expensive part; it happens on first use and is cached on disk per
+ * palette. Distances weight the channels 2:4:3 (R:G:B), a cheap approximation of perceived
+ * difference.
+ *
+ * <p>Rows are split into one band per thread of a {@link BandExecutor}. Error diffusion restarts at
+ * every band boundary, which is not visible at the band heights used. Calls are serialized.
+ */
+final class PaletteQuantizer {
+  private static final String TAG = "PaletteQuantizer";
+
+  /** How quantization error is spread to neighboring pixels. */
+  enum Dither {
+    NONE,
+    /** 4x4 Bayer threshold matrix, stable between captures and fully parallel. */
+    ORDERED,
+    /** Floyd-Steinberg error diffusion, smoother gradients. */
+    FLOYD_STEINBERG
+  }
+
+  private static final int LUT_BITS = 5;
+  private static final int LUT_SHIFT = 8 - LUT_BITS;
+  private static final int LUT_SIZE = 1 << (3 * LUT_BITS);
+  private static final int LUT_MAGIC = 0x504c5554;
+
+  private static final int[] BAYER_4X4 = {0, 8, 2, 10, 12, 4, 14, 6, 3, 11, 1, 9, 15, 7, 13, 5};
+
+  private final Palette palette;
+  private final Dither dither;
+  private final File lutCacheDir;
+  private final BandExecutor bands;
+  // Threshold offsets of ORDERED, scaled to the typical distance between palette colors.
+  private final int[] orderedOffsets = new int[BAYER_4X4.length];
+
+  private byte[] lut;
+
+  /**
+   * @param lutCacheDir directory for cached lookup tables, may be null to always build them.
+   * @param bands runs the row bands of quantizing and of building the lookup table.
+   */
+  PaletteQuantizer(Palette palette, Dither dither, File lutCacheDir, BandExecutor bands) {
+    this.palette = palette;
+    this.dither = dither;
+    this.lutCacheDir = lutCacheDir;
+    this.bands = bands;
+
+    final float spacing = 256f / (float) Math.cbrt(palette.size());
+    for (int i = 0; i < BAYER_4X4.length; i++) {
+      orderedOffsets[i] = Math.round(((BAYER_4X4[i] + 0.5f) / BAYER_4X4.length - 0.5f) * spacing);
+    }
+  }
+
+  public Palette getPalette() {
+    return palette;
+  }
+
+  /**
+   * Replaces every pixel of the {@code width} x {@code height} ARGB image with its palette color,
+   * keeping alpha.
+   */
+  public synchronized void quantize(final int[] argb, final int width, final int height) {
+    final byte[] table = getLut();
+    switch (dither) {
+      case NONE:
+        bands.forEachBand(
+            height,
+            (fromRow, toRow) -> {
+              for (int i = fromRow * width; i < toRow * width; i++) {
+                final int pixel = argb[i];
+                argb[i] =
+                    (pixel & 0xff000000)
+                        | palette.getColor(
+                            lookup(table, (pixel >> 16) & 0xff, (pixel >> 8) & 0xff, pixel & 0xff));
+              }
+            });
+        break;
+      case ORDERED:
+        bands.forEachBand(
+            height, (fromRow, toRow) -> ditherOrdered(table, argb, width, fromRow, toRow));
+        break;
+      case FLOYD_STEINBERG:
+        bands.forEachBand(
+            height, (fromRow, toRow) -> ditherFloydSteinberg(table, argb, width, fromRow, toRow));
+        break;
+    }
+  }
+
+  private void ditherOrdered(byte[] table, int[] argb, int width, int fromRow, int toRow) {
+    for (int y = fromRow; y < toRow; y++) {
+      final int matrixRow = (y & 3) << 2;
+      for (int x = 0, i = y * width; x < width; x++, i++) {
+        final int pixel = argb[i];
+        final int offset = orderedOffsets[matrixRow | (x & 3)];
+        final int r = clamp(((pixel >> 16) & 0xff) + offset);
+        final int g = clamp(((pixel >> 8) & 0xff) + offset);
+        final int b = clamp((pixel & 0xff) + offset);
+        argb[i] = (pixel & 0xff000000) | palette.getColor(lookup(table, r, g, b));
+      }
+    }
+  }
+
+  private void ditherFloydSteinberg(byte[] table, int[] argb, int width, int fromRow, int toRow) {
+    // Errors in 1/16 units for the current and next row, with a pixel of padding on each side.
+    int[] current = new int[3 * (width + 2)];
+    int[] next = new int[3 * (width + 2)];
+    for (int y = fromRow; y < toRow; y++) {
+      for (int x = 0, i = y * width; x < width; x++, i++) {
+        final int pixel = argb[i];
+        final int e = 3 * (x + 1);
+        final int r = clamp(((pixel >> 16) & 0xff) + (current[e] + 8) / 16);
+        final int g = clamp(((pixel >> 8) & 0xff) + (current[e + 1] + 8) / 16);
+        final int b = clamp((pixel & 0xff) + (current[e + 2] + 8) / 16);
+        final int color = palette.getColor(lookup(table, r, g, b));
+        argb[i] = (pixel & 0xff000000) | color;
+
+        diffuse(current, next, e, r - ((color >> 16) & 0xff));
+        diffuse(current, next, e + 1, g - ((color >> 8) & 0xff));
+        diffuse(current, next, e + 2, b - (color & 0xff));
+      }
+      int[] done = current;
+      current = next;
+      next = done;
+      Arrays.fill(next, 0);
+    }
+  }
+
+  /** Spreads one channel's error: 7/16 right, 3/16 below left, 5/16 below, 1/16 below right. */
+  private static void diffuse(int[] current, int[] next, int e, int error) {
+    current[e + 3] += 7 * error;
+    next[e - 3] += 3 * error;
+    next[e] += 5 * error;
+    next[e + 3] += error;
+  }
+
+  private static int lookup(byte[] table, int r, int g, int b) {
+    return table[((r >> LUT_SHIFT) << (2 * LUT_BITS)) | ((g >> LUT_SHIFT) << LUT_BITS)
+            | (b >> LUT_SHIFT)]
+        & 0xff;
+  }
+
+  private static int clamp(int value) {
+    return value < 0 ? 0 : (value > 255 ? 255 : value);
+  }
+
+  private byte[] getLut() {
+    if (lut == null) {
+      final long startUptime = SystemClock.uptimeMillis();
+      File file =
+          lutCacheDir != null
+              ? new File(lutCacheDir, "palette_" + palette.getId() + "_" + LUT_BITS + ".lut")
+              : null;
+      lut = file != null ? readLut(file) : null;
+      if (lut == null) {
+        lut = buildLut();
+        if (file != null) {
+          writeLut(file, lut);
+        }
+        Log.d(TAG, "Built lookup table for " + palette.size() + " colors in "
+            + (SystemClock.uptimeMillis() - startUptime) + " ms");
+      } else {
+        Log.d(TAG, "Loaded lookup table for " + palette.size() + " colors in "
+            + (SystemClock.uptimeMillis() - startUptime) + " ms");
+      }
+    }
+    return lut;
+  }
+
+  private byte[] buildLut() {
+    final byte[] table = new byte[LUT_SIZE];
+    final int cells = 1 << LUT_BITS;
+    final int half = 1 << (LUT_SHIFT - 1);
+    bands.forEachBand(
+        cells,
+        (fromCell, toCell) -> {
+          for (int r = fromCell; r < toCell; r++) {
+            for (int g = 0; g < cells; g++) {
+              for (int b = 0; b < cells; b++) {
+                table[(r << (2 * LUT_BITS)) | (g << LUT_BITS) | b] =
+                    (byte)
+                        nearest((r << LUT_SHIFT) + half, (g << LUT_SHIFT) + half,
+                            (b << LUT_SHIFT) + half);
+              }
+            }
+          }
+        });
+    return table;
+  }
+
+  private int nearest(int r, int g, int b) {
+    int best = 0;
+    int bestDistance = Integer.MAX_VALUE;
+    for (int i = 0; i < palette.size(); i++) {
+      final int color = palette.getColor(i);
+      final int dr = ((color >> 16) & 0xff) - r;
+      final int dg = ((color >> 8) & 0xff) - g;
+      final int db = (color & 0xff) - b;
+      final int distance = 2 * dr * dr + 4 * dg * dg + 3 * db * db;
+      if (distance < bestDistance) {
+        bestDistance = distance;
+        best = i;
+      }
+    }
+    return best;
+  }
+
+  private byte[] readLut(File file) {
+    if (!file.exists()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      if (in.readInt() != LUT_MAGIC || in.readInt() != LUT_BITS
+          || in.readInt() != palette.size()) {
+        Log.w(TAG, "Ignoring mismatched lookup table " + file);
+        return null;
+      }
+      byte[] table = new byte[LUT_SIZE];
+      in.readFully(table);
+      return table;
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read lookup table " + file + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /** Writes to a temporary file renamed into place, so a partial table is never read. */
+  private void writeLut(File file, byte[] table) {
+    File tempFile = new File(file.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile))) {
+      out.writeInt(LUT_MAGIC);
+      out.writeInt(LUT_BITS);
+      out.writeInt(palette.size());
+      out.write(table);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write lookup table " + file + ": " + e.getMessage());
+      tempFile.delete();
+      return;
+    }
+    if (!tempFile.renameTo(file)) {
+      Log.w(TAG, "Could not rename " + tempFile + " to " + file);
+      tempFile.delete();
+    }
+  }
+}
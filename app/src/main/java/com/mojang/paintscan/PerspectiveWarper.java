@@ -0,0 +1,343 @@
+package com.mojang.paintscan;
+
+/**
+ * Pure Java perspective warp into caller supplied buffers. Each output pixel is looked up in the
+ * source through a homography mapping output pixels to source pixels, e.g. from
+ * {@link Homography#rectToQuad}. Pixels whose source lies outside the image are set to 0 for gray
+ * outputs and to opaque black {@code 0xff000000} for ARGB outputs, like the constant borders of the
+ * OpenCV path in {@link FrameRectifier}.
+ *
+ * <p>Output rows are split into one band per thread of a {@link BandExecutor}. Nothing is allocated
+ * per pixel or per row, only a handful of small task objects per call, so the warper can run per
+ * frame. It needs no native code and runs on a plain JVM. Thread safe.
+ */
+final class PerspectiveWarper {
+
+  /** How source pixels are sampled. */
+  enum Interpolation {
+    NEAREST,
+    BILINEAR
+  }
+
+  // Bilinear weights are fixed point with this many fractional bits.
+  private static final int WEIGHT_BITS = 8;
+  private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+  private static final int WEIGHT_MASK = WEIGHT_ONE - 1;
+
+  private static final int OPAQUE_BLACK = 0xff000000;
+
+  // BT.601 video range YUV to RGB in 20 bit fixed point, the coefficients OpenCV uses for NV21.
+  private static final int YUV_SHIFT = 20;
+  private static final int YUV_HALF = 1 << (YUV_SHIFT - 1);
+  private static final int YUV_CY = 1220542;
+  private static final int YUV_CVR = 1673527;
+  private static final int YUV_CVG = -852492;
+  private static final int YUV_CUG = -409993;
+  private static final int YUV_CUB = 2116026;
+
+  private final BandExecutor bands;
+
+  /** @param bands runs the output bands, {@link BandExecutor#CALLING_THREAD} for one thread. */
+  PerspectiveWarper(BandExecutor bands) {
+    this.bands = bands;
+  }
+
+  public int getThreadCount() {
+    return bands.getThreadCount();
+  }
+
+  /**
+   * Warps a single channel 8 bit image, e.g. the Y plane of an NV21 frame.
+   *
+   * @param srcOffset index of the first source pixel in {@code src}.
+   * @param srcStride distance between source rows in bytes.
+   * @param transform row-major 3x3 homography from output to source pixels.
+   */
+  public void warpGray(
+      final byte[] src,
+      final int srcOffset,
+      final int srcStride,
+      final int srcWidth,
+      final int srcHeight,
+      final double[] transform,
+      final byte[] dst,
+      final int dstWidth,
+      final int dstHeight,
+      final Interpolation interpolation) {
+    bands.forEachBand(
+        dstHeight,
+        (fromRow, toRow) -> {
+          for (int y = fromRow; y < toRow; y++) {
+            final double rowX = transform[1] * y + transform[2];
+            final double rowY = transform[4] * y + transform[5];
+            final double rowW = transform[7] * y + transform[8];
+            int out = y * dstWidth;
+            for (int x = 0; x < dstWidth; x++, out++) {
+              final double w = transform[6] * x + rowW;
+              final double sx = (transform[0] * x + rowX) / w;
+              final double sy = (transform[3] * x + rowY) / w;
+              dst[out] =
+                  (byte)
+                      (interpolation == Interpolation.NEAREST
+                          ? nearestGray(src, srcOffset, srcStride, srcWidth, srcHeight, sx, sy)
+                          : bilinearGray(src, srcOffset, srcStride, srcWidth, srcHeight, sx, sy));
+            }
+          }
+        });
+  }
+
+  /**
+   * Warps a packed 32 bit ARGB image, as {@code Bitmap.getPixels} returns it; all four channels
+   * are interpolated alike, and the border is opaque black.
+   *
+   * @param transform row-major 3x3 homography from output to source pixels.
+   */
+  public void warpPacked(
+      final int[] src,
+      final int srcWidth,
+      final int srcHeight,
+      final double[] transform,
+      final int[] dst,
+      final int dstWidth,
+      final int dstHeight,
+      final Interpolation interpolation) {
+    bands.forEachBand(
+        dstHeight,
+        (fromRow, toRow) -> {
+          for (int y = fromRow; y < toRow; y++) {
+            final double rowX = transform[1] * y + transform[2];
+            final double rowY = transform[4] * y + transform[5];
+            final double rowW = transform[7] * y + transform[8];
+            int out = y * dstWidth;
+            for (int x = 0; x < dstWidth; x++, out++) {
+              final double w = transform[6] * x + rowW;
+              final double sx = (transform[0] * x + rowX) / w;
+              final double sy = (transform[3] * x + rowY) / w;
+              dst[out] =
+                  interpolation == Interpolation.NEAREST
+                      ? nearestPacked(src, srcWidth, srcHeight, sx, sy)
+                      : bilinearPacked(src, srcWidth, srcHeight, sx, sy);
+            }
+          }
+        });
+  }
+
+  /**
+   * Warps a tightly packed NV21 image straight into ARGB pixels, as {@code Bitmap.setPixels}
+   * expects. Luma is sampled at full resolution and chroma at half resolution, so only the output
+   * pixels are ever converted.
+   *
+   * @param transform row-major 3x3 homography from output to source luma pixels.
+   */
+  public void warpNv21ToArgb(
+      final byte[] nv21,
+      final int width,
+      final int height,
+      final double[] transform,
+      final int[] dst,
+      final int dstWidth,
+      final int dstHeight,
+      final Interpolation interpolation) {
+    final int vuOffset = width * height;
+    final int chromaWidth = width / 2;
+    final int chromaHeight = height / 2;
+    final int chromaStride = 2 * chromaWidth;
+    bands.forEachBand(
+        dstHeight,
+        (fromRow, toRow) -> {
+          for (int y = fromRow; y < toRow; y++) {
+            final double rowX = transform[1] * y + transform[2];
+            final double rowY = transform[4] * y + transform[5];
+            final double rowW = transform[7] * y + transform[8];
+            int out = y * dstWidth;
+            for (int x = 0; x < dstWidth; x++, out++) {
+              final double w = transform[6] * x + rowW;
+              final double sx = (transform[0] * x + rowX) / w;
+              final double sy = (transform[3] * x + rowY) / w;
+              if (!(sx > -1 && sx < width && sy > -1 && sy < height)) {
+                dst[out] = OPAQUE_BLACK;
+                continue;
+              }
+
+              int luma;
+              int v;
+              int u;
+              if (interpolation == Interpolation.NEAREST) {
+                luma = nearestGray(nv21, 0, width, width, height, sx, sy);
+                final int cx = Math.min(chromaWidth - 1, Math.max(0, round(sx) >> 1));
+                final int cy = Math.min(chromaHeight - 1, Math.max(0, round(sy) >> 1));
+                final int index = vuOffset + cy * chromaStride + 2 * cx;
+                v = nv21[index] & 0xff;
+                u = nv21[index + 1] & 0xff;
+              } else {
+                luma = bilinearGray(nv21, 0, width, width, height, sx, sy);
+                // Clamp rather than fade to 0 at the chroma border, which would tint the edges.
+                final double cx = Math.min(chromaWidth - 1, Math.max(0, sx * 0.5));
+                final double cy = Math.min(chromaHeight - 1, Math.max(0, sy * 0.5));
+                final int chroma =
+                    bilinearChroma(nv21, vuOffset, chromaStride, chromaWidth, chromaHeight, cx, cy);
+                v = chroma >> 8;
+                u = chroma & 0xff;
+              }
+              dst[out] = yuvToArgb(luma, u, v);
+            }
+          }
+        });
+  }
+
+  private static int nearestGray(
+      byte[] src, int offset, int stride, int width, int height, double sx, double sy) {
+    if (!(sx > -0.5 && sx < width - 0.5 && sy > -0.5 && sy < height - 0.5)) {
+      return 0;
+    }
+    return src[offset + round(sy) * stride + round(sx)] & 0xff;
+  }
+
+  private static int nearestPacked(int[] src, int width, int height, double sx, double sy) {
+    if (!(sx > -0.5 && sx < width - 0.5 && sy > -0.5 && sy < height - 0.5)) {
+      return OPAQUE_BLACK;
+    }
+    return src[round(sy) * width + round(sx)];
+  }
+
+  /** Bilinear sample of a single channel plane; samples outside it count as 0. */
+  static int bilinearGray(
+      byte[] src, int offset, int stride, int width, int height, double sx, double sy) {
+    if (!(sx > -1 && sx < width && sy > -1 && sy < height)) {
+      return 0;
+    }
+    // Shift by one before truncating so negative coordinates round down too.
+    final int fx = (int) ((sx + 1) * WEIGHT_ONE) - WEIGHT_ONE;
+    final int fy = (int) ((sy + 1) * WEIGHT_ONE) - WEIGHT_ONE;
+    final int x0 = fx >> WEIGHT_BITS;
+    final int y0 = fy >> WEIGHT_BITS;
+    final int wx = fx & WEIGHT_MASK;
+    final int wy = fy & WEIGHT_MASK;
+
+    int p00;
+    int p01;
+    int p10;
+    int p11;
+    if (x0 >= 0 && y0 >= 0 && x0 < width - 1 && y0 < height - 1) {
+      final int index = offset + y0 * stride + x0;
+      p00 = src[index] & 0xff;
+      p01 = src[index + 1] & 0xff;
+      p10 = src[index + stride] & 0xff;
+      p11 = src[index + stride + 1] & 0xff;
+    } else {
+      p00 = grayAt(src, offset, stride, width, height, x0, y0);
+      p01 = grayAt(src, offset, stride, width, height, x0 + 1, y0);
+      p10 = grayAt(src, offset, stride, width, height, x0, y0 + 1);
+      p11 = grayAt(src, offset, stride, width, height, x0 + 1, y0 + 1);
+    }
+    final int top = p00 * (WEIGHT_ONE - wx) + p01 * wx;
+    final int bottom = p10 * (WEIGHT_ONE - wx) + p11 * wx;
+    return (top * (WEIGHT_ONE - wy) + bottom * wy + (1 << (2 * WEIGHT_BITS - 1)))
+        >> (2 * WEIGHT_BITS);
+  }
+
+  private static int bilinearPacked(int[] src, int width, int height, double sx, double sy) {
+    if (!(sx > -1 && sx < width && sy > -1 && sy < height)) {
+      return OPAQUE_BLACK;
+    }
+    final int fx = (int) ((sx + 1) * WEIGHT_ONE) - WEIGHT_ONE;
+    final int fy = (int) ((sy + 1) * WEIGHT_ONE) - WEIGHT_ONE;
+    final int x0 = fx >> WEIGHT_BITS;
+    final int y0 = fy >> WEIGHT_BITS;
+    final int wx = fx & WEIGHT_MASK;
+    final int wy = fy & WEIGHT_MASK;
+
+    int p00;
+    int p01;
+    int p10;
+    int p11;
+    if (x0 >= 0 && y0 >= 0 && x0 < width - 1 && y0 < height - 1) {
+      final int index = y0 * width + x0;
+      p00 = src[index];
+      p01 = src[index + 1];
+      p10 = src[index + width];
+      p11 = src[index + width + 1];
+    } else {
+      p00 = packedAt(src, width, height, x0, y0);
+      p01 = packedAt(src, width, height, x0 + 1, y0);
+      p10 = packedAt(src, width, height, x0, y0 + 1);
+      p11 = packedAt(src, width, height, x0 + 1, y0 + 1);
+    }
+    return lerpPacked(lerpPacked(p00, p01, wx), lerpPacked(p10, p11, wx), wy);
+  }
+
+  /**
+   * Bilinear sample of an interleaved two channel plane at a coordinate inside it, returned as
+   * {@code first << 8 | second}.
+   */
+  static int bilinearChroma(
+      byte[] src, int offset, int stride, int width, int height, double sx, double sy) {
+    final int fx = (int) (sx * WEIGHT_ONE);
+    final int fy = (int) (sy * WEIGHT_ONE);
+    final int x0 = Math.min(fx >> WEIGHT_BITS, width - 2);
+    final int y0 = Math.min(fy >> WEIGHT_BITS, height - 2);
+    final int wx = Math.min(WEIGHT_ONE, fx - (x0 << WEIGHT_BITS));
+    final int wy = Math.min(WEIGHT_ONE, fy - (y0 << WEIGHT_BITS));
+
+    final int index = offset + y0 * stride + 2 * x0;
+    final int below = index + stride;
+    int result = 0;
+    for (int channel = 0; channel < 2; channel++) {
+      final int top =
+          (src[index + channel] & 0xff) * (WEIGHT_ONE - wx) + (src[index + 2 + channel] & 0xff) * wx;
+      final int bottom =
+          (src[below + channel] & 0xff) * (WEIGHT_ONE - wx) + (src[below + 2 + channel] & 0xff) * wx;
+      final int value =
+          (top * (WEIGHT_ONE - wy) + bottom * wy + (1 << (2 * WEIGHT_BITS - 1)))
+              >> (2 * WEIGHT_BITS);
+      result = (result << 8) | value;
+    }
+    return result;
+  }
+
+  /**
+   * Blends two packed pixels, {@code weight} out of {@link #WEIGHT_ONE} towards {@code b}. Two
+   * channels are blended per multiply, each in its own 16 bit lane.
+   */
+  private static int lerpPacked(int a, int b, int weight) {
+    final int inverse = WEIGHT_ONE - weight;
+    final int redBlue = (a & 0xff00ff) * inverse + (b & 0xff00ff) * weight + 0x800080;
+    final int alphaGreen =
+        ((a >>> 8) & 0xff00ff) * inverse + ((b >>> 8) & 0xff00ff) * weight + 0x800080;
+    return ((redBlue >>> WEIGHT_BITS) & 0xff00ff) | (alphaGreen & 0xff00ff00);
+  }
+
+  private static int grayAt(byte[] src, int offset, int stride, int width, int height, int x, int y) {
+    if (x < 0 || y < 0 || x >= width || y >= height) {
+      return 0;
+    }
+    return src[offset + y * stride + x] & 0xff;
+  }
+
+  private static int packedAt(int[] src, int width, int height, int x, int y) {
+    if (x < 0 || y < 0 || x >= width || y >= height) {
+      return OPAQUE_BLACK;
+    }
+    return src[y * width + x];
+  }
+
+  /** Converts one BT.601 video range YUV pixel to opaque ARGB. */
+  static int yuvToArgb(int luma, int u, int v) {
+    final int y = Math.max(0, luma - 16) * YUV_CY;
+    u -= 128;
+    v -= 128;
+    final int r = clampByte((y + YUV_CVR * v + YUV_HALF) >> YUV_SHIFT);
+    final int g = clampByte((y + YUV_CVG * v + YUV_CUG * u + YUV_HALF) >> YUV_SHIFT);
+    final int b = clampByte((y + YUV_CUB * u + YUV_HALF) >> YUV_SHIFT);
+    return OPAQUE_BLACK | (r << 16) | (g << 8) | b;
+  }
+
+  private static int clampByte(int value) {
+    return value < 0 ? 0 : (value > 255 ? 255 : value);
+  }
+
+  /** Rounds half up; only called with coordinates above -0.5. */
+  private static int round(double value) {
+    return (int) (value + 0.5);
+  }
+}
@@ -0,0 +1,91 @@
+package com.mojang.paintscan;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * On-device benchmark comparing the {@link FrameRectifier} modes on synthetic frames at common
+ * camera resolutions. Results are written to the log. Requires the OpenCV native library to be
+ * loaded; run it off the UI thread.
+ */
+final class RectificationBenchmark {
+  private static final String TAG = "RectificationBenchmark";
+
+  private static final int[][] CAMERA_RESOLUTIONS = {{640, 480}, {1280, 720}, {1920, 1080}};
+  private static final int OUTPUT_SIZE = 256;
+  private static final int WARMUP_ITERATIONS = 3;
+  private static final int ITERATIONS = 20;
+  private static final int ROI_MARGIN = 16;
+
+  private RectificationBenchmark() {}
+
+  static void run() {
+    YuvFramePool pool = new YuvFramePool(1);
+    for (int[] resolution : CAMERA_RESOLUTIONS) {
+      final int width = resolution[0];
+      final int height = resolution[1];
+      YuvFrame frame = pool.acquire(width, height);
+      fillGradient(frame);
+      float[] corners = centeredQuad(width, height, 0.6f);
+
+      StringBuilder line = new StringBuilder();
+      line.append(width).append('x').append(height).append(':');
+      for (FrameRectifier.Mode mode : FrameRectifier.Mode.values()) {
+        for (boolean cropToRoi : new boolean[] {false, true}) {
+          line.append(' ')
+              .append(mode)
+              .append(cropToRoi ? "+ROI " : " ")
+              .append(medianMillis(new FrameRectifier(mode, cropToRoi, ROI_MARGIN), frame, corners))
+              .append(" ms");
+        }
+      }
+      Log.i(TAG, line.toString());
+      frame.release();
+    }
+  }
+
+  /** Median time of one rectification in milliseconds, after a short warm-up. */
+  static float medianMillis(FrameRectifier rectifier, YuvFrame frame, float[] corners) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      rectifier.rectify(frame, corners, OUTPUT_SIZE, OUTPUT_SIZE, null).release();
+    }
+    long[] samples = new long[ITERATIONS];
+    for (int i = 0; i < ITERATIONS; i++) {
+      long start = SystemClock.elapsedRealtimeNanos();
+      Mat output = rectifier.rectify(frame, corners, OUTPUT_SIZE, OUTPUT_SIZE, null);
+      samples[i] = SystemClock.elapsedRealtimeNanos() - start;
+      output.release();
+    }
+    Arrays.sort(samples);
+    return samples[ITERATIONS / 2] / 1e6f;
+  }
+
+  /** A slightly skewed quad covering {@code fraction} of the frame around its center. */
+  static float[] centeredQuad(int width, int height, float fraction) {
+    float halfWidth = width * fraction / 2;
+    float halfHeight = height * fraction / 2;
+    float cx = width / 2f;
+    float cy = height / 2f;
+    float skew = halfWidth * 0.1f;
+    return new float[] {
+      cx - halfWidth + skew, cy - halfHeight,
+      cx + halfWidth - skew, cy - halfHeight,
+      cx + halfWidth, cy + halfHeight,
+      cx - halfWidth, cy + halfHeight
+    };
+  }
+
+  static void fillGradient(YuvFrame frame) {
+    ByteBuffer data = frame.getBuffer().duplicate();
+    data.clear();
+    final int width = frame.getWidth();
+    for (int i = 0; data.hasRemaining(); i++) {
+      data.put((byte) ((i % width) ^ (i / width)));
+    }
+  }
+}
@@ -0,0 +1,294 @@
+package com.mojang.paintscan;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the rectification geometry of recent captures, so repeated captures of a stationary
+ * painting skip the homography and reuse precomputed {@link Imgproc#remap} maps.
+ *
+ * <p>Entries are keyed by the corners rounded to the nearest multiple of {@code tolerance} pixels,
+ * the frame size, the output size and the number of {@link FrameRectifier} pyramid levels, so
+ * corners that moved less than half the tolerance usually reuse the same entry. Each entry holds
+ * fixed point ({@link CvType#CV_16SC2} plus interpolation table index) maps for the luma plane and
+ * the half resolution chroma plane. The least recently used entries are evicted once the maps
+ * exceed {@code maxBytes}.
+ *
+ * <p>Building the maps costs more than one direct warp, so a key is only built the second time it
+ * is requested; the first request gets no entry and should warp directly.
+ *
+ * <p>Thread safe. Entries are reference counted: every {@link #acquire} must be paired with a
+ * {@link #release}, and evicted entries free their maps once the last user releases them.
+ */
+final class RemapCache {
+
+  // Missed keys remembered for a repeat request; captures rarely alternate between more paintings.
+  private static final int MAX_MISSED_KEYS = 16;
+
+  /** Cached geometry of one rectification. Only read the maps between acquire and release. */
+  static final class Entry {
+    /** Source region the maps read from, in frame pixels. */
+    final Rect roi;
+    /** Maps from output pixels to ROI luma pixels, at the pyramid level of the key. */
+    final Mat lumaMap1;
+    final Mat lumaMap2;
+    /** Maps from half resolution output pixels to ROI chroma pixels, empty unless requested. */
+    final Mat chromaMap1;
+    final Mat chromaMap2;
+    final long byteCount;
+
+    private int references;
+    private boolean evicted;
+
+    private Entry(Rect roi, Mat lumaMap1, Mat lumaMap2, Mat chromaMap1, Mat chromaMap2) {
+      this.roi = roi;
+      this.lumaMap1 = lumaMap1;
+      this.lumaMap2 = lumaMap2;
+      this.chromaMap1 = chromaMap1;
+      this.chromaMap2 = chromaMap2;
+      this.byteCount = byteCount(lumaMap1) + byteCount(lumaMap2) + byteCount(chromaMap1)
+          + byteCount(chromaMap2);
+    }
+
+    private void releaseMaps() {
+      lumaMap1.release();
+      lumaMap2.release();
+      chromaMap1.release();
+      chromaMap2.release();
+    }
+
+    private static long byteCount(Mat mat) {
+      return mat.total() * mat.elemSize();
+    }
+  }
+
+  private static final class Key {
+    final int[] values;
+
+    Key(float[] corners, float tolerance, int frameWidth, int frameHeight, int outputWidth,
+        int outputHeight, int levels, boolean withChroma) {
+      values = new int[14];
+      for (int i = 0; i < 8; i++) {
+        values[i] = Math.round(corners[i] / tolerance);
+      }
+      values[8] = frameWidth;
+      values[9] = frameHeight;
+      values[10] = outputWidth;
+      values[11] = outputHeight;
+      values[12] = levels;
+      values[13] = withChroma ? 1 : 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && Arrays.equals(values, ((Key) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(values);
+    }
+  }
+
+  private final float tolerance;
+  private final long maxBytes;
+  // Access ordered, so iteration starts at the least recently used entry.
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  // Keys requested once without being built, so a repeat request builds them.
+  private final LinkedHashMap<Key, Boolean> missedKeys =
+      new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+          return size() > MAX_MISSED_KEYS;
+        }
+      };
+
+  private long bytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * @param tolerance corner movement in pixels below which cached maps are reused.
+   * @param maxBytes memory the cached maps may use at most.
+   */
+  RemapCache(float tolerance, long maxBytes) {
+    this.tolerance = tolerance;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the cached entry for these corners and sizes. A miss returns null the first time and
+   * builds the entry on a repeat request for the same key. The ROI of a new entry is computed from
+   * {@code corners} grown by {@code roiMargin}, or is the full frame if {@code cropToRoi} is false.
+   * The margin should exceed the tolerance so moved corners stay inside.
+   *
+   * @param levels pyramid levels the ROI planes are downsampled by before the remap.
+   * @param withChroma also build the chroma maps, needed to warp the VU plane.
+   */
+  public Entry acquire(
+      float[] corners,
+      int frameWidth,
+      int frameHeight,
+      int outputWidth,
+      int outputHeight,
+      boolean cropToRoi,
+      int roiMargin,
+      int levels,
+      boolean withChroma) {
+    Key key = new Key(
+        corners, tolerance, frameWidth, frameHeight, outputWidth, outputHeight, levels,
+        withChroma);
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        hits++;
+        entry.references++;
+        return entry;
+      }
+      misses++;
+      if (missedKeys.remove(key) == null) {
+        missedKeys.put(key, Boolean.TRUE);
+        return null;
+      }
+    }
+
+    // Build outside the lock; if another thread built the same entry meanwhile, keep theirs.
+    Entry built =
+        build(corners, frameWidth, frameHeight, outputWidth, outputHeight, cropToRoi, roiMargin,
+            levels, withChroma);
+    synchronized (this) {
+      Entry existing = entries.get(key);
+      if (existing != null) {
+        built.releaseMaps();
+        existing.references++;
+        return existing;
+      }
+      built.references++;
+      entries.put(key, built);
+      bytes += built.byteCount;
+      evictOverflow();
+      return built;
+    }
+  }
+
+  /** Gives back an entry obtained from {@link #acquire}. */
+  public synchronized void release(Entry entry) {
+    entry.references--;
+    if (entry.evicted && entry.references == 0) {
+      entry.releaseMaps();
+    }
+  }
+
+  /** Drops all entries, e.g. when the painting changes. Entries in use are freed on release. */
+  public synchronized void clear() {
+    missedKeys.clear();
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      evict(it.next());
+      it.remove();
+    }
+  }
+
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  /** Memory currently used by cached maps. */
+  public synchronized long getByteCount() {
+    return bytes;
+  }
+
+  private void evictOverflow() {
+    Iterator<Entry> it = entries.values().iterator();
+    // Always keep the newest entry, even if it alone exceeds the budget.
+    while (bytes > maxBytes && entries.size() > 1) {
+      evict(it.next());
+      it.remove();
+    }
+  }
+
+  private void evict(Entry entry) {
+    bytes -= entry.byteCount;
+    evictions++;
+    entry.evicted = true;
+    if (entry.references == 0) {
+      entry.releaseMaps();
+    }
+  }
+
+  private static Entry build(
+      float[] corners,
+      int frameWidth,
+      int frameHeight,
+      int outputWidth,
+      int outputHeight,
+      boolean cropToRoi,
+      int roiMargin,
+      int levels,
+      boolean withChroma) {
+    Rect roi =
+        cropToRoi
+            ? FrameRectifier.computeRoi(corners, frameWidth, frameHeight, roiMargin)
+            : new Rect(0, 0, frameWidth & ~1, frameHeight & ~1);
+    float[] roiCorners = FrameRectifier.toRoiCorners(corners, roi, levels);
+    double[] transform = new double[9];
+    if (!Homography.rectToQuad(roiCorners, outputWidth, outputHeight, transform)) {
+      throw new IllegalArgumentException("Degenerate corners " + Arrays.toString(corners));
+    }
+
+    Mat lumaMap1 = new Mat();
+    Mat lumaMap2 = new Mat();
+    buildMaps(transform, outputWidth, outputHeight, 1, lumaMap1, lumaMap2);
+    Mat chromaMap1 = new Mat();
+    Mat chromaMap2 = new Mat();
+    if (withChroma) {
+      buildMaps(transform, outputWidth / 2, outputHeight / 2, 2, chromaMap1, chromaMap2);
+    }
+    return new Entry(roi, lumaMap1, lumaMap2, chromaMap1, chromaMap2);
+  }
+
+  /**
+   * Fills fixed point remap maps for a {@code width} x {@code height} output whose pixels are
+   * {@code scale} full resolution output pixels apart, sampling a plane at 1 / {@code scale}
+   * resolution.
+   */
+  private static void buildMaps(
+      double[] transform, int width, int height, int scale, Mat map1, Mat map2) {
+    float[] xs = new float[width * height];
+    float[] ys = new float[width * height];
+    int index = 0;
+    for (int y = 0; y < height; y++) {
+      final double outY = (double) y * scale;
+      for (int x = 0; x < width; x++, index++) {
+        final double outX = (double) x * scale;
+        final double w = transform[6] * outX + transform[7] * outY + transform[8];
+        xs[index] = (float) ((transform[0] * outX + transform[1] * outY + transform[2]) / w / scale);
+        ys[index] = (float) ((transform[3] * outX + transform[4] * outY + transform[5]) / w / scale);
+      }
+    }
+
+    Mat mapX = new Mat(height, width, CvType.CV_32FC1);
+    Mat mapY = new Mat(height, width, CvType.CV_32FC1);
+    mapX.put(0, 0, xs);
+    mapY.put(0, 0, ys);
+    Imgproc.convertMaps(mapX, mapY, map1, map2, CvType.CV_16SC2, false);
+    mapX.release();
+    mapY.release();
+  }
+}
@@ -0,0 +1,85 @@
+package com.mojang.paintscan;
+
+import org.opencv.core.Rect;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Cheap focus measure for camera frames: the variance of the Laplacian of the Y plane inside the
+ * bounding box of the painting quad. The Laplacian is taken between neighboring pixels, so the few
+ * pixels of blur a shaking hand causes still show, but only on {@code SAMPLE_ROWS} evenly spaced
+ * rows of the box, so scoring a frame stays well under a millisecond regardless of camera
+ * resolution. Regions at least {@code AVERAGE_MIN_SIZE} pixels across are averaged 2x2 first,
+ * which damps sensor noise without hiding that blur. Blurred frames have weak edges and score low.
+ *
+ * <p>Scores depend on the painting and the lighting, so they are meant for comparing frames of the
+ * same scene and for a coarse rejection threshold, not as an absolute measure.
+ */
+final class SharpnessScorer {
+
+  private static final int SAMPLE_ROWS = 24;
+  private static final int AVERAGE_MIN_SIZE = 1024;
+
+  private SharpnessScorer() {}
+
+  /**
+   * Scores the painting region of {@code frame}. Returns 0 if the region is too small to measure.
+   *
+   * @param corners projected painting corners in frame pixels, see {@link CaptureSnapshot}.
+   */
+  static float score(YuvFrame frame, float[] corners) {
+    final int width = frame.getWidth();
+    Rect roi = FrameRectifier.computeRoi(corners, width, frame.getHeight(), 0);
+    // Side of the pixel blocks the Laplacian is taken between, 1 or 2.
+    final int block = Math.max(roi.width, roi.height) >= AVERAGE_MIN_SIZE ? 2 : 1;
+    final int cols = roi.width / block;
+    final int rows = roi.height / block;
+    // Every Laplacian needs all four neighbors.
+    if (cols < 3 || rows < 3) {
+      return 0f;
+    }
+
+    // Block sums of the rows above, at and below a sampled block row.
+    int[][] sums = new int[3][cols];
+    byte[] line = new byte[cols * block];
+    // A duplicate, so reading does not move the shared plane's position.
+    ByteBuffer y = frame.getYPlane().duplicate();
+    final int samples = Math.min(SAMPLE_ROWS, rows - 2);
+    long sum = 0;
+    long sumSquares = 0;
+    for (int sample = 0; sample < samples; sample++) {
+      // Spread the sampled block rows over 1 .. rows - 2.
+      final int row = 1 + (int) ((long) sample * (rows - 3) / Math.max(1, samples - 1));
+      for (int k = 0; k < 3; k++) {
+        final int[] blockSums = sums[k];
+        Arrays.fill(blockSums, 0);
+        for (int i = 0; i < block; i++) {
+          y.position((roi.y + (row - 1 + k) * block + i) * width + roi.x);
+          y.get(line);
+          for (int col = 0, index = 0; col < cols; col++) {
+            for (int j = 0; j < block; j++, index++) {
+              blockSums[col] += line[index] & 0xff;
+            }
+          }
+        }
+      }
+
+      final int[] above = sums[0];
+      final int[] center = sums[1];
+      final int[] below = sums[2];
+      for (int col = 1; col < cols - 1; col++) {
+        final long laplacian =
+            4L * center[col] - center[col - 1] - center[col + 1] - above[col] - below[col];
+        sum += laplacian;
+        sumSquares += laplacian * laplacian;
+      }
+    }
+
+    // Block sums are means scaled by the block area, so the variance is scaled by its square.
+    final double count = (double) samples * (cols - 2);
+    final double area = (double) block * block;
+    final double mean = sum / count;
+    return (float) ((sumSquares / count - mean * mean) / (area * area));
+  }
+}
@@ -0,0 +1,154 @@
+package com.mojang.paintscan;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.opencv.android.OpenCVLoader;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts the slow parts of a cold start in parallel as soon as the activity is created, instead of
+ * one after the other on the UI thread:
+ *
+ * <ul>
+ *   <li>loading the OpenCV native library, needed by everything that captures,
+ *   <li>loading the corner models of {@link AugmentedImageNode}, otherwise only started when the
+ *       first painting is tracked,
+ *   <li>preparing the image database inputs that need no session, see {@link
+ *       AugmentedImageFragment#prepareImageDatabase}.
+ * </ul>
+ *
+ * <p>Each part completes a future, so its users wait for exactly what they need. Startup also
+ * measures time to first track and time to first capture, from process start.
+ *
+ * <p>There is one orchestrator per process, so a recreated activity finds everything loaded.
+ */
+@SuppressWarnings({"AndroidApiChecker"})
+final class StartupOrchestrator {
+  private static final String TAG = "StartupOrchestrator";
+
+  private static StartupOrchestrator instance;
+
+  private final long processStartUptime = Process.getStartUptimeMillis();
+  private final long startUptime = SystemClock.uptimeMillis();
+  private final ExecutorService executor = Executors.newFixedThreadPool(2, runnable -> {
+    Thread thread = new Thread(runnable, TAG);
+    // Done before the app is usable, but should not slow down the camera opening.
+    thread.setPriority(Thread.NORM_PRIORITY - 1);
+    return thread;
+  });
+
+  private final CompletableFuture<Void> openCvReady;
+  private final CompletableFuture<Void> modelsReady;
+  private CompletableFuture<AugmentedImageFragment.ImageDatabaseInputs> imageDatabaseInputs;
+  private boolean firstTrackLogged;
+  private boolean firstCaptureLogged;
+
+  private StartupOrchestrator(Context context) {
+    Log.i(TAG, "Starting " + (startUptime - processStartUptime) + " ms after process start");
+    openCvReady = CompletableFuture.runAsync(StartupOrchestrator::loadOpenCv, executor);
+    logWhenDone(openCvReady, "OpenCV");
+    // Sceneform loads renderables on its own threads, but they must be requested on the UI thread.
+    modelsReady = AugmentedImageNode.loadModels(context);
+    logWhenDone(modelsReady, "Corner models");
+    imageDatabaseInputs = CompletableFuture.supplyAsync(
+        () -> AugmentedImageFragment.prepareImageDatabase(context), executor);
+    logWhenDone(imageDatabaseInputs, "Image database inputs");
+  }
+
+  /** Starts the cold start tasks on the first call, on the UI thread. */
+  static synchronized StartupOrchestrator start(Context context) {
+    if (instance == null) {
+      instance = new StartupOrchestrator(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  /** The orchestrator, or null if startup was not started. */
+  static synchronized StartupOrchestrator getInstance() {
+    return instance;
+  }
+
+  /**
+   * Blocks until OpenCV is loaded, for background threads about to use it. Throws {@link
+   * IllegalStateException} if it could not be loaded.
+   */
+  static void awaitOpenCv() {
+    StartupOrchestrator startup = getInstance();
+    if (startup == null) {
+      // Not started by the activity, e.g. in a benchmark run on its own.
+      loadOpenCv();
+      return;
+    }
+    try {
+      startup.openCvReady.join();
+    } catch (CompletionException e) {
+      throw new IllegalStateException("OpenCV is not available", e.getCause());
+    }
+  }
+
+  public CompletableFuture<Void> getOpenCvReady() {
+    return openCvReady;
+  }
+
+  public CompletableFuture<Void> getModelsReady() {
+    return modelsReady;
+  }
+
+  /**
+   * Hands out the prepared image database inputs once, to the first session. Later sessions get
+   * null and prepare their own, as the inputs may have changed since.
+   */
+  public synchronized CompletableFuture<AugmentedImageFragment.ImageDatabaseInputs>
+      takeImageDatabaseInputs() {
+    CompletableFuture<AugmentedImageFragment.ImageDatabaseInputs> inputs = imageDatabaseInputs;
+    imageDatabaseInputs = null;
+    return inputs;
+  }
+
+  /** Records that a painting was tracked; logs the time to the first one. */
+  public synchronized void onTracked() {
+    if (!firstTrackLogged) {
+      firstTrackLogged = true;
+      logMilestone("first track");
+    }
+  }
+
+  /** Records that a capture was saved; logs the time to the first one. */
+  public synchronized void onCaptured() {
+    if (!firstCaptureLogged) {
+      firstCaptureLogged = true;
+      logMilestone("first capture");
+    }
+  }
+
+  private void logMilestone(String milestone) {
+    final long now = SystemClock.uptimeMillis();
+    Log.i(TAG, "Time to " + milestone + ": " + (now - processStartUptime)
+        + " ms from process start, " + (now - startUptime) + " ms from startup");
+  }
+
+  private void logWhenDone(CompletableFuture<?> future, String name) {
+    future.whenComplete((result, throwable) -> {
+      final long millis = SystemClock.uptimeMillis() - startUptime;
+      if (throwable != null) {
+        Log.e(TAG, name + " failed after " + millis + " ms", throwable);
+      } else {
+        Log.i(TAG, name + " ready after " + millis + " ms");
+      }
+    });
+  }
+
+  private static void loadOpenCv() {
+    // Loads opencv_java3, which does not need to be loaded separately.
+    if (!OpenCVLoader.initDebug()) {
+      throw new IllegalStateException("OpenCVLoader initDebug failed");
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package com.mojang.paintscan;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Splits large OpenCV warps into horizontal output bands that run on a {@link BandExecutor}, for
+ * outputs where a single {@link Imgproc#warpPerspective} call dominates the capture and does not
+ * spread over all cores.
+ *
+ * <p>Each band is an independent warp into a row range of the shared output {@link Mat}:
+ * {@link #warpPerspective} shifts the homography by the band's first row, {@link #remap} takes the
+ * band's rows of the maps. Outputs shorter than {@code minRows} are warped in one call.
+ *
+ * <p>OpenCV's own thread count is left alone: it is process wide, so changing it around a warp
+ * would also slow down OpenCV work on other threads, and each change rebuilds OpenCV's thread pool.
+ * Thread safe.
+ */
+final class StripWarper {
+
+  /** Warps the output rows {@code [fromRow, toRow)} into {@code band}. */
+  private interface WarpBand {
+    void run(Mat band, int fromRow, int toRow);
+  }
+
+  private final BandExecutor bands;
+  private final int minRows;
+
+  /**
+   * @param bands runs the bands; a single threaded one warps in one call.
+   * @param minRows output height below which warps are not split.
+   */
+  StripWarper(BandExecutor bands, int minRows) {
+    this.bands = bands;
+    this.minRows = minRows;
+  }
+
+  public int getThreadCount() {
+    return bands.getThreadCount();
+  }
+
+  /**
+   * Like {@link Imgproc#warpPerspective} with linear interpolation and a constant border.
+   *
+   * @param transform 3x3 {@code CV_64F} homography from source to output pixels.
+   * @param borderValue value of output pixels that map outside {@code src}.
+   */
+  public void warpPerspective(Mat src, Mat dst, Mat transform, Size size, Scalar borderValue) {
+    final int rows = (int) size.height;
+    if (!isTiled(rows)) {
+      warpOnce(src, dst, transform, size, borderValue);
+      return;
+    }
+    final double[] h = new double[9];
+    transform.get(0, 0, h);
+    dst.create(rows, (int) size.width, src.type());
+    forEachBand(
+        dst,
+        (band, fromRow, toRow) -> {
+          // Output row y of the band is row fromRow + y of the whole output: T(0, -fromRow) * H.
+          double[] bandH = h.clone();
+          bandH[3] -= fromRow * h[6];
+          bandH[4] -= fromRow * h[7];
+          bandH[5] -= fromRow * h[8];
+          Mat bandTransform = new Mat(3, 3, transform.type());
+          bandTransform.put(0, 0, bandH);
+          warpOnce(src, band, bandTransform, new Size(size.width, toRow - fromRow), borderValue);
+          bandTransform.release();
+        });
+  }
+
+  /**
+   * Like {@link Imgproc#remap} with a constant border of {@code borderValue}; the output has the
+   * size of the maps.
+   */
+  public void remap(
+      Mat src, Mat dst, Mat map1, Mat map2, int interpolation, Scalar borderValue) {
+    final int rows = map1.rows();
+    if (!isTiled(rows)) {
+      remapOnce(src, dst, map1, map2, interpolation, borderValue);
+      return;
+    }
+    dst.create(rows, map1.cols(), src.type());
+    forEachBand(
+        dst,
+        (band, fromRow, toRow) -> {
+          Mat bandMap1 = map1.rowRange(fromRow, toRow);
+          Mat bandMap2 = map2.empty() ? map2 : map2.rowRange(fromRow, toRow);
+          remapOnce(src, band, bandMap1, bandMap2, interpolation, borderValue);
+          bandMap1.release();
+          if (bandMap2 != map2) {
+            bandMap2.release();
+          }
+        });
+  }
+
+  /** Untiled {@link Imgproc#warpPerspective}, also used by the callers without a warper. */
+  static void warpOnce(Mat src, Mat dst, Mat transform, Size size, Scalar borderValue) {
+    Imgproc.warpPerspective(
+        src, dst, transform, size, Imgproc.INTER_LINEAR, Core.BORDER_CONSTANT, borderValue);
+  }
+
+  /** Untiled {@link Imgproc#remap}, also used by the callers without a warper. */
+  static void remapOnce(
+      Mat src, Mat dst, Mat map1, Mat map2, int interpolation, Scalar borderValue) {
+    Imgproc.remap(src, dst, map1, map2, interpolation, Core.BORDER_CONSTANT, borderValue);
+  }
+
+  private boolean isTiled(int rows) {
+    return bands.getThreadCount() > 1 && rows >= minRows;
+  }
+
+  private void forEachBand(Mat dst, WarpBand band) {
+    bands.forEachBand(dst.rows(), (fromRow, toRow) -> runBand(dst, band, fromRow, toRow));
+  }
+
+  private static void runBand(Mat dst, WarpBand band, int fromRow, int toRow) {
+    Mat rows = dst.rowRange(fromRow, toRow);
+    band.run(rows, fromRow, toRow);
+    rows.release();
+  }
+}
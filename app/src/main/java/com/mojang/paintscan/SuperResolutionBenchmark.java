@@ -0,0 +1,160 @@
+package com.mojang.paintscan;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark of {@link SuperResolver} quality against the number of frames used. A synthetic
+ * painting with detail finer than a camera pixel is rendered into camera frames from slightly
+ * different viewpoints, with sensor noise and a tracking error on the corners, and then resolved
+ * back at full size. Quality is the PSNR against the painting, next to a single frame bilinear
+ * warp as the baseline. Results are written to the log; run it off the UI thread.
+ */
+final class SuperResolutionBenchmark {
+  private static final String TAG = "SuperResolutionBenchmark";
+
+  private static final int CAMERA_WIDTH = 1280;
+  private static final int CAMERA_HEIGHT = 720;
+  // The painting appears about this many camera pixels wide, and is resolved at OUTPUT_SIZE.
+  private static final int PAINTING_PIXELS = 600;
+  private static final int OUTPUT_SIZE = 1024;
+  private static final int[] FRAME_COUNTS = {1, 2, 4, 8};
+  private static final float VIEWPOINT_JITTER_PX = 3f;
+  private static final float TRACKING_ERROR_PX = 1f;
+  private static final float NOISE_SIGMA = 3f;
+
+  private SuperResolutionBenchmark() {}
+
+  static void run() {
+    final int maxFrames = FRAME_COUNTS[FRAME_COUNTS.length - 1];
+    final Random random = new Random(42);
+    final byte[] painting = createPainting(OUTPUT_SIZE);
+    final YuvFramePool pool = new YuvFramePool(maxFrames);
+
+    List<YuvFrame> frames = new ArrayList<>(maxFrames);
+    List<float[]> trackedCorners = new ArrayList<>(maxFrames);
+    final float left = (CAMERA_WIDTH - PAINTING_PIXELS) / 2f;
+    final float top = (CAMERA_HEIGHT - PAINTING_PIXELS) / 2f;
+    for (int k = 0; k < maxFrames; k++) {
+      float[] corners = {
+        left, top,
+        left + PAINTING_PIXELS, top,
+        left + PAINTING_PIXELS, top + PAINTING_PIXELS,
+        left, top + PAINTING_PIXELS
+      };
+      for (int i = 0; i < 8; i++) {
+        corners[i] += (random.nextFloat() * 2 - 1) * VIEWPOINT_JITTER_PX;
+      }
+      YuvFrame frame = pool.acquire(CAMERA_WIDTH, CAMERA_HEIGHT);
+      render(painting, OUTPUT_SIZE, corners, frame, random);
+      frames.add(frame);
+
+      // Tracking is off by a small translation, which registration has to find. The reference
+      // frame defines the output geometry and its error would shift every method alike, so it
+      // is left exact.
+      float errorX = k == 0 ? 0 : (random.nextFloat() * 2 - 1) * TRACKING_ERROR_PX;
+      float errorY = k == 0 ? 0 : (random.nextFloat() * 2 - 1) * TRACKING_ERROR_PX;
+      float[] tracked = corners.clone();
+      for (int i = 0; i < 4; i++) {
+        tracked[2 * i] += errorX;
+        tracked[2 * i + 1] += errorY;
+      }
+      trackedCorners.add(tracked);
+    }
+
+    final int[] output = new int[OUTPUT_SIZE * OUTPUT_SIZE];
+    PerspectiveWarper warper = new PerspectiveWarper(BandExecutor.CALLING_THREAD);
+    double[] transform = new double[9];
+    Homography.rectToQuad(trackedCorners.get(0), OUTPUT_SIZE, OUTPUT_SIZE, transform);
+    long startNs = SystemClock.elapsedRealtimeNanos();
+    warper.warpNv21ToArgb(frames.get(0).toByteArray(), CAMERA_WIDTH, CAMERA_HEIGHT, transform,
+        output, OUTPUT_SIZE, OUTPUT_SIZE, PerspectiveWarper.Interpolation.BILINEAR);
+    Log.i(TAG, "Bilinear, 1 frame: " + psnr(painting, output) + " dB in "
+        + (SystemClock.elapsedRealtimeNanos() - startNs) / 1e6f + " ms");
+
+    BandExecutor bands = new BandExecutor(Runtime.getRuntime().availableProcessors());
+    SuperResolver resolver = new SuperResolver(bands);
+    SuperResolver.Stats stats = new SuperResolver.Stats();
+    for (int frameCount : FRAME_COUNTS) {
+      startNs = SystemClock.elapsedRealtimeNanos();
+      int[] resolved = resolver.resolve(frames.subList(0, frameCount),
+          trackedCorners.subList(0, frameCount), OUTPUT_SIZE, OUTPUT_SIZE, stats);
+      Log.i(TAG, "Super-resolution, " + frameCount + " frames (" + stats.framesUsed + " used): "
+          + psnr(painting, resolved) + " dB in "
+          + (SystemClock.elapsedRealtimeNanos() - startNs) / 1e6f + " ms (registration "
+          + stats.registrationMillis + " ms)");
+    }
+
+    bands.shutdown();
+    for (YuvFrame frame : frames) {
+      frame.release();
+    }
+  }
+
+  /** Luma texture with edges and fine stripes, some finer than a camera pixel. */
+  private static byte[] createPainting(int size) {
+    byte[] painting = new byte[size * size];
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        double value = ((x / 64 + y / 64) % 2 == 0) ? 150 : 90;
+        value += 25 * Math.sin(2 * Math.PI * (x + 0.5 * y) / 3.3);
+        value += 20 * Math.sin(2 * Math.PI * y / 6.1);
+        painting[y * size + x] = (byte) Math.round(value);
+      }
+    }
+    return painting;
+  }
+
+  /**
+   * Renders the painting into the quad given by {@code corners}. Each camera pixel averages the
+   * painting over its footprint, approximated by four samples.
+   */
+  private static void render(
+      byte[] painting, int size, float[] corners, YuvFrame frame, Random random) {
+    final int width = frame.getWidth();
+    final int height = frame.getHeight();
+    double[] toPainting = new double[9];
+    Homography.quadToRect(corners, size, size, toPainting);
+
+    byte[] nv21 = new byte[YuvFrame.byteCount(width, height)];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int sum = 0;
+        for (int sample = 0; sample < 4; sample++) {
+          final double sx = x + ((sample & 1) == 0 ? -0.25 : 0.25);
+          final double sy = y + ((sample & 2) == 0 ? -0.25 : 0.25);
+          final double w = toPainting[6] * sx + toPainting[7] * sy + toPainting[8];
+          final double u = (toPainting[0] * sx + toPainting[1] * sy + toPainting[2]) / w;
+          final double v = (toPainting[3] * sx + toPainting[4] * sy + toPainting[5]) / w;
+          sum += PerspectiveWarper.bilinearGray(painting, 0, size, size, size, u, v);
+        }
+        final double value = sum / 4.0 + random.nextGaussian() * NOISE_SIGMA;
+        nv21[y * width + x] = (byte) Math.max(0, Math.min(255, Math.round(value)));
+      }
+    }
+    for (int i = width * height; i < nv21.length; i++) {
+      nv21[i] = (byte) 128;
+    }
+
+    ByteBuffer data = frame.getBuffer().duplicate();
+    data.clear();
+    data.put(nv21);
+  }
+
+  /** PSNR of the red channel, which carries the luma for gray pixels, against the painting. */
+  private static float psnr(byte[] painting, int[] argb) {
+    double squaredError = 0;
+    for (int i = 0; i < painting.length; i++) {
+      final int expected = (PerspectiveWarper.yuvToArgb(painting[i] & 0xff, 128, 128) >> 16) & 0xff;
+      final int actual = (argb[i] >> 16) & 0xff;
+      squaredError += (expected - actual) * (expected - actual);
+    }
+    final double mse = squaredError / painting.length;
+    return (float) (10 * Math.log10(255.0 * 255.0 / Math.max(mse, 1e-10)));
+  }
+}
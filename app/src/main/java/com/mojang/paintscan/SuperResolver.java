@@ -0,0 +1,407 @@
+package com.mojang.paintscan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Multi-frame super-resolution: builds a rectified image larger than the painting appears in any
+ * single camera frame by combining several frames taken from slightly different viewpoints.
+ *
+ * <ol>
+ *   <li>Each frame gets the homography from its tracked corners to the output grid.
+ *   <li>Tracked corners are only accurate to a pixel or two, so every frame is rectified onto a
+ *       registration grid and aligned to the reference frame by normalized cross-correlation: a
+ *       coarse search on a half size grid, refined on the full grid to sub-pixel precision with a
+ *       parabola fit. Frames that do not correlate are left out.
+ *   <li>Every luma sample of every frame is splatted bilinearly onto the output grid at its
+ *       registered, sub-pixel position. The samples of different frames land between each other,
+ *       which is where the extra resolution comes from. Sparse spots are filled from the average
+ *       of the frames, interpolated.
+ *   <li>Chroma, which carries little detail, is averaged across frames at output resolution.
+ * </ol>
+ *
+ * <p>Registration, accumulation and the final conversion are split into bands of frames or rows on
+ * a {@link BandExecutor}; each band writes only its own output rows, so no locking is needed. Needs
+ * no native code and runs on a plain JVM.
+ */
+final class SuperResolver {
+
+  /** Outcome of the last {@link #resolve} call, for logging and benchmarks. */
+  static final class Stats {
+    int framesUsed;
+    float registrationMillis;
+    float accumulationMillis;
+  }
+
+  // Size of the grid frames are aligned on, capped by the output size. The coarse search runs on
+  // a grid of half this size.
+  private static final int REGISTRATION_SIZE = 512;
+  // Largest misalignment searched, in coarse grid pixels.
+  private static final int SEARCH_RADIUS = 3;
+  // Search radius around the scaled up coarse shift, in registration grid pixels.
+  private static final int REFINE_RADIUS = 2;
+  // Frames whose best correlation with the reference is lower are left out.
+  private static final float MIN_CORRELATION = 0.6f;
+  // Weight of the interpolated average where splatted samples are sparse.
+  private static final float PRIOR_WEIGHT = 0.05f;
+  // Rows per band of accumulation and conversion.
+  private static final int MIN_TILE_ROWS = 32;
+
+  private final BandExecutor bands;
+
+  SuperResolver(BandExecutor bands) {
+    this.bands = bands;
+  }
+
+  /**
+   * Resolves a {@code width} x {@code height} ARGB image of the painting from {@code frames},
+   * whose first frame is the reference the others are aligned to. Frames of a different size than
+   * the reference are ignored.
+   *
+   * @param corners painting corners in each frame, see {@link CaptureSnapshot}.
+   * @param stats receives the outcome, may be null.
+   */
+  public int[] resolve(
+      List<YuvFrame> frames, List<float[]> corners, int width, int height, Stats stats) {
+    final long startNs = System.nanoTime();
+    final YuvFrame reference = frames.get(0);
+    final int frameWidth = reference.getWidth();
+    final int frameHeight = reference.getHeight();
+
+    List<byte[]> images = new ArrayList<>(frames.size());
+    List<double[]> transforms = new ArrayList<>(frames.size());
+    for (int k = 0; k < frames.size(); k++) {
+      YuvFrame frame = frames.get(k);
+      double[] transform = new double[9];
+      if (frame.getWidth() != frameWidth
+          || frame.getHeight() != frameHeight
+          || !Homography.rectToQuad(corners.get(k), width, height, transform)) {
+        if (k == 0) {
+          throw new IllegalArgumentException("Degenerate reference corners");
+        }
+        continue;
+      }
+      images.add(frame.toByteArray());
+      transforms.add(transform);
+    }
+
+    final Job job = new Job(images, transforms, frameWidth, frameHeight, width, height);
+    if (job.frameCount > 1) {
+      register(job);
+    }
+    final long registeredNs = System.nanoTime();
+
+    bands.forEachBand(height, MIN_TILE_ROWS, (from, to) -> accumulate(job, from, to));
+    bands.forEachBand(height, MIN_TILE_ROWS, (from, to) -> finish(job, from, to));
+
+    if (stats != null) {
+      stats.framesUsed = job.frameCount;
+      stats.registrationMillis = (registeredNs - startNs) / 1e6f;
+      stats.accumulationMillis = (System.nanoTime() - registeredNs) / 1e6f;
+    }
+    return job.output;
+  }
+
+  /** State shared by the row tasks of one {@link #resolve} call. */
+  private static final class Job {
+    final int frameWidth;
+    final int frameHeight;
+    final int width;
+    final int height;
+    final byte[][] images;
+    // Output to source luma pixels, and back.
+    final double[][] transforms;
+    final double[][] inverses;
+    int frameCount;
+    final float[] sum;
+    final float[] weight;
+    final int[] output;
+
+    Job(List<byte[]> images, List<double[]> transforms, int frameWidth, int frameHeight, int width,
+        int height) {
+      this.frameWidth = frameWidth;
+      this.frameHeight = frameHeight;
+      this.width = width;
+      this.height = height;
+      this.images = images.toArray(new byte[0][]);
+      this.transforms = transforms.toArray(new double[0][]);
+      this.frameCount = this.images.length;
+      inverses = new double[frameCount][9];
+      for (int k = 0; k < frameCount; k++) {
+        Homography.invert(this.transforms[k], inverses[k]);
+      }
+      sum = new float[width * height];
+      weight = new float[width * height];
+      output = new int[width * height];
+    }
+
+    /** Keeps only the frames flagged in {@code keep}. */
+    void retain(boolean[] keep) {
+      int kept = 0;
+      for (int k = 0; k < frameCount; k++) {
+        if (keep[k]) {
+          images[kept] = images[k];
+          transforms[kept] = transforms[k];
+          inverses[kept] = inverses[k];
+          kept++;
+        }
+      }
+      frameCount = kept;
+    }
+  }
+
+  /** Aligns every frame to the reference by adjusting its transform. */
+  private void register(final Job job) {
+    final int fineWidth = Math.min(REGISTRATION_SIZE, job.width) & ~1;
+    final int fineHeight = Math.max(2, Math.round((float) fineWidth * job.height / job.width)) & ~1;
+    final int coarseWidth = fineWidth / 2;
+    final int coarseHeight = fineHeight / 2;
+    final byte[][] fine = new byte[job.frameCount][];
+    final byte[][] coarse = new byte[job.frameCount][];
+    bands.forEachBand(job.frameCount, 1, (from, to) -> {
+      PerspectiveWarper warper = new PerspectiveWarper(BandExecutor.CALLING_THREAD);
+      double[] gridTransform = new double[9];
+      for (int k = from; k < to; k++) {
+        // Same mapping as the output transform, scaled down to the grid.
+        System.arraycopy(job.transforms[k], 0, gridTransform, 0, 9);
+        for (int row = 0; row < 3; row++) {
+          gridTransform[3 * row] *= (double) job.width / fineWidth;
+          gridTransform[3 * row + 1] *= (double) job.height / fineHeight;
+        }
+        fine[k] = new byte[fineWidth * fineHeight];
+        warper.warpGray(job.images[k], 0, job.frameWidth, job.frameWidth, job.frameHeight,
+            gridTransform, fine[k], fineWidth, fineHeight, PerspectiveWarper.Interpolation.BILINEAR);
+        coarse[k] = halve(fine[k], fineWidth, fineHeight);
+      }
+    });
+
+    final boolean[] keep = new boolean[job.frameCount];
+    keep[0] = true;
+    bands.forEachBand(job.frameCount - 1, 1, (fromFrame, toFrame) -> {
+      float[] shift = new float[2];
+      // The reference, frame 0, is not aligned to itself.
+      for (int k = fromFrame + 1; k < toFrame + 1; k++) {
+        // Find the shift on the coarse grid, where fine detail cannot alias, then refine it.
+        correlate(coarse[0], coarse[k], coarseWidth, coarseHeight, 0, 0, SEARCH_RADIUS, shift);
+        final int centerX = Math.round(2 * shift[0]);
+        final int centerY = Math.round(2 * shift[1]);
+        if (correlate(fine[0], fine[k], fineWidth, fineHeight, centerX, centerY, REFINE_RADIUS,
+            shift)
+            < MIN_CORRELATION) {
+          continue;
+        }
+        keep[k] = true;
+        // Output pixel p of the reference shows what frame k shows at p + shift.
+        translate(job.transforms[k],
+            shift[0] * job.width / fineWidth, shift[1] * job.height / fineHeight);
+        Homography.invert(job.transforms[k], job.inverses[k]);
+      }
+    });
+    job.retain(keep);
+  }
+
+  /** Halves an image in both directions by averaging 2x2 blocks. */
+  private static byte[] halve(byte[] image, int width, int height) {
+    final int halfWidth = width / 2;
+    final int halfHeight = height / 2;
+    byte[] half = new byte[halfWidth * halfHeight];
+    for (int y = 0; y < halfHeight; y++) {
+      int top = 2 * y * width;
+      int bottom = top + width;
+      for (int x = 0; x < halfWidth; x++, top += 2, bottom += 2) {
+        half[y * halfWidth + x] =
+            (byte) (((image[top] & 0xff) + (image[top + 1] & 0xff) + (image[bottom] & 0xff)
+                + (image[bottom + 1] & 0xff) + 2) >> 2);
+      }
+    }
+    return half;
+  }
+
+  /**
+   * Finds the shift of {@code image} relative to {@code reference}, such that
+   * {@code image(p + shift)} matches {@code reference(p)}, among the integer shifts at most
+   * {@code radius} away from {@code (centerX, centerY)}. The best shift is refined to sub-pixel
+   * precision unless it lies on the edge of the search window. Returns its normalized
+   * cross-correlation.
+   */
+  private static float correlate(byte[] reference, byte[] image, int width, int height,
+      int centerX, int centerY, int radius, float[] shift) {
+    final int size = 2 * radius + 1;
+    // Skip a border wide enough for every shift, so all shifts compare the same reference pixels.
+    final int border = Math.max(Math.abs(centerX), Math.abs(centerY)) + radius;
+    final float[] scores = new float[size * size];
+    int best = 0;
+    for (int i = 0; i < size * size; i++) {
+      scores[i] = normalizedCrossCorrelation(reference, image, width, height, border,
+          centerX + i % size - radius, centerY + i / size - radius);
+      if (scores[i] > scores[best]) {
+        best = i;
+      }
+    }
+
+    final int bestX = best % size;
+    final int bestY = best / size;
+    shift[0] = centerX + bestX - radius;
+    shift[1] = centerY + bestY - radius;
+    if (bestX > 0 && bestX < size - 1) {
+      shift[0] += parabolaPeak(scores[best - 1], scores[best], scores[best + 1]);
+    }
+    if (bestY > 0 && bestY < size - 1) {
+      shift[1] += parabolaPeak(scores[best - size], scores[best], scores[best + size]);
+    }
+    return scores[best];
+  }
+
+  private static float normalizedCrossCorrelation(
+      byte[] reference, byte[] image, int width, int height, int border, int dx, int dy) {
+    long sumA = 0;
+    long sumB = 0;
+    long sumAA = 0;
+    long sumBB = 0;
+    long sumAB = 0;
+    int count = 0;
+    for (int y = border; y < height - border; y++) {
+      int a = y * width + border;
+      int b = (y + dy) * width + border + dx;
+      for (int x = border; x < width - border; x++, a++, b++) {
+        final int va = reference[a] & 0xff;
+        final int vb = image[b] & 0xff;
+        sumA += va;
+        sumB += vb;
+        sumAA += va * va;
+        sumBB += vb * vb;
+        sumAB += va * vb;
+        count++;
+      }
+    }
+    if (count == 0) {
+      return 0f;
+    }
+    final double covariance = sumAB - (double) sumA * sumB / count;
+    final double varianceA = sumAA - (double) sumA * sumA / count;
+    final double varianceB = sumBB - (double) sumB * sumB / count;
+    if (varianceA <= 0 || varianceB <= 0) {
+      return 0f;
+    }
+    return (float) (covariance / Math.sqrt(varianceA * varianceB));
+  }
+
+  /** Offset of the vertex of the parabola through three equally spaced scores, in [-0.5, 0.5]. */
+  private static float parabolaPeak(float left, float center, float right) {
+    final float curvature = left - 2 * center + right;
+    if (curvature >= 0) {
+      return 0f;
+    }
+    return Math.max(-0.5f, Math.min(0.5f, 0.5f * (left - right) / curvature));
+  }
+
+  /** Replaces {@code transform} by {@code transform * T(dx, dy)}. */
+  private static void translate(double[] transform, double dx, double dy) {
+    for (int row = 0; row < 3; row++) {
+      transform[3 * row + 2] += transform[3 * row] * dx + transform[3 * row + 1] * dy;
+    }
+  }
+
+  /** Splats the luma samples that land in output rows {@code [fromRow, toRow)}. */
+  private static void accumulate(Job job, int fromRow, int toRow) {
+    final int width = job.width;
+    final float[] sum = job.sum;
+    final float[] weight = job.weight;
+    for (int k = 0; k < job.frameCount; k++) {
+      final byte[] image = job.images[k];
+      final double[] transform = job.transforms[k];
+      final double[] inverse = job.inverses[k];
+
+      // Source pixels that can land in these rows: the bounding box of the row band, with one
+      // extra row above since a sample reaches down into the next row.
+      double minX = Double.MAX_VALUE;
+      double minY = Double.MAX_VALUE;
+      double maxX = -Double.MAX_VALUE;
+      double maxY = -Double.MAX_VALUE;
+      for (int corner = 0; corner < 4; corner++) {
+        final double u = (corner == 1 || corner == 2) ? width : 0;
+        final double v = corner < 2 ? fromRow - 1 : toRow;
+        final double w = transform[6] * u + transform[7] * v + transform[8];
+        final double x = (transform[0] * u + transform[1] * v + transform[2]) / w;
+        final double y = (transform[3] * u + transform[4] * v + transform[5]) / w;
+        minX = Math.min(minX, x);
+        maxX = Math.max(maxX, x);
+        minY = Math.min(minY, y);
+        maxY = Math.max(maxY, y);
+      }
+      final int left = (int) Math.max(0, Math.floor(minX));
+      final int right = (int) Math.min(job.frameWidth - 1, Math.ceil(maxX));
+      final int top = (int) Math.max(0, Math.floor(minY));
+      final int bottom = (int) Math.min(job.frameHeight - 1, Math.ceil(maxY));
+
+      for (int y = top; y <= bottom; y++) {
+        for (int x = left; x <= right; x++) {
+          final double w = inverse[6] * x + inverse[7] * y + inverse[8];
+          final double u = (inverse[0] * x + inverse[1] * y + inverse[2]) / w;
+          final double v = (inverse[3] * x + inverse[4] * y + inverse[5]) / w;
+          if (!(v >= fromRow - 1 && v < toRow && u >= -1 && u < width)) {
+            continue;
+          }
+          final int u0 = (int) Math.floor(u);
+          final int v0 = (int) Math.floor(v);
+          final float fu = (float) (u - u0);
+          final float fv = (float) (v - v0);
+          final float luma = image[y * job.frameWidth + x] & 0xff;
+          splat(sum, weight, width, fromRow, toRow, u0, v0, (1 - fu) * (1 - fv), luma);
+          splat(sum, weight, width, fromRow, toRow, u0 + 1, v0, fu * (1 - fv), luma);
+          splat(sum, weight, width, fromRow, toRow, u0, v0 + 1, (1 - fu) * fv, luma);
+          splat(sum, weight, width, fromRow, toRow, u0 + 1, v0 + 1, fu * fv, luma);
+        }
+      }
+    }
+  }
+
+  private static void splat(float[] sum, float[] weight, int width, int fromRow, int toRow, int u,
+      int v, float w, float luma) {
+    if (u >= 0 && u < width && v >= fromRow && v < toRow) {
+      final int index = v * width + u;
+      sum[index] += w * luma;
+      weight[index] += w;
+    }
+  }
+
+  /** Normalizes the splatted luma, adds averaged chroma and converts rows to ARGB. */
+  private static void finish(Job job, int fromRow, int toRow) {
+    final int frameWidth = job.frameWidth;
+    final int frameHeight = job.frameHeight;
+    final int vuOffset = frameWidth * frameHeight;
+    final int chromaWidth = frameWidth / 2;
+    final int chromaHeight = frameHeight / 2;
+    for (int v = fromRow; v < toRow; v++) {
+      for (int u = 0; u < job.width; u++) {
+        final int index = v * job.width + u;
+        int lumaSum = 0;
+        int vSum = 0;
+        int uSum = 0;
+        for (int k = 0; k < job.frameCount; k++) {
+          final double[] transform = job.transforms[k];
+          final double w = transform[6] * u + transform[7] * v + transform[8];
+          final double x = (transform[0] * u + transform[1] * v + transform[2]) / w;
+          final double y = (transform[3] * u + transform[4] * v + transform[5]) / w;
+          lumaSum += PerspectiveWarper.bilinearGray(
+              job.images[k], 0, frameWidth, frameWidth, frameHeight, x, y);
+          final int chroma = PerspectiveWarper.bilinearChroma(
+              job.images[k], vuOffset, 2 * chromaWidth, chromaWidth, chromaHeight,
+              Math.min(chromaWidth - 1, Math.max(0, x * 0.5)),
+              Math.min(chromaHeight - 1, Math.max(0, y * 0.5)));
+          vSum += chroma >> 8;
+          uSum += chroma & 0xff;
+        }
+
+        final float prior = (float) lumaSum / job.frameCount;
+        final float luma =
+            (job.sum[index] + PRIOR_WEIGHT * prior) / (job.weight[index] + PRIOR_WEIGHT);
+        job.output[index] =
+            PerspectiveWarper.yuvToArgb(
+                Math.round(luma),
+                (uSum + job.frameCount / 2) / job.frameCount,
+                (vSum + job.frameCount / 2) / job.frameCount);
+      }
+    }
+  }
+}
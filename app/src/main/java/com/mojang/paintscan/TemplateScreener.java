@@ -0,0 +1,269 @@
+package com.mojang.paintscan;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import org.opencv.android.Utils;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Size;
+import org.opencv.features2d.FastFeatureDetector;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Predicts how well a painting will track before it is added to an {@link
+ * com.google.ar.core.AugmentedImageDatabase}, which accepts almost any image but tracks plain or
+ * lopsided ones poorly.
+ *
+ * <p>The image is decoded at a small fixed size in grayscale and FAST corners are detected on it.
+ * A good template has many corners, spread over the whole image: the score is the corner count
+ * relative to {@code TARGET_FEATURES}, times the fraction of {@code GRID_SIZE} x {@code GRID_SIZE}
+ * cells holding a few corners. Screening an image takes a few milliseconds; {@link #screen} is
+ * thread safe so many images can be screened in parallel.
+ *
+ * <p>Scores are cached by a hash of the encoded image, in memory and, with a cache file, across
+ * sessions.
+ */
+final class TemplateScreener {
+  private static final String TAG = "TemplateScreener";
+
+  // Long side of the screened copy, so scores do not depend on the image resolution.
+  private static final int SCREEN_SIZE = 480;
+  private static final int FAST_THRESHOLD = 20;
+  private static final int GRID_SIZE = 8;
+  // Corners a cell needs to count as covered.
+  private static final int MIN_CELL_FEATURES = 3;
+  // Corner count at which the count no longer lowers the score.
+  private static final int TARGET_FEATURES = 300;
+  // Stored scores with another header were computed differently and are ignored.
+  private static final String CACHE_HEADER =
+      "v1 " + SCREEN_SIZE + " " + FAST_THRESHOLD + " " + GRID_SIZE + " " + MIN_CELL_FEATURES;
+
+  /** Outcome of screening an image. */
+  enum Verdict {
+    PASS,
+    /** Tracks, but likely slowly or unstably. */
+    FLAG,
+    /** Unlikely to track at all. */
+    REJECT
+  }
+
+  /** Measurements of an image. */
+  static final class Score {
+    final int featureCount;
+    /** Fraction of grid cells holding corners, 0 to 1. */
+    final float coverage;
+    /** Overall quality, 0 to 1. */
+    final float quality;
+
+    Score(int featureCount, float coverage) {
+      this.featureCount = featureCount;
+      this.coverage = coverage;
+      quality = Math.min(1f, (float) featureCount / TARGET_FEATURES) * coverage;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d features, %.0f%% coverage, quality %.2f",
+          featureCount, coverage * 100, quality);
+    }
+  }
+
+  private final File cacheFile;
+  private final int minFeatures;
+  private final float minCoverage;
+  private final float minQuality;
+  private final Map<String, Score> scores = new ConcurrentHashMap<>();
+  private boolean cacheRead;
+  private boolean cacheChanged;
+
+  /**
+   * @param cacheFile stores scores across sessions, may be null.
+   * @param minFeatures images with fewer corners are rejected.
+   * @param minCoverage images covering less of the grid are rejected.
+   * @param minQuality images scoring lower pass but are flagged.
+   */
+  TemplateScreener(File cacheFile, int minFeatures, float minCoverage, float minQuality) {
+    this.cacheFile = cacheFile;
+    this.minFeatures = minFeatures;
+    this.minCoverage = minCoverage;
+    this.minQuality = minQuality;
+  }
+
+  /** Scores an encoded image, or returns null if it cannot be decoded. */
+  public Score screen(byte[] encoded) {
+    readCache();
+    final String hash = hash(encoded);
+    Score score = scores.get(hash);
+    if (score == null) {
+      score = measure(encoded);
+      if (score == null) {
+        return null;
+      }
+      scores.put(hash, score);
+      synchronized (this) {
+        cacheChanged = true;
+      }
+    }
+    return score;
+  }
+
+  public Verdict getVerdict(Score score) {
+    if (score.featureCount < minFeatures || score.coverage < minCoverage) {
+      return Verdict.REJECT;
+    }
+    return score.quality < minQuality ? Verdict.FLAG : Verdict.PASS;
+  }
+
+  /**
+   * The settings that decide which images are rejected, for cache keys of databases built with
+   * this screener. {@code minQuality} is left out, as flagged images are still added.
+   */
+  public String describeParameters() {
+    return CACHE_HEADER + " " + minFeatures + " " + minCoverage;
+  }
+
+  /** Writes the scores to the cache file, if there is one and new scores were computed. */
+  public synchronized void saveCache() {
+    if (cacheFile == null || !cacheChanged) {
+      return;
+    }
+    File dir = cacheFile.getParentFile();
+    if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+      Log.w(TAG, "Could not create " + dir);
+      return;
+    }
+    File tempFile = new File(cacheFile.getPath() + ".tmp");
+    try (Writer out =
+        new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8)) {
+      out.write(CACHE_HEADER + "\n");
+      for (Map.Entry<String, Score> entry : scores.entrySet()) {
+        Score score = entry.getValue();
+        out.write(entry.getKey() + " " + score.featureCount + " " + score.coverage + "\n");
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Could not write " + tempFile + ": " + e.getMessage());
+      tempFile.delete();
+      return;
+    }
+    if (!tempFile.renameTo(cacheFile)) {
+      Log.w(TAG, "Could not rename " + tempFile + " to " + cacheFile);
+      tempFile.delete();
+      return;
+    }
+    cacheChanged = false;
+  }
+
+  /** Reads the cache file on first use, so creating a screener does no I/O. */
+  private synchronized void readCache() {
+    if (cacheRead) {
+      return;
+    }
+    cacheRead = true;
+    if (cacheFile == null || !cacheFile.exists()) {
+      return;
+    }
+    try (BufferedReader in = new BufferedReader(
+        new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8))) {
+      if (!CACHE_HEADER.equals(in.readLine())) {
+        return;
+      }
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] fields = line.split(" ");
+        if (fields.length == 3) {
+          scores.put(
+              fields[0], new Score(Integer.parseInt(fields[1]), Float.parseFloat(fields[2])));
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      Log.w(TAG, "Discarding unreadable " + cacheFile + ": " + e.getMessage());
+      scores.clear();
+    }
+  }
+
+  private static Score measure(byte[] encoded) {
+    // Catalogs can be screened while OpenCV is still loading at startup.
+    StartupOrchestrator.awaitOpenCv();
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+    final int longSide = Math.max(options.outWidth, options.outHeight);
+    if (longSide <= 0) {
+      return null;
+    }
+    // Decode at the smallest power of two reduction still at least the screened size, so large
+    // images are never decoded in full.
+    int sampleSize = 1;
+    while (longSide / (sampleSize * 2) >= SCREEN_SIZE) {
+      sampleSize *= 2;
+    }
+    options = new BitmapFactory.Options();
+    options.inSampleSize = sampleSize;
+    Bitmap bitmap = BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+    if (bitmap == null) {
+      return null;
+    }
+
+    Mat rgba = new Mat();
+    Utils.bitmapToMat(bitmap, rgba);
+    bitmap.recycle();
+    final double scale = (double) SCREEN_SIZE / Math.max(rgba.cols(), rgba.rows());
+    final int width = Math.max(1, (int) Math.round(rgba.cols() * scale));
+    final int height = Math.max(1, (int) Math.round(rgba.rows() * scale));
+    Mat gray = new Mat();
+    Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+    Imgproc.resize(gray, gray, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+    rgba.release();
+
+    MatOfKeyPoint keyPoints = new MatOfKeyPoint();
+    FastFeatureDetector.create(FAST_THRESHOLD, true).detect(gray, keyPoints);
+    KeyPoint[] points = keyPoints.toArray();
+    keyPoints.release();
+    gray.release();
+
+    int[] cellCounts = new int[GRID_SIZE * GRID_SIZE];
+    for (KeyPoint point : points) {
+      final int cellX = Math.min(GRID_SIZE - 1, (int) (point.pt.x * GRID_SIZE / width));
+      final int cellY = Math.min(GRID_SIZE - 1, (int) (point.pt.y * GRID_SIZE / height));
+      cellCounts[cellY * GRID_SIZE + cellX]++;
+    }
+    int coveredCells = 0;
+    for (int count : cellCounts) {
+      if (count >= MIN_CELL_FEATURES) {
+        coveredCells++;
+      }
+    }
+    return new Score(points.length, (float) coveredCells / cellCounts.length);
+  }
+
+  private static String hash(byte[] encoded) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest(encoded)) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,82 @@
+package com.mojang.paintscan;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.opencv.core.Core;
+
+import java.util.Arrays;
+
+/**
+ * On-device benchmark of {@link StripWarper} against single OpenCV warp calls for large rectified
+ * outputs, with and without the {@link RemapCache}. Results are written to the log. Requires the
+ * OpenCV native library to be loaded; run it off the UI thread.
+ */
+final class TiledWarpBenchmark {
+  private static final String TAG = "TiledWarpBenchmark";
+
+  private static final int CAMERA_WIDTH = 1920;
+  private static final int CAMERA_HEIGHT = 1080;
+  private static final int[] OUTPUT_SIZES = {512, 1024, 2048};
+  private static final int WARMUP_ITERATIONS = 2;
+  private static final int ITERATIONS = 10;
+  private static final int ROI_MARGIN = 16;
+
+  private TiledWarpBenchmark() {}
+
+  static void run() {
+    YuvFramePool pool = new YuvFramePool(1);
+    YuvFrame frame = pool.acquire(CAMERA_WIDTH, CAMERA_HEIGHT);
+    RectificationBenchmark.fillGradient(frame);
+    final float[] corners = RectificationBenchmark.centeredQuad(CAMERA_WIDTH, CAMERA_HEIGHT, 0.8f);
+
+    final int threadCount = Runtime.getRuntime().availableProcessors();
+    BandExecutor bands = new BandExecutor(threadCount);
+    StripWarper stripWarper = new StripWarper(bands, 0);
+    // Large enough for the 2048 maps, so cached runs only measure the remap.
+    RemapCache remapCache = new RemapCache(1f, 64L * 1024 * 1024);
+    Log.i(TAG, "OpenCV threads " + Core.getNumThreads() + ", bands " + threadCount);
+
+    for (FrameRectifier.Mode mode : FrameRectifier.Mode.values()) {
+      FrameRectifier[] rectifiers = {
+        new FrameRectifier(mode, true, ROI_MARGIN, null, false, null),
+        new FrameRectifier(mode, true, ROI_MARGIN, null, false, stripWarper),
+        new FrameRectifier(mode, true, ROI_MARGIN, remapCache, false, null),
+        new FrameRectifier(mode, true, ROI_MARGIN, remapCache, false, stripWarper)
+      };
+      String[] names = {"single", "tiled", "cached single", "cached tiled"};
+      for (int size : OUTPUT_SIZES) {
+        StringBuilder line = new StringBuilder();
+        line.append(mode).append(' ').append(size).append('x').append(size).append(':');
+        for (int i = 0; i < rectifiers.length; i++) {
+          line.append(' ')
+              .append(names[i])
+              .append(' ')
+              .append(medianMillis(rectifiers[i], frame, corners, size))
+              .append(" ms");
+        }
+        Log.i(TAG, line.toString());
+      }
+      remapCache.clear();
+    }
+
+    bands.shutdown();
+    frame.release();
+  }
+
+  /** Median time of one rectification in milliseconds, after a short warm-up. */
+  private static float medianMillis(
+      FrameRectifier rectifier, YuvFrame frame, float[] corners, int size) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      rectifier.rectify(frame, corners, size, size, null).release();
+    }
+    long[] samples = new long[ITERATIONS];
+    for (int i = 0; i < ITERATIONS; i++) {
+      long start = SystemClock.elapsedRealtimeNanos();
+      rectifier.rectify(frame, corners, size, size, null).release();
+      samples[i] = SystemClock.elapsedRealtimeNanos() - start;
+    }
+    Arrays.sort(samples);
+    return samples[ITERATIONS / 2] / 1e6f;
+  }
+}
@@ -0,0 +1,123 @@
+package com.mojang.paintscan;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+/**
+ * On-device benchmark of the pure Java {@link Homography} and {@link PerspectiveWarper} against the
+ * OpenCV path of {@link FrameRectifier}, for a range of output sizes, to decide per size which one
+ * captures should use. Results are written to the log. Requires the OpenCV native library to be
+ * loaded; run it off the UI thread.
+ *
+ * <p>Both paths start from the same NV21 frame and end with converted color pixels: an RGBA
+ * {@link Mat} for OpenCV and an ARGB {@code int[]} for Java.
+ */
+final class WarpBenchmark {
+  private static final String TAG = "WarpBenchmark";
+
+  private static final int CAMERA_WIDTH = 1280;
+  private static final int CAMERA_HEIGHT = 720;
+  private static final int[] OUTPUT_SIZES = {128, 256, 512, 1024};
+  private static final int WARMUP_ITERATIONS = 3;
+  private static final int ITERATIONS = 20;
+  private static final int HOMOGRAPHY_ITERATIONS = 1000;
+  private static final int ROI_MARGIN = 16;
+
+  private WarpBenchmark() {}
+
+  static void run() {
+    YuvFramePool pool = new YuvFramePool(1);
+    YuvFrame frame = pool.acquire(CAMERA_WIDTH, CAMERA_HEIGHT);
+    RectificationBenchmark.fillGradient(frame);
+    final byte[] nv21 = frame.toByteArray();
+    final float[] corners = RectificationBenchmark.centeredQuad(CAMERA_WIDTH, CAMERA_HEIGHT, 0.6f);
+
+    final double[] transform = new double[9];
+    float javaMicros =
+        medianMillis(
+                HOMOGRAPHY_ITERATIONS,
+                () -> Homography.quadToRect(corners, OUTPUT_SIZES[0], OUTPUT_SIZES[0], transform))
+            * 1000f;
+    float openCvMicros =
+        medianMillis(
+                HOMOGRAPHY_ITERATIONS,
+                () ->
+                    openCvPerspectiveTransform(corners, OUTPUT_SIZES[0], OUTPUT_SIZES[0])
+                        .release())
+            * 1000f;
+    Log.i(TAG, "Homography: Java " + javaMicros + " us, OpenCV " + openCvMicros + " us");
+
+    final FrameRectifier rectifier =
+        new FrameRectifier(FrameRectifier.Mode.YUV, true, ROI_MARGIN);
+    final BandExecutor bands = new BandExecutor(Runtime.getRuntime().availableProcessors());
+    final PerspectiveWarper singleThreaded = new PerspectiveWarper(BandExecutor.CALLING_THREAD);
+    final PerspectiveWarper multiThreaded = new PerspectiveWarper(bands);
+    for (final int size : OUTPUT_SIZES) {
+      final int[] argb = new int[size * size];
+      StringBuilder line = new StringBuilder();
+      line.append(size).append('x').append(size).append(':');
+      line.append(" OpenCV ")
+          .append(medianMillis(ITERATIONS, () ->
+              rectifier.rectify(frame, corners, size, size, null).release()))
+          .append(" ms");
+      for (PerspectiveWarper.Interpolation interpolation : PerspectiveWarper.Interpolation.values()) {
+        for (PerspectiveWarper warper : new PerspectiveWarper[] {singleThreaded, multiThreaded}) {
+          line.append(" Java ")
+              .append(interpolation)
+              .append(" x")
+              .append(warper.getThreadCount())
+              .append(' ')
+              .append(medianMillis(ITERATIONS, () -> {
+                Homography.rectToQuad(corners, size, size, transform);
+                warper.warpNv21ToArgb(
+                    nv21, CAMERA_WIDTH, CAMERA_HEIGHT, transform, argb, size, size, interpolation);
+              }))
+              .append(" ms");
+        }
+      }
+      Log.i(TAG, line.toString());
+    }
+
+    bands.shutdown();
+    frame.release();
+  }
+
+  /** The homography as {@link Imgproc#getPerspectiveTransform} computes it, for comparison. */
+  private static Mat openCvPerspectiveTransform(float[] corners, int width, int height) {
+    MatOfPoint2f srcMat =
+        new MatOfPoint2f(
+            new Point(corners[0], corners[1]),
+            new Point(corners[2], corners[3]),
+            new Point(corners[4], corners[5]),
+            new Point(corners[6], corners[7]));
+    MatOfPoint2f dstMat =
+        new MatOfPoint2f(
+            new Point(0, 0), new Point(width, 0), new Point(width, height), new Point(0, height));
+    Mat transform = Imgproc.getPerspectiveTransform(srcMat, dstMat);
+    srcMat.release();
+    dstMat.release();
+    return transform;
+  }
+
+  /** Median time of one run in milliseconds, after a short warm-up. */
+  private static float medianMillis(int iterations, Runnable task) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      task.run();
+    }
+    long[] samples = new long[iterations];
+    for (int i = 0; i < iterations; i++) {
+      long start = SystemClock.elapsedRealtimeNanos();
+      task.run();
+      samples[i] = SystemClock.elapsedRealtimeNanos() - start;
+    }
+    Arrays.sort(samples);
+    return samples[iterations / 2] / 1e6f;
+  }
+}
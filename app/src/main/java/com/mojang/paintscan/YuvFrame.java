@@ -0,0 +1,120 @@
+package com.mojang.paintscan;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A tightly packed NV21 copy of a camera image held in a reusable direct buffer. The Y plane
+ * occupies the first {@code width * height} bytes and is followed by the interleaved VU plane at
+ * half resolution.
+ *
+ * <p>Frames are handed out by a {@link YuvFramePool} and must be given back with {@link #release()}
+ * once the last reader is done with them. A reader that may outlive the owner, such as a
+ * background task, takes its own reference with {@link #retain()}; the frame goes back to the pool
+ * when every reference is released.
+ */
+final class YuvFrame {
+
+  private final int width;
+  private final int height;
+  private final ByteBuffer data;
+  private final ByteBuffer yPlane;
+  private final ByteBuffer vuPlane;
+  private final YuvFramePool pool;
+  private final AtomicInteger references = new AtomicInteger(1);
+
+  private int bytesCopied;
+
+  YuvFrame(int width, int height, YuvFramePool pool) {
+    this.width = width;
+    this.height = height;
+    this.pool = pool;
+
+    data = ByteBuffer.allocateDirect(byteCount(width, height));
+    ByteBuffer view = data.duplicate();
+    view.limit(width * height);
+    yPlane = view.slice();
+    view.limit(view.capacity()).position(width * height);
+    vuPlane = view.slice();
+  }
+
+  /** Number of bytes needed for an NV21 image of the given size. */
+  static int byteCount(int width, int height) {
+    return width * height + 2 * (width / 2) * (height / 2);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** The whole NV21 image. Readers should use a duplicate rather than move its position. */
+  public ByteBuffer getBuffer() {
+    return data;
+  }
+
+  public ByteBuffer getYPlane() {
+    return yPlane;
+  }
+
+  public ByteBuffer getVUPlane() {
+    return vuPlane;
+  }
+
+  /** Bytes written into this frame by the last fill. */
+  public int getBytesCopied() {
+    return bytesCopied;
+  }
+
+  void setBytesCopied(int bytesCopied) {
+    this.bytesCopied = bytesCopied;
+  }
+
+  /**
+   * Returns the NV21 bytes as an array, which {@link android.graphics.YuvImage} needs. This
+   * normally copies the whole frame into a new array: the buffer has to stay direct for OpenCV, and
+   * the backing array Android gives direct buffers has an offset or extra bytes for alignment. Only
+   * when the backing array matches the frame exactly is it returned as is, and then it changes with
+   * the frame. Per frame readers should use the planes instead.
+   */
+  public byte[] toByteArray() {
+    if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == data.capacity()) {
+      return data.array();
+    }
+    byte[] bytes = new byte[data.capacity()];
+    ByteBuffer view = data.duplicate();
+    view.clear();
+    view.get(bytes);
+    return bytes;
+  }
+
+  /** Adds a reference, which must be given back with {@link #release()}. Returns this frame. */
+  public YuvFrame retain() {
+    if (references.getAndIncrement() <= 0) {
+      throw new IllegalStateException("Frame was already released");
+    }
+    return this;
+  }
+
+  /**
+   * Gives back a reference. The last one returns this frame to the pool it came from; the frame
+   * must not be used afterwards.
+   */
+  public void release() {
+    final int remaining = references.decrementAndGet();
+    if (remaining < 0) {
+      throw new IllegalStateException("Frame was released more often than retained");
+    }
+    if (remaining == 0 && pool != null) {
+      pool.release(this);
+    }
+  }
+
+  /** Called by the pool when it hands out this frame again. */
+  void onReuse() {
+    references.set(1);
+  }
+}
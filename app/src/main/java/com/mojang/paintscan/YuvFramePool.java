@@ -0,0 +1,63 @@
+package com.mojang.paintscan;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of {@link YuvFrame} buffers keyed by image geometry, so repeated captures at the same camera
+ * resolution reuse their direct buffers instead of allocating a new frame each time. Safe to use
+ * from any thread.
+ */
+final class YuvFramePool {
+
+  private final int maxFramesPerSize;
+  private final Map<Long, ArrayDeque<YuvFrame>> freeFrames = new HashMap<>();
+
+  private long hits;
+  private long misses;
+
+  YuvFramePool(int maxFramesPerSize) {
+    this.maxFramesPerSize = maxFramesPerSize;
+  }
+
+  /** Returns a free frame of the given size, allocating one if none is pooled. */
+  public synchronized YuvFrame acquire(int width, int height) {
+    ArrayDeque<YuvFrame> frames = freeFrames.get(key(width, height));
+    if (frames != null && !frames.isEmpty()) {
+      hits++;
+      YuvFrame frame = frames.pop();
+      frame.onReuse();
+      return frame;
+    }
+    misses++;
+    return new YuvFrame(width, height, this);
+  }
+
+  synchronized void release(YuvFrame frame) {
+    long key = key(frame.getWidth(), frame.getHeight());
+    ArrayDeque<YuvFrame> frames = freeFrames.get(key);
+    if (frames == null) {
+      frames = new ArrayDeque<>();
+      freeFrames.put(key, frames);
+    }
+    if (frames.size() < maxFramesPerSize) {
+      frames.push(frame);
+    }
+  }
+
+  /** Drops all pooled frames, e.g. when the camera configuration changes. */
+  public synchronized void clear() {
+    freeFrames.clear();
+  }
+
+  /** Fraction of {@link #acquire} calls served from the pool. */
+  public synchronized float getHitRate() {
+    long total = hits + misses;
+    return total == 0 ? 0f : (float) hits / total;
+  }
+
+  private static long key(int width, int height) {
+    return ((long) width << 32) | (height & 0xffffffffL);
+  }
+}
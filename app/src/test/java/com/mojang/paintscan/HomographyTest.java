@@ -0,0 +1,115 @@
+package com.mojang.paintscan;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public final class HomographyTest {
+  private static final double EPSILON = 1e-6;
+
+  private static final int WIDTH = 400;
+  private static final int HEIGHT = 300;
+  // Upper left, upper right, lower right, lower left; a perspective quad, not a parallelogram.
+  private static final float[] QUAD = {120, 80, 520, 110, 560, 430, 90, 400};
+
+  @Test
+  public void rectToQuadMapsRectangleCornersOntoQuadCorners() {
+    double[] h = new double[9];
+    assertTrue(Homography.rectToQuad(QUAD, WIDTH, HEIGHT, h));
+
+    assertEquals(1, h[8], EPSILON);
+    assertMapsTo(h, 0, 0, QUAD[0], QUAD[1]);
+    assertMapsTo(h, WIDTH, 0, QUAD[2], QUAD[3]);
+    assertMapsTo(h, WIDTH, HEIGHT, QUAD[4], QUAD[5]);
+    assertMapsTo(h, 0, HEIGHT, QUAD[6], QUAD[7]);
+  }
+
+  @Test
+  public void rectToQuadOfParallelogramIsAffine() {
+    float[] parallelogram = {10, 20, 110, 30, 130, 230, 30, 220};
+    double[] h = new double[9];
+    assertTrue(Homography.rectToQuad(parallelogram, 100, 200, h));
+
+    assertEquals(0, h[6], EPSILON);
+    assertEquals(0, h[7], EPSILON);
+    assertMapsTo(h, 100, 200, 130, 230);
+  }
+
+  @Test
+  public void quadToRectMapsQuadCornersOntoRectangleCorners() {
+    double[] h = new double[9];
+    assertTrue(Homography.quadToRect(QUAD, WIDTH, HEIGHT, h));
+
+    assertEquals(1, h[8], EPSILON);
+    assertMapsTo(h, QUAD[0], QUAD[1], 0, 0);
+    assertMapsTo(h, QUAD[2], QUAD[3], WIDTH, 0);
+    assertMapsTo(h, QUAD[4], QUAD[5], WIDTH, HEIGHT);
+    assertMapsTo(h, QUAD[6], QUAD[7], 0, HEIGHT);
+  }
+
+  @Test
+  public void quadToRectInvertsRectToQuad() {
+    double[] forward = new double[9];
+    double[] inverse = new double[9];
+    assertTrue(Homography.rectToQuad(QUAD, WIDTH, HEIGHT, forward));
+    assertTrue(Homography.quadToRect(QUAD, WIDTH, HEIGHT, inverse));
+
+    double[] product = multiply(inverse, forward);
+    for (int i = 0; i < 9; i++) {
+      product[i] /= product[8];
+    }
+    assertArrayEquals(new double[] {1, 0, 0, 0, 1, 0, 0, 0, 1}, product, EPSILON);
+  }
+
+  @Test
+  public void invertWorksInPlace() {
+    double[] h = new double[9];
+    assertTrue(Homography.rectToQuad(QUAD, WIDTH, HEIGHT, h));
+    double[] expected = new double[9];
+    assertTrue(Homography.invert(h, expected));
+
+    assertTrue(Homography.invert(h, h));
+    assertArrayEquals(expected, h, EPSILON);
+  }
+
+  @Test
+  public void degenerateQuadsAreRejected() {
+    double[] h = new double[9];
+    // All corners on one line.
+    assertFalse(Homography.rectToQuad(new float[] {0, 0, 10, 10, 20, 20, 30, 30}, 10, 10, h));
+    assertFalse(Homography.quadToRect(new float[] {0, 0, 10, 10, 20, 20, 30, 30}, 10, 10, h));
+    // Three corners at the same point.
+    assertFalse(Homography.quadToRect(new float[] {5, 5, 5, 5, 5, 5, 40, 60}, 10, 10, h));
+    // All corners at the same point.
+    assertFalse(Homography.quadToRect(new float[8], 10, 10, h));
+  }
+
+  @Test
+  public void invertRejectsSingularMatrix() {
+    double[] singular = {1, 2, 3, 2, 4, 6, 0, 0, 1};
+    double[] out = {9, 9, 9, 9, 9, 9, 9, 9, 9};
+    assertFalse(Homography.invert(singular, out));
+    assertArrayEquals(new double[] {9, 9, 9, 9, 9, 9, 9, 9, 9}, out, 0);
+  }
+
+  private static void assertMapsTo(double[] h, double x, double y, double toX, double toY) {
+    final double w = h[6] * x + h[7] * y + h[8];
+    assertEquals(toX, (h[0] * x + h[1] * y + h[2]) / w, 1e-3);
+    assertEquals(toY, (h[3] * x + h[4] * y + h[5]) / w, 1e-3);
+  }
+
+  private static double[] multiply(double[] a, double[] b) {
+    double[] product = new double[9];
+    for (int row = 0; row < 3; row++) {
+      for (int col = 0; col < 3; col++) {
+        for (int k = 0; k < 3; k++) {
+          product[row * 3 + col] += a[row * 3 + k] * b[k * 3 + col];
+        }
+      }
+    }
+    return product;
+  }
+}
@@ -0,0 +1,220 @@
+package com.mojang.paintscan;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public final class PerspectiveWarperTest {
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 48;
+  private static final double[] IDENTITY = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+
+  private static final BandExecutor BANDS = new BandExecutor(4);
+
+  @AfterClass
+  public static void shutDown() {
+    BANDS.shutdown();
+  }
+
+  @Test
+  public void identityWarpCopiesGrayImage() {
+    byte[] src = grayPattern();
+    for (PerspectiveWarper warper : warpers()) {
+      for (PerspectiveWarper.Interpolation interpolation :
+          PerspectiveWarper.Interpolation.values()) {
+        byte[] dst = new byte[WIDTH * HEIGHT];
+        warper.warpGray(src, 0, WIDTH, WIDTH, HEIGHT, IDENTITY, dst, WIDTH, HEIGHT, interpolation);
+        assertArrayEquals(src, dst);
+      }
+    }
+  }
+
+  @Test
+  public void translationShiftsGrayImageAndFillsBlack() {
+    byte[] src = grayPattern();
+    // Output pixel (x, y) reads source pixel (x + 5, y - 3).
+    double[] translation = {1, 0, 5, 0, 1, -3, 0, 0, 1};
+    byte[] expected = new byte[WIDTH * HEIGHT];
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        final int sx = x + 5;
+        final int sy = y - 3;
+        if (sx < WIDTH && sy >= 0) {
+          expected[y * WIDTH + x] = src[sy * WIDTH + sx];
+        }
+      }
+    }
+
+    for (PerspectiveWarper warper : warpers()) {
+      for (PerspectiveWarper.Interpolation interpolation :
+          PerspectiveWarper.Interpolation.values()) {
+        byte[] dst = filled(WIDTH * HEIGHT, (byte) 0x55);
+        warper.warpGray(
+            src, 0, WIDTH, WIDTH, HEIGHT, translation, dst, WIDTH, HEIGHT, interpolation);
+        assertArrayEquals(expected, dst);
+      }
+    }
+  }
+
+  @Test
+  public void grayWarpHonorsOffsetAndStride() {
+    final int stride = WIDTH + 7;
+    final int offset = 3;
+    byte[] pattern = grayPattern();
+    byte[] src = new byte[offset + stride * HEIGHT];
+    for (int y = 0; y < HEIGHT; y++) {
+      System.arraycopy(pattern, y * WIDTH, src, offset + y * stride, WIDTH);
+    }
+
+    for (PerspectiveWarper warper : warpers()) {
+      byte[] dst = new byte[WIDTH * HEIGHT];
+      warper.warpGray(
+          src, offset, stride, WIDTH, HEIGHT, IDENTITY, dst, WIDTH, HEIGHT,
+          PerspectiveWarper.Interpolation.BILINEAR);
+      assertArrayEquals(pattern, dst);
+    }
+  }
+
+  @Test
+  public void bilinearSamplesBetweenPixels() {
+    // A horizontal ramp, sampled half a pixel to the right.
+    byte[] src = new byte[WIDTH * HEIGHT];
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        src[y * WIDTH + x] = (byte) (4 * x);
+      }
+    }
+    double[] halfPixel = {1, 0, 0.5, 0, 1, 0, 0, 0, 1};
+
+    for (PerspectiveWarper warper : warpers()) {
+      byte[] dst = new byte[WIDTH * HEIGHT];
+      warper.warpGray(
+          src, 0, WIDTH, WIDTH, HEIGHT, halfPixel, dst, WIDTH, HEIGHT,
+          PerspectiveWarper.Interpolation.BILINEAR);
+      for (int y = 0; y < HEIGHT; y++) {
+        for (int x = 0; x < WIDTH - 1; x++) {
+          assertEquals(4 * x + 2, dst[y * WIDTH + x] & 0xff);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void identityWarpCopiesPackedImage() {
+    int[] src = new int[WIDTH * HEIGHT];
+    for (int i = 0; i < src.length; i++) {
+      src[i] = 0xff000000 | (i * 0x010305);
+    }
+    for (PerspectiveWarper warper : warpers()) {
+      for (PerspectiveWarper.Interpolation interpolation :
+          PerspectiveWarper.Interpolation.values()) {
+        int[] dst = new int[WIDTH * HEIGHT];
+        warper.warpPacked(src, WIDTH, HEIGHT, IDENTITY, dst, WIDTH, HEIGHT, interpolation);
+        assertArrayEquals(src, dst);
+      }
+    }
+  }
+
+  @Test
+  public void packedTranslationFillsOpaqueBlackOutside() {
+    int[] src = new int[WIDTH * HEIGHT];
+    for (int i = 0; i < src.length; i++) {
+      src[i] = 0xff000000 | (i * 0x010305);
+    }
+    // Output pixel (x, y) reads source pixel (x + 5, y - 3).
+    double[] translation = {1, 0, 5, 0, 1, -3, 0, 0, 1};
+
+    for (PerspectiveWarper warper : warpers()) {
+      for (PerspectiveWarper.Interpolation interpolation :
+          PerspectiveWarper.Interpolation.values()) {
+        int[] dst = new int[WIDTH * HEIGHT];
+        warper.warpPacked(src, WIDTH, HEIGHT, translation, dst, WIDTH, HEIGHT, interpolation);
+        for (int y = 0; y < HEIGHT; y++) {
+          for (int x = 0; x < WIDTH; x++) {
+            final int sx = x + 5;
+            final int sy = y - 3;
+            final int pixel = dst[y * WIDTH + x];
+            assertEquals(0xff, pixel >>> 24);
+            assertEquals(sx < WIDTH && sy >= 0 ? src[sy * WIDTH + sx] : 0xff000000, pixel);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void nv21WarpConvertsAndFillsOpaqueBlackOutside() {
+    byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+    byte[] luma = grayPattern();
+    System.arraycopy(luma, 0, nv21, 0, luma.length);
+    for (int i = WIDTH * HEIGHT; i < nv21.length; i += 2) {
+      nv21[i] = (byte) 160; // V
+      nv21[i + 1] = (byte) 100; // U
+    }
+    // The right half of the output reads beyond the right edge of the source.
+    double[] translation = {1, 0, WIDTH / 2, 0, 1, 0, 0, 0, 1};
+
+    for (PerspectiveWarper warper : warpers()) {
+      for (PerspectiveWarper.Interpolation interpolation :
+          PerspectiveWarper.Interpolation.values()) {
+        int[] dst = new int[WIDTH * HEIGHT];
+        warper.warpNv21ToArgb(nv21, WIDTH, HEIGHT, translation, dst, WIDTH, HEIGHT, interpolation);
+        for (int y = 0; y < HEIGHT; y++) {
+          for (int x = 0; x < WIDTH; x++) {
+            final int expected =
+                x + WIDTH / 2 < WIDTH
+                    ? PerspectiveWarper.yuvToArgb(luma[y * WIDTH + x + WIDTH / 2] & 0xff, 100, 160)
+                    : 0xff000000;
+            assertEquals(0xff, dst[y * WIDTH + x] >>> 24);
+            assertEquals(expected, dst[y * WIDTH + x]);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void bandsProduceTheSameOutputAsOneThread() {
+    byte[] src = grayPattern();
+    double[] h = new double[9];
+    Homography.rectToQuad(new float[] {6.3f, 4.1f, 58.7f, 2.2f, 61.5f, 45.9f, 1.8f, 40.4f},
+        WIDTH, HEIGHT, h);
+
+    for (PerspectiveWarper.Interpolation interpolation : PerspectiveWarper.Interpolation.values()) {
+      byte[] single = new byte[WIDTH * HEIGHT];
+      byte[] banded = new byte[WIDTH * HEIGHT];
+      new PerspectiveWarper(BandExecutor.CALLING_THREAD)
+          .warpGray(src, 0, WIDTH, WIDTH, HEIGHT, h, single, WIDTH, HEIGHT, interpolation);
+      new PerspectiveWarper(BANDS)
+          .warpGray(src, 0, WIDTH, WIDTH, HEIGHT, h, banded, WIDTH, HEIGHT, interpolation);
+      assertArrayEquals(single, banded);
+    }
+  }
+
+  private static PerspectiveWarper[] warpers() {
+    return new PerspectiveWarper[] {
+      new PerspectiveWarper(BandExecutor.CALLING_THREAD), new PerspectiveWarper(BANDS)
+    };
+  }
+
+  /** A pattern without flat areas, so misplaced pixels show. */
+  private static byte[] grayPattern() {
+    byte[] pixels = new byte[WIDTH * HEIGHT];
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        pixels[y * WIDTH + x] = (byte) (x * 7 + y * 13 + (x * y) % 11);
+      }
+    }
+    return pixels;
+  }
+
+  private static byte[] filled(int length, byte value) {
+    byte[] bytes = new byte[length];
+    Arrays.fill(bytes, value);
+    return bytes;
+  }
+}
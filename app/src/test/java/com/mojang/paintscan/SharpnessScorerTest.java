@@ -0,0 +1,94 @@
+package com.mojang.paintscan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public final class SharpnessScorerTest {
+  private static final int WIDTH = 1280;
+  private static final int HEIGHT = 720;
+
+  // A painting about 400 px across, scored at native resolution.
+  private static final float[] SMALL_QUAD = {400, 150, 820, 170, 800, 560, 420, 540};
+  // A painting over 1000 px across, scored after 2x2 averaging.
+  private static final float[] LARGE_QUAD = {60, 20, 1220, 40, 1200, 700, 80, 690};
+
+  @Test
+  public void boxBlurredFrameScoresLower() {
+    YuvFramePool pool = new YuvFramePool(2);
+    YuvFrame sharp = pool.acquire(WIDTH, HEIGHT);
+    YuvFrame blurred = pool.acquire(WIDTH, HEIGHT);
+    fillTexture(sharp.getYPlane());
+    boxBlur(sharp.getYPlane(), blurred.getYPlane(), 2);
+
+    for (float[] corners : new float[][] {SMALL_QUAD, LARGE_QUAD}) {
+      final float sharpScore = SharpnessScorer.score(sharp, corners);
+      final float blurredScore = SharpnessScorer.score(blurred, corners);
+      assertTrue(
+          "sharp " + sharpScore + ", blurred " + blurredScore, blurredScore < 0.5f * sharpScore);
+    }
+  }
+
+  @Test
+  public void flatFrameScoresZero() {
+    YuvFrame frame = new YuvFramePool(1).acquire(WIDTH, HEIGHT);
+    ByteBuffer y = frame.getYPlane();
+    for (int i = 0; i < WIDTH * HEIGHT; i++) {
+      y.put(i, (byte) 128);
+    }
+    assertEquals(0f, SharpnessScorer.score(frame, SMALL_QUAD), 0f);
+    assertEquals(0f, SharpnessScorer.score(frame, LARGE_QUAD), 0f);
+  }
+
+  @Test
+  public void tinyRegionScoresZero() {
+    YuvFrame frame = new YuvFramePool(1).acquire(WIDTH, HEIGHT);
+    fillTexture(frame.getYPlane());
+    float[] corners = {10, 10, 11, 10, 11, 11, 10, 11};
+    assertEquals(0f, SharpnessScorer.score(frame, corners), 0f);
+  }
+
+  /** Random blobs of a few pixels, like brush strokes, so the texture has edges at every scale. */
+  private static void fillTexture(ByteBuffer y) {
+    Random random = new Random(1);
+    for (int row = 0; row < HEIGHT; row++) {
+      for (int col = 0; col < WIDTH; col++) {
+        y.put(row * WIDTH + col, (byte) 128);
+      }
+    }
+    for (int i = 0; i < 40000; i++) {
+      final int size = 1 + random.nextInt(6);
+      final int left = random.nextInt(WIDTH - size);
+      final int top = random.nextInt(HEIGHT - size);
+      final byte value = (byte) random.nextInt(256);
+      for (int row = top; row < top + size; row++) {
+        for (int col = left; col < left + size; col++) {
+          y.put(row * WIDTH + col, value);
+        }
+      }
+    }
+  }
+
+  /** Mean over a (2 * radius + 1) square, clamped at the frame edges. */
+  private static void boxBlur(ByteBuffer src, ByteBuffer dst, int radius) {
+    for (int row = 0; row < HEIGHT; row++) {
+      for (int col = 0; col < WIDTH; col++) {
+        int sum = 0;
+        int count = 0;
+        for (int dy = -radius; dy <= radius; dy++) {
+          for (int dx = -radius; dx <= radius; dx++) {
+            final int y = Math.min(HEIGHT - 1, Math.max(0, row + dy));
+            final int x = Math.min(WIDTH - 1, Math.max(0, col + dx));
+            sum += src.get(y * WIDTH + x) & 0xff;
+            count++;
+          }
+        }
+        dst.put(row * WIDTH + col, (byte) (sum / count));
+      }
+    }
+  }
+}